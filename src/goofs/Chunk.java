@@ -5,6 +5,7 @@ import java.lang.String;
 import java.lang.Integer;
 import java.lang.Long;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.StringTokenizer;
 
@@ -23,14 +24,17 @@ public class Chunk
   /** size of checksum slice */
   public static final int checkSize = 8*1024; // 8KB
 
+  /** directory chunks are stored in */
+  public static final String dir = "/tmp/idfah-goofs/";
+
   private static final long serialVersionUID = 1l;
 
-  // abstract pathname for the file
-  // that this chunk belongs to
-  private File f;
+  // file id and chunk number within the file
+  private ChunkHandle handle;
 
-  // chunk number within the file
-  private int sequence;
+  // abstract pathname for the file, kept only
+  // so chunkservers can report their namespace
+  private File f;
 
   // file version associated with this chunk
   private int version = 0;
@@ -47,11 +51,11 @@ public class Chunk
 
   /**
    * Create a chunk containing a piece of a file
+   * @param handle File id and chunk number of this chunk
    * @param f Abstract pathname of file containing this chunk
    * @param data Bytes belonging to this chunk
-   * @param sequence Chunk number within the file
    */
-  public Chunk(File f, int sequence, byte[] data)
+  public Chunk(ChunkHandle handle, File f, byte[] data)
     throws Exception
   {
     // throw exception if data is too big
@@ -59,28 +63,8 @@ public class Chunk
       throw new Exception("Chunk size " + data.length +
                           " too big, max is " + maxSize + ".");
 
+    this.handle    = handle;
     this.f         = f;
-    this.sequence  = sequence;
-    this.timeStamp = (new Date()).getTime();
-    this.data      = data;
-
-    // generate checksums
-    genCheckSums();
-  }
-
-  /**
-   *
-   */ 
-  public Chunk(ChunkDescriptor chunkDesc, byte[] data)
-    throws Exception
-  {
-    // throw exception if data is too big
-    if (data.length > maxSize)
-      throw new Exception("Chunk size " + data.length +
-                          " too big, max is " + maxSize + ".");
-
-    this.f         = chunkDesc.getFile();
-    this.sequence  = chunkDesc.getOffset()/maxSize;
     this.timeStamp = (new Date()).getTime();
     this.data      = data;
 
@@ -91,17 +75,25 @@ public class Chunk
   /**
    *
    */
-  public Chunk(File f, int sequence, int version, long timeStamp,
+  public Chunk(ChunkHandle handle, File f, int version, long timeStamp,
                Hash[] checkSums, byte[] data)
   {
+    this.handle     = handle;
     this.f          = f;
-    this.sequence   = sequence;
     this.version    = version;
     this.timeStamp  = timeStamp;
     this.checkSums  = checkSums;
     this.data       = data;
   }
 
+  /**
+   * Get file id and chunk number of this chunk.
+   */
+  public ChunkHandle getHandle()
+  {
+    return handle;
+  }
+
   /**
    *
    */
@@ -113,9 +105,9 @@ public class Chunk
   /**
    *
    */
-  public int getSequence()
+  public long getSequence()
   {
-    return sequence;
+    return handle.getSequence();
   }
     
   /**
@@ -134,6 +126,14 @@ public class Chunk
     return timeStamp;
   }
 
+  /**
+   * Get checksum of each slice of this chunk.
+   */
+  public Hash[] getCheckSums()
+  {
+    return checkSums;
+  }
+
   /**
    * Get data stored by this chunk
    */
@@ -159,18 +159,10 @@ public class Chunk
   /**
    *
    */
-  public static void delete(ChunkDescriptor chunkDesc)
+  public static void delete(ChunkHandle handle)
   {
-    String fileName = chunkDesc.getFile().toString();
-    int sequenceNum = chunkDesc.getOffset()/maxSize;
-
-    File metaf = new File("/tmp/idfah-goofs/" +
-                          fileName + "_meta"  +
-                          sequenceNum);
-
-    File dataf = new File("/tmp/idfah-goofs/" +
-                          fileName + "_data"  +
-                          sequenceNum);
+    File metaf = metaFile(handle);
+    File dataf = dataFile(handle);
 
     // if metadata exists, delete it
     if (metaf.exists())
@@ -180,25 +172,93 @@ public class Chunk
       dataf.delete();
   }
 
+  /**
+   * Get bytes of data of a chunk on disk
+   * without reading it, zero if there is none.
+   */
+  public static long size(ChunkHandle handle)
+  {
+    return dataFile(handle).length();
+  }
+
+  // file holding chunk metadata, named by
+  // file id so no path is needed to find it
+  private static File metaFile(ChunkHandle handle)
+  {
+    return new File(dir + handle.getFileId() +
+                    "_meta" + handle.getSequence());
+  }
+
+  // file holding chunk data
+  private static File dataFile(ChunkHandle handle)
+  {
+    return new File(dir + handle.getFileId() +
+                    "_data" + handle.getSequence());
+  }
+
+  /**
+   * Read checksums of a chunk from disk
+   * without reading its data.
+   */
+  public static Hash[] readCheckSums(ChunkHandle handle)
+    throws Exception
+  {
+    return readMeta(handle).getCheckSums();
+  }
+
   /**
    * Read chunk from disk.
    */
-  public static Chunk read(ChunkDescriptor cd)
+  public static Chunk read(ChunkHandle handle)
+    throws Exception
+  {
+    // metadata, data is filled in below
+    Chunk c = readMeta(handle);
+
+    byte[] data = null;
+
+    // file holding data
+    File dataSrc = dataFile(handle);
+
+    // complain if file doesn't exist
+    if (!dataSrc.isFile())
+      throw new Exception("Can't read " + dataSrc + ": does not exist.");
+
+    System.out.println("Reading: " + dataSrc.getAbsoluteFile());
+
+    InputStream dataInput = new FileInputStream(dataSrc);
+
+    byte[] curData   = new byte[maxSize];
+    int numBytesRead = dataInput.read(curData, 0, maxSize);
+    if (numBytesRead <= 0)
+      throw new Exception("Error reading " + dataSrc + ": Empty File.");
+
+    data = new byte[numBytesRead];
+
+    /*for (int i = 0; i < numBytesRead; ++i)
+      data[i] = curData[i]; */
+    System.arraycopy(curData, 0, data, 0, numBytesRead);
+
+    dataInput.close(); 
+
+    checkCheckSums(c.checkSums, data);
+
+    c.data = data;
+    return c;
+  }
+
+  // read chunk metadata from disk, data is left null
+  private static Chunk readMeta(ChunkHandle handle)
     throws Exception
   {
-    File    f         = cd.getFile();
-    int     sequence  = cd.getOffset()/maxSize;
+    File    f         = null;
     int     version   = 0;
     long    timeStamp = 0;
     ArrayList<Hash> runningCheckSums= new ArrayList<Hash>();
     Hash[]  checkSums = null;
-    byte[]  data      = null;
 
     // file holding meta-data
-    File metaSrc = new File("/tmp/idfah-goofs/" +
-                            //f.getAbsoluteFile().toString()
-                            f.toString() +
-                            "_meta" + sequence);
+    File metaSrc = metaFile(handle);
 
     // complain if file doesn't exist
     if (!metaSrc.isFile())
@@ -229,9 +289,9 @@ public class Chunk
         {
           String keyword  = separator.nextToken();
 
-          if (keyword.equals("file")) {
-            // do nothing
-          }
+          // rest of line is pathname, which may hold spaces
+          if (keyword.equals("file"))
+            f = new File(currentLine.substring(5));
 
           else if (keyword.equals("sequence")) {
             // do nothing
@@ -271,37 +331,8 @@ public class Chunk
     //
     checkSums = runningCheckSums.toArray(new Hash[0]);
 
-    // file holding data
-    File dataSrc = new File("/tmp/idfah-goofs/" +
-                            //f.getAbsoluteFile().toString()
-                            f.toString() +
-                           "_data" + sequence);
-
-    // complain if file doesn't exist
-    if (!dataSrc.isFile())
-      throw new Exception("Can't read " + dataSrc + ": does not exist.");
-
-    System.out.println("Reading: " + dataSrc.getAbsoluteFile());
-
-    InputStream dataInput = new FileInputStream(dataSrc);
-
-    byte[] curData   = new byte[maxSize];
-    int numBytesRead = dataInput.read(curData, 0, maxSize);
-    if (numBytesRead <= 0)
-      throw new Exception("Error reading " + dataSrc + ": Empty File.");
-
-    data = new byte[numBytesRead];
-
-    /*for (int i = 0; i < numBytesRead; ++i)
-      data[i] = curData[i]; */
-    System.arraycopy(curData, 0, data, 0, numBytesRead);
-
-    dataInput.close(); 
-
-    checkCheckSums(checkSums, data);
-
-    return new Chunk(f, sequence, version,
-                     timeStamp, checkSums, data);
+    return new Chunk(handle, f, version,
+                     timeStamp, checkSums, null);
   }
 
   /**
@@ -310,10 +341,7 @@ public class Chunk
   public void write()
     throws Exception
   {
-    File metaDst = new File("/tmp/idfah-goofs/" +
-                            //f.getFile().getAbsoluteFile().toString() +
-                            f.toString() +
-                            "_meta" + sequence);
+    File metaDst = metaFile(handle);
 
     // if metadata already exists, delete it
     if (metaDst.exists())
@@ -329,10 +357,14 @@ public class Chunk
       new BufferedWriter(
         new FileWriter(metaDst));
 
-    metaOutput.write("file " + f.toString());
-    metaOutput.newLine();
+    // pathname is only a hint, may be unknown
+    if (f != null)
+    {
+      metaOutput.write("file " + f.toString());
+      metaOutput.newLine();
+    }
 
-    metaOutput.write("sequence " + sequence);
+    metaOutput.write("sequence " + handle.getSequence());
     metaOutput.newLine();
 
     metaOutput.write("version " + version);
@@ -351,10 +383,7 @@ public class Chunk
     metaOutput.flush();
     metaOutput.close();
 
-    File dataDst = new File("/tmp/idfah-goofs/" +
-                            //f.getFile().getAbsoluteFile().toString() +
-                            f.toString() +
-                            "_data" + sequence);
+    File dataDst = dataFile(handle);
 
     System.out.println("Writing: " + dataDst.getAbsoluteFile());
 
@@ -387,81 +416,60 @@ public class Chunk
   public String toString()
   {
     return "Name: "      + f            + ",\t" +
-           "Sequence: "  + sequence     + ",\t" +
+           "Handle: "    + handle       + ",\t" +
            "Version: "   + version      + ",\t" +
            "Timestamp: " + timeStamp;
   }
 
-  // generate checksums for each slice
-  private void genCheckSums()
+  /**
+   * Compute checksum of each checkSize slice of
+   * some data, the last slice may be shorter.
+   *
+   * @param data Data to checksum.
+   * @param length Bytes of data to use.
+   */
+  public static Hash[] sliceSums(byte[] data, int length)
     throws Exception
   {
-    int numChecks = data.length/checkSize;
-    int lastCheckSize = data.length%checkSize;
+    int numChecks = (length + checkSize - 1) / checkSize;
 
-    if (lastCheckSize > 0)
-      ++numChecks;
-
-    checkSums = new Hash[numChecks];
+    Hash[] sums = new Hash[numChecks];
 
     try
     {
-      byte[] hashData;
-      int    curByte;
-      for (curByte = 0; curByte < numChecks-1; ++curByte)
+      for (int i = 0; i < numChecks; ++i)
       {
-        hashData = new byte[checkSize];
-        for (int i = 0; i < checkSize;  ++i)
-          hashData[i] = data[curByte+i];
+        // slice i starts at byte i*checkSize
+        int start = i*checkSize;
+        int end   = Math.min(length, start+checkSize);
 
-        checkSums[curByte] = new Hash(hashData);
+        sums[i] = new Hash(Arrays.copyOfRange(data, start, end));
       }
-
-      hashData = new byte[lastCheckSize];
-      for (int i = 0; i < lastCheckSize; ++i)
-        hashData[i] = data[curByte+i];
-
-      checkSums[numChecks-1] = new Hash(hashData);
     }
     catch (Exception e) {
       throw new Exception("Error generating checksum.");
     }
+
+    return sums;
+  }
+
+  // generate checksums for each slice
+  private void genCheckSums()
+    throws Exception
+  {
+    checkSums = sliceSums(data, data.length);
   }
 
   //
   private static void checkCheckSums(Hash[] checkSums, byte[] data)
     throws Exception
   {
-    int numChecks = data.length/checkSize;
-    int lastCheckSize = data.length%checkSize;
-
-    if (lastCheckSize > 0)
-      ++numChecks;
+    Hash[] newSums = sliceSums(data, data.length);
 
-    Hash[] newSums = new Hash[numChecks];
-
-    try
-    {
-      byte[] hashData;
-      int    curByte;
-      for (curByte = 0; curByte < numChecks-1; ++curByte)
-      {
-        hashData = new byte[checkSize];
-        for (int i = 0; i < checkSize;  ++i)
-          hashData[i] = data[curByte+i];
-
-        newSums[curByte] = new Hash(hashData);
-      }
-
-      hashData = new byte[lastCheckSize];
-      for (int i = 0; i < lastCheckSize; ++i)
-        hashData[i] = data[curByte+i];
-
-      newSums[numChecks-1] = new Hash(hashData);
-    }
-    catch (Exception e) {
-      throw new Exception("Error generating checksum.");
-    }
+    if (newSums.length != checkSums.length)
+      throw new Exception("Corruption detected, expected " +
+                          checkSums.length + " slices but found " +
+                          newSums.length + ".");
 
     for (int i = 0; i < checkSums.length; ++i)
       if (!newSums[i].equals(checkSums[i]))
@@ -0,0 +1,96 @@
+package goofs;
+
+import java.util.ArrayList;
+
+/**
+ * Fixed-size pool of reusable chunk buffers.
+ * Callers block in acquire until a buffer is
+ * released, which bounds memory used for data
+ * in flight to the size of the pool.
+ *
+ * @author Elliott Forney
+ */
+public class ChunkBufferPool
+{
+  // buffers not currently in use
+  private ArrayList<byte[]> free = new ArrayList<byte[]>();
+
+  // size of each buffer
+  private int bufferSize;
+
+  // total number of buffers in pool
+  private int numBuffers;
+
+  /**
+   * Create a new buffer pool.
+   *
+   * @param numBuffers Number of buffers in pool.
+   * @param bufferSize Bytes in each buffer.
+   */
+  public ChunkBufferPool(int numBuffers, int bufferSize)
+  {
+    this.numBuffers = numBuffers;
+    this.bufferSize = bufferSize;
+
+    for (int i = 0; i < numBuffers; ++i)
+      free.add(new byte[bufferSize]);
+  }
+
+  /**
+   * Take a buffer from the pool, blocking
+   * until one is available.
+   *
+   * @return A buffer of bufferSize bytes.
+   */
+  public synchronized byte[] acquire()
+    throws InterruptedException
+  {
+    while (free.isEmpty())
+      wait();
+
+    return free.remove(free.size()-1);
+  }
+
+  /**
+   * Return a buffer to the pool.  Buffers of the
+   * wrong size are dropped, so callers may release
+   * whatever they acquired without checking.
+   *
+   * @param buffer Buffer previously acquired.
+   */
+  public synchronized void release(byte[] buffer)
+  {
+    if ((buffer == null) || (buffer.length != bufferSize))
+      return;
+
+    free.add(buffer);
+    notifyAll();
+  }
+
+  /**
+   * Block until every buffer has been
+   * returned to the pool.
+   */
+  public synchronized void waitForAll()
+    throws InterruptedException
+  {
+    while (free.size() < numBuffers)
+      wait();
+  }
+
+  /**
+   * Get bytes in each buffer.
+   */
+  public int getBufferSize()
+  {
+    return bufferSize;
+  }
+
+  /**
+   * Get total number of buffers in pool.
+   */
+  public int getNumBuffers()
+  {
+    return numBuffers;
+  }
+}
@@ -0,0 +1,134 @@
+package goofs;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * Summary of a set of chunks, kept by a chunkserver over the
+ * chunks it stores and by the controller over the chunks it
+ * believes each chunkserver stores.  Chunks fall into a fixed
+ * number of buckets by hash, and each bucket is summed up by
+ * its number of chunks and the sum of their hashes, kept as
+ * chunks come and go.  Comparing summaries finds the buckets
+ * the two sides disagree on, so a major heartbeat only lists
+ * chunks in those and costs the same however many chunks a
+ * chunkserver holds.  Not synchronized.
+ *
+ * @author Elliott Forney
+ */
+public class ChunkDigest
+  implements Serializable
+{
+  private static final long serialVersionUID = 1l;
+
+  /** number of buckets, a power of two */
+  public static final int numBuckets = 1024;
+
+  // high bits of chunk hash choosing the bucket
+  private static final int bucketShift =
+    64 - Integer.numberOfTrailingZeros(numBuckets);
+
+  // sum of hashes of chunks in each bucket
+  private long[] sums = new long[numBuckets];
+
+  // number of chunks in each bucket
+  private int[] counts = new int[numBuckets];
+
+  // number of chunks in all buckets
+  private int size = 0;
+
+  /**
+   * Create a summary of no chunks.
+   */
+  public ChunkDigest()
+  {
+  }
+
+  /**
+   * Get bucket a chunk falls in.
+   */
+  public static int bucketOf(ChunkHandle handle)
+  {
+    return (int)(hash(handle) >>> bucketShift);
+  }
+
+  /**
+   * Get number of chunks summed up.
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Add a chunk, it must not already be summed up.
+   */
+  public void add(ChunkHandle handle)
+  {
+    long h = hash(handle);
+    int b  = (int)(h >>> bucketShift);
+
+    sums[b] += h;
+    ++counts[b];
+    ++size;
+  }
+
+  /**
+   * Take out a chunk that was added.
+   */
+  public void remove(ChunkHandle handle)
+  {
+    long h = hash(handle);
+    int b  = (int)(h >>> bucketShift);
+
+    sums[b] -= h;
+    --counts[b];
+    --size;
+  }
+
+  /**
+   * Find buckets where another summary disagrees with this one.
+   *
+   * @return Bucket numbers, in order.
+   */
+  public int[] differing(ChunkDigest other)
+  {
+    ArrayList<Integer> differ = new ArrayList<Integer>();
+
+    for (int b = 0; b < numBuckets; ++b)
+      if ((counts[b] != other.counts[b]) || (sums[b] != other.sums[b]))
+        differ.add(b);
+
+    int[] buckets = new int[differ.size()];
+    for (int i = 0; i < buckets.length; ++i)
+      buckets[i] = differ.get(i);
+
+    return buckets;
+  }
+
+  /**
+   * Make a copy that no longer changes with this one.
+   */
+  public ChunkDigest copy()
+  {
+    ChunkDigest d = new ChunkDigest();
+
+    System.arraycopy(sums,   0, d.sums,   0, numBuckets);
+    System.arraycopy(counts, 0, d.counts, 0, numBuckets);
+    d.size = size;
+
+    return d;
+  }
+
+  // 64 bit hash of a chunk, mixed so that chunks
+  // of one file spread over every bucket
+  private static long hash(ChunkHandle handle)
+  {
+    long h = handle.getFileId() * 0x9e3779b97f4a7c15l + handle.getSequence();
+
+    h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9l;
+    h = (h ^ (h >>> 27)) * 0x94d049bb133111ebl;
+
+    return h ^ (h >>> 31);
+  }
+}
@@ -0,0 +1,106 @@
+package goofs;
+
+import java.io.*;
+
+/**
+ * Compact identifier for a chunk, made of the id
+ * the controller assigned to its file and the chunk
+ * number within that file.  File paths are only
+ * resolved to ids at the namespace layer, so chunk
+ * messages and indexes never carry or build strings.
+ *
+ * @author Elliott Forney
+ */
+public class ChunkHandle
+  implements Serializable, Comparable<ChunkHandle>
+{
+  private static final long serialVersionUID = 1l;
+
+  /** file id meaning no such file */
+  public static final long noFile = -1;
+
+  // id controller assigned to file
+  private long fileId;
+
+  // chunk number within the file
+  private long sequence;
+
+  /**
+   * Create a handle for a chunk.
+   *
+   * @param fileId Id the controller assigned to the file.
+   * @param sequence Chunk number within the file.
+   */
+  public ChunkHandle(long fileId, long sequence)
+  {
+    this.fileId   = fileId;
+    this.sequence = sequence;
+  }
+
+  /**
+   * Get id of the file this chunk belongs to.
+   */
+  public long getFileId()
+  {
+    return fileId;
+  }
+
+  /**
+   * Get chunk number within the file.
+   */
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * Get byte offset of chunk within the file.
+   */
+  public long getOffset()
+  {
+    return sequence*Chunk.maxSize;
+  }
+
+  /**
+   * Check for equality with another handle.
+   */
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof ChunkHandle))
+      return false;
+
+    ChunkHandle h = (ChunkHandle)o;
+
+    return (fileId == h.fileId) && (sequence == h.sequence);
+  }
+
+  /**
+   * Hash both halves of the handle together.
+   */
+  public int hashCode()
+  {
+    long h = fileId*0x9E3779B97F4A7C15l + sequence;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  /**
+   * Order by file id then sequence number.
+   */
+  public int compareTo(ChunkHandle h)
+  {
+    if (fileId != h.fileId)
+      return (fileId < h.fileId) ? -1 : 1;
+    else if (sequence != h.sequence)
+      return (sequence < h.sequence) ? -1 : 1;
+    else
+      return 0;
+  }
+
+  /**
+   * Generate human readable string describing this handle.
+   */
+  public String toString()
+  {
+    return fileId + ":" + sequence;
+  }
+}
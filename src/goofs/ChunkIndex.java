@@ -0,0 +1,362 @@
+package goofs;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from chunk to the numeric ids
+ * of the chunkservers holding it, used by the controller
+ * in place of a hash table of entry objects.  Keys and
+ * holders live inline in primitive arrays, so each chunk
+ * costs a few dozen bytes and nothing per chunk is
+ * allocated or traced by the garbage collector.  Slots
+ * are probed linearly and the table doubles once it is
+ * three quarters full.  Not synchronized, callers must
+ * lock around it or, like StripedChunkIndex, discard
+ * anything read while a writer may have been at work.
+ *
+ * @author Elliott Forney
+ */
+public class ChunkIndex
+{
+  /** most holders recorded for a single chunk */
+  public static final int holdersPerChunk = Controller.replicationLevel + 1;
+
+  /** most node ids that fit in a holder slot */
+  public static final int maxNode = Character.MAX_VALUE;
+
+  // bytes each slot takes: file id, sequence and holders
+  private static final int slotBytes = 8 + 8 + 2*holdersPerChunk;
+
+  // most slots, holder array must stay indexable by int
+  private static final int maxCapacity =
+    Integer.highestOneBit(Integer.MAX_VALUE / holdersPerChunk);
+
+  // file id of each slot, ChunkHandle.noFile if empty
+  private long[] fileIds;
+
+  // sequence number of each slot
+  private long[] seqs;
+
+  // holders of each slot, holdersPerChunk per slot
+  // packed to the front, zero marks no holder
+  private char[] holders;
+
+  // chunks in table
+  private long size = 0;
+
+  /**
+   * Create an index sized to hold a number
+   * of chunks without growing.
+   *
+   * @param expectedChunks Chunks expected.
+   */
+  public ChunkIndex(long expectedChunks)
+  {
+    allocate(capacityFor(expectedChunks));
+  }
+
+  /**
+   * Get number of chunks in index.
+   */
+  public long size()
+  {
+    return size;
+  }
+
+  /**
+   * Get number of slots in table.
+   */
+  public int capacity()
+  {
+    return fileIds.length;
+  }
+
+  /**
+   * Get bytes taken by the table.
+   */
+  public long memoryUsage()
+  {
+    return (long)capacity() * slotBytes;
+  }
+
+  /**
+   * Get bytes an index sized for a number of chunks takes.
+   *
+   * @param numChunks Chunks to hold.
+   */
+  public static long memoryFor(long numChunks)
+  {
+    return (long)capacityFor(numChunks) * slotBytes;
+  }
+
+  /**
+   * Check if a chunk is in the index.
+   */
+  public boolean contains(long fileId, long seq)
+  {
+    return find(fileId, seq) >= 0;
+  }
+
+  /**
+   * Get node ids of chunkservers holding a chunk.
+   *
+   * @return Node ids or null if chunk is not in index.
+   */
+  public int[] getHolders(long fileId, long seq)
+  {
+    int slot = find(fileId, seq);
+
+    if (slot < 0)
+      return null;
+
+    int base = slot*holdersPerChunk;
+
+    int n = 0;
+    while ((n < holdersPerChunk) && (holders[base+n] != 0))
+      ++n;
+
+    int[] nodes = new int[n];
+    for (int i = 0; i < n; ++i)
+      nodes[i] = holders[base+i];
+
+    return nodes;
+  }
+
+  /**
+   * Count chunkservers holding a chunk.
+   *
+   * @return Number of holders, zero if chunk is not in index.
+   */
+  public int numHolders(long fileId, long seq)
+  {
+    int slot = find(fileId, seq);
+
+    if (slot < 0)
+      return 0;
+
+    int base = slot*holdersPerChunk;
+
+    int n = 0;
+    while ((n < holdersPerChunk) && (holders[base+n] != 0))
+      ++n;
+
+    return n;
+  }
+
+  /**
+   * Record a chunkserver as holding a chunk,
+   * adding the chunk if it is not yet indexed.
+   *
+   * @param node Node id of chunkserver, 1 to maxNode.
+   * @return False if chunk already has
+   *   holdersPerChunk other holders.
+   */
+  public boolean addHolder(long fileId, long seq, int node)
+  {
+    if ((node < 1) || (node > maxNode))
+      throw new IllegalArgumentException("Bad node id " + node + ".");
+
+    int slot = find(fileId, seq);
+
+    if (slot < 0)
+    {
+      if ((size+1)*4 > (long)capacity()*3)
+        grow();
+
+      slot = -(find(fileId, seq)+1);
+
+      fileIds[slot] = fileId;
+      seqs[slot]    = seq;
+      ++size;
+    }
+
+    int base = slot*holdersPerChunk;
+
+    for (int i = 0; i < holdersPerChunk; ++i)
+    {
+      if (holders[base+i] == node)
+        return true;
+
+      if (holders[base+i] == 0)
+      {
+        holders[base+i] = (char)node;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Forget that a chunkserver holds a chunk.  The
+   * chunk stays indexed even with no holders left.
+   *
+   * @return True if chunkserver was a holder.
+   */
+  public boolean removeHolder(long fileId, long seq, int node)
+  {
+    int slot = find(fileId, seq);
+
+    if (slot < 0)
+      return false;
+
+    int base = slot*holdersPerChunk;
+
+    for (int i = 0; i < holdersPerChunk; ++i)
+      if (holders[base+i] == node)
+      {
+        // keep holders packed to the front
+        System.arraycopy(holders, base+i+1, holders, base+i,
+                         holdersPerChunk-i-1);
+        holders[base+holdersPerChunk-1] = 0;
+        return true;
+      }
+
+    return false;
+  }
+
+  /**
+   * Get handles of every chunk in index.
+   */
+  public ChunkHandle[] handles()
+  {
+    ChunkHandle[] handles = new ChunkHandle[(int)size];
+
+    int n = 0;
+    for (int slot = 0; slot < capacity(); ++slot)
+      if (fileIds[slot] != ChunkHandle.noFile)
+        handles[n++] = new ChunkHandle(fileIds[slot], seqs[slot]);
+
+    return handles;
+  }
+
+  /**
+   * Write every chunk with holders, as its file id,
+   * sequence, number of holders and their node ids,
+   * after the number of chunks written.
+   */
+  public void write(DataOutput out)
+    throws IOException
+  {
+    long n = 0;
+    for (int slot = 0; slot < capacity(); ++slot)
+      if ((fileIds[slot] != ChunkHandle.noFile) &&
+          (holders[slot*holdersPerChunk] != 0))
+        ++n;
+
+    out.writeLong(n);
+
+    for (int slot = 0; slot < capacity(); ++slot)
+    {
+      int base = slot*holdersPerChunk;
+
+      // chunks nobody holds are left out
+      if ((fileIds[slot] == ChunkHandle.noFile) || (holders[base] == 0))
+        continue;
+
+      int k = 0;
+      while ((k < holdersPerChunk) && (holders[base+k] != 0))
+        ++k;
+
+      out.writeLong(fileIds[slot]);
+      out.writeLong(seqs[slot]);
+      out.writeByte(k);
+
+      for (int i = 0; i < k; ++i)
+        out.writeChar(holders[base+i]);
+    }
+  }
+
+  // Slot holding a chunk or, if absent, -(slot+1)
+  // of the empty slot where it would go.  Probing is
+  // bounded so a reader racing a writer, see
+  // StripedChunkIndex, can never spin forever.
+  private int find(long fileId, long seq)
+  {
+    long[] ids = fileIds;
+
+    int mask = ids.length-1;
+    int slot = hash(fileId, seq) & mask;
+
+    for (int probes = 0; probes < ids.length; ++probes)
+    {
+      if (ids[slot] == ChunkHandle.noFile)
+        return -(slot+1);
+
+      if ((ids[slot] == fileId) && (seqs[slot] == seq))
+        return slot;
+
+      slot = (slot+1) & mask;
+    }
+
+    throw new IllegalStateException("No free slot in chunk index.");
+  }
+
+  /**
+   * Hash a chunk, spreading both halves of key over all
+   * bits.  Slots are taken from the low bits, so the high
+   * bits are free for choosing among several indexes.
+   */
+  static int hash(long fileId, long seq)
+  {
+    long h = fileId*0x9E3779B97F4A7C15l + seq;
+
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDl;
+    h ^= h >>> 33;
+
+    return (int)h;
+  }
+
+  // smallest power of two table keeping
+  // numChunks under three quarters full
+  private static int capacityFor(long numChunks)
+  {
+    int capacity = 16;
+
+    while (((long)capacity*3 < numChunks*4) && (capacity < maxCapacity))
+      capacity <<= 1;
+
+    return capacity;
+  }
+
+  // allocate empty table with given number of slots,
+  // marked empty before a reader could see it
+  private void allocate(int capacity)
+  {
+    long[] ids = new long[capacity];
+    Arrays.fill(ids, ChunkHandle.noFile);
+
+    seqs    = new long[capacity];
+    holders = new char[capacity*holdersPerChunk];
+    fileIds = ids;
+  }
+
+  // double table and reinsert every chunk
+  private void grow()
+  {
+    if (capacity() >= maxCapacity)
+      throw new IllegalStateException("Chunk index full at " +
+                                      size + " chunks.");
+
+    long[] oldFileIds = fileIds;
+    long[] oldSeqs    = seqs;
+    char[] oldHolders = holders;
+
+    allocate(2*oldFileIds.length);
+
+    for (int i = 0; i < oldFileIds.length; ++i)
+      if (oldFileIds[i] != ChunkHandle.noFile)
+      {
+        int slot = -(find(oldFileIds[i], oldSeqs[i])+1);
+
+        fileIds[slot] = oldFileIds[i];
+        seqs[slot]    = oldSeqs[i];
+
+        System.arraycopy(oldHolders, i*holdersPerChunk,
+                         holders, slot*holdersPerChunk, holdersPerChunk);
+      }
+  }
+}
@@ -2,12 +2,17 @@ package goofs;
 
 import java.io.*;
 import java.lang.Thread;
+import java.lang.management.ManagementFactory;
 import java.net.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Hashtable;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Storage node in a goofs filesystem.
@@ -29,25 +34,57 @@ public class ChunkServer
   // controller identification
   HostID contID;
 
-  // list of descriptors for all chunks on this node
-  private ArrayList<ChunkDescriptor> chunksList =
-    new ArrayList<ChunkDescriptor>();  
-
-  // table of descriptors for all chunks on this node
-  private Hashtable<String, ChunkDescriptor> chunksTable =
-    new Hashtable<String, ChunkDescriptor>();
+  // rack and zone this chunkserver is in, reported
+  // to the controller, null if not given
+  private String rack = null;
+  private String zone = null;
+
+  // handles of all chunks on this node by digest bucket, so
+  // the chunks of a few buckets are listed without walking
+  // them all, a bucket is null until it holds a chunk
+  private ArrayList<LinkedHashSet<ChunkHandle>> chunks =
+    new ArrayList<LinkedHashSet<ChunkHandle>>(
+      Collections.nCopies(ChunkDigest.numBuckets,
+                          (LinkedHashSet<ChunkHandle>)null));
+
+  // summary of all chunks on this node, sent in place
+  // of listing them with each major heartbeat
+  private ChunkDigest digest = new ChunkDigest();
+
+  // pathnames of files with chunks on this node by
+  // file id, reported so the controller can rebuild
+  // its namespace, guarded by chunksLock
+  private Hashtable<Long, File> fileNames =
+    new Hashtable<Long, File>();
 
   // lock for chunks data structures
   private Object chunksLock = new Object();
 
-  // list of descriptors for all chunks added to this
+  // list of handles for all chunks added to this
   // node since the last minor heartbeat was sent
-  private ArrayList<ChunkDescriptor> newChunks =
-    new ArrayList<ChunkDescriptor>();
+  private ArrayList<ChunkHandle> newChunks =
+    new ArrayList<ChunkHandle>();
 
   //
-  private ArrayList<ChunkDescriptor> corruptChunks =
-    new ArrayList<ChunkDescriptor>();
+  private ArrayList<ChunkHandle> corruptChunks =
+    new ArrayList<ChunkHandle>();
+
+  // chunk reads and writes in progress or
+  // waiting on chunksLock, reported as queue depth
+  private AtomicInteger pendingIO = new AtomicInteger();
+
+  // bytes of chunks read and written so far
+  private AtomicLong bytesRead    = new AtomicLong();
+  private AtomicLong bytesWritten = new AtomicLong();
+
+  // bytes of chunks stored here, changed under chunksLock
+  private AtomicLong bytesStored = new AtomicLong();
+
+  // counts and time at last load report, rates
+  // are taken over the time between reports
+  private long lastBytesRead    = 0;
+  private long lastBytesWritten = 0;
+  private long lastLoadTime     = System.nanoTime();
 
   /**
    *  Create new goofs storage node.
@@ -61,6 +98,18 @@ public class ChunkServer
     this.contID = contID;
   }
 
+  /**
+   * Set rack and zone this chunkserver reports it is in.
+   *
+   * @param rack Rack name, null if unknown.
+   * @param zone Zone name, null if unknown.
+   */
+  public void setLocation(String rack, String zone)
+  {
+    this.rack = rack;
+    this.zone = zone;
+  }
+
   /**
    * Run chunkserver.
    * Listen for connections and start message handlers
@@ -101,25 +150,37 @@ public class ChunkServer
       synchronized (corruptChunks)
       {
         // create a new major heartbeat message
+        // summing up all our chunks
         majorHeartbeat =
-          new MajorHeartbeatMessage(csID, contID,
-            chunksList.toArray(new ChunkDescriptor[0]),
-            corruptChunks.toArray(new ChunkDescriptor[0]));
+          new MajorHeartbeatMessage(csID, contID, digest.copy(),
+            corruptChunks.toArray(new ChunkHandle[0]));
       }
     }
 
-    try {
-      // send major heartbeat message
-      majorHeartbeat.send();
+    majorHeartbeat.setLoad(measureLoad());
+    majorHeartbeat.setLocation(rack, zone);
 
-      // clear new chunks list
-      synchronized (newChunks) {
-        newChunks.clear();
-      }
+    try
+    {
+      // send summary, controller replies
+      // with buckets it disagrees on
+      majorHeartbeat = majorHeartbeat.send();
 
       synchronized (corruptChunks) {
         corruptChunks.clear();
       }
+
+      int[] stale = majorHeartbeat.getStaleBuckets();
+
+      // in step with controller
+      if (stale.length == 0)
+        return;
+
+      // list chunks of stale buckets
+      majorHeartbeat = listBuckets(stale);
+      majorHeartbeat.setLocation(rack, zone);
+
+      majorHeartbeat.send();
     }
     catch (Exception e) {
       throw new Exception("Failed to send major heartbeat: " +
@@ -127,6 +188,57 @@ public class ChunkServer
     }
   }
 
+  // Build a major heartbeat listing every chunk
+  // in some buckets, with pathnames of their files.
+  private MajorHeartbeatMessage listBuckets(int[] buckets)
+  {
+    ArrayList<ChunkHandle> listed = new ArrayList<ChunkHandle>();
+    Hashtable<Long, File> files = new Hashtable<Long, File>();
+
+    synchronized (chunksLock)
+    {
+      for (int i = 0; i < buckets.length; ++i)
+      {
+        LinkedHashSet<ChunkHandle> bucket = chunks.get(buckets[i]);
+
+        if (bucket == null)
+          continue;
+
+        Iterator<ChunkHandle> chunkItr = bucket.iterator();
+
+        while (chunkItr.hasNext())
+        {
+          ChunkHandle h = chunkItr.next();
+
+          listed.add(h);
+
+          // report the namespace of chunks listed
+          File f = fileNames.get(h.getFileId());
+          if (f != null)
+            files.put(h.getFileId(), f);
+        }
+      }
+    }
+
+    MajorHeartbeatMessage mhbm =
+      new MajorHeartbeatMessage(csID, contID, buckets,
+        listed.toArray(new ChunkHandle[listed.size()]));
+
+    long[] fileIds = new long[files.size()];
+    File[] paths   = new File[files.size()];
+
+    Iterator<Long> itr = files.keySet().iterator();
+    for (int i = 0; itr.hasNext(); ++i)
+    {
+      fileIds[i] = itr.next();
+      paths[i]   = files.get(fileIds[i]);
+    }
+
+    mhbm.setFiles(fileIds, paths);
+
+    return mhbm;
+  }
+
   /**
    *
    */
@@ -142,11 +254,14 @@ public class ChunkServer
         // create a new minor heartbeat message
         minorHeartbeat =
           new MinorHeartbeatMessage(csID, contID,
-            newChunks.toArray(new ChunkDescriptor[0]),
-            corruptChunks.toArray(new ChunkDescriptor[0]));
+            newChunks.toArray(new ChunkHandle[0]),
+            corruptChunks.toArray(new ChunkHandle[0]));
       }
     }
 
+    minorHeartbeat.setLoad(measureLoad());
+    minorHeartbeat.setLocation(rack, zone);
+
     try {
       // send minor heartbeat message
       minorHeartbeat.send();
@@ -166,81 +281,184 @@ public class ChunkServer
     }
   }
 
+  // Measure load on this chunkserver since the last
+  // time it was measured, sent with each heartbeat.
+  private synchronized NodeLoad measureLoad()
+  {
+    // chunk directory may not exist until first write
+    File d = new File(Chunk.dir);
+    if (!d.exists())
+      d = d.getParentFile();
+
+    long now     = System.nanoTime();
+    long read    = bytesRead.get();
+    long written = bytesWritten.get();
+
+    double secs = Math.max((now - lastLoadTime) / 1e9, 1e-3);
+
+    long readRate  = (long)((read    - lastBytesRead)    / secs);
+    long writeRate = (long)((written - lastBytesWritten) / secs);
+
+    lastLoadTime     = now;
+    lastBytesRead    = read;
+    lastBytesWritten = written;
+
+    // negative if load average is not available
+    double cpuLoad =
+      ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    if (cpuLoad >= 0)
+      cpuLoad /= Runtime.getRuntime().availableProcessors();
+
+    return new NodeLoad(d.getUsableSpace(), d.getTotalSpace(),
+                        bytesStored.get(), pendingIO.get(),
+                        readRate, writeRate, cpuLoad);
+  }
+
   // check if chunk is currently stored here
   // must be synchronized by parent
-  private boolean exists(ChunkDescriptor chunkDesc)
+  private boolean exists(ChunkHandle handle)
   {
-    return chunksTable.containsKey(chunkDesc.toSeqString());
+    LinkedHashSet<ChunkHandle> bucket =
+      chunks.get(ChunkDigest.bucketOf(handle));
+
+    return (bucket != null) && bucket.contains(handle);
   }
 
-  // submit a new chunk
-  private void submit(ChunkDescriptor chunkDesc, byte[] data)
+  // add a chunk to its bucket, returns false if it
+  // was already there, must be synchronized by parent
+  private boolean addChunk(ChunkHandle handle)
+  {
+    int b = ChunkDigest.bucketOf(handle);
+
+    LinkedHashSet<ChunkHandle> bucket = chunks.get(b);
+
+    if (bucket == null)
+    {
+      bucket = new LinkedHashSet<ChunkHandle>();
+      chunks.set(b, bucket);
+    }
+
+    return bucket.add(handle);
+  }
+
+  // submit a new chunk of file f, data starts at
+  // chunkOffset, returns true if chunk was written
+  private boolean submit(ChunkHandle handle, File f, byte[] data,
+                         int chunkOffset)
+  {
+    pendingIO.incrementAndGet();
+    try {
+      return write(handle, f, data, chunkOffset);
+    }
+    finally {
+      pendingIO.decrementAndGet();
+    }
+  }
+
+  // write chunk for submit
+  private boolean write(ChunkHandle handle, File f, byte[] data,
+                        int chunkOffset)
   {
     synchronized (chunksLock)
     {
+      // remember pathname for our namespace report
+      if (f != null)
+        fileNames.put(handle.getFileId(), f);
+      else
+        f = fileNames.get(handle.getFileId());
+
       try
       {
         // working chunk
         Chunk c;
 
+        // bytes of chunk before this write
+        long oldSize = 0;
+
         // see if a chunk already exists
-        // for the given descriptor
-        if (exists(chunkDesc))
+        // for the given handle
+        if (exists(handle))
         {
           // read the existing chunk
-          c = Chunk.read(chunkDesc);
+          c = Chunk.read(handle);
 
           // get data from existing chunk
           byte[] readData = c.getData();
+          oldSize = readData.length;
 
           // if existing chunk had more data
-          if (readData.length > data.length)
+          if (readData.length > chunkOffset+data.length)
           {
             //System.arraycopy(sourceArray, sourceStartIndex, targetArray, targetStartIndex, length);
 
-            // copy current data on top of start of previous data
-            System.arraycopy(data, 0, readData, 0, data.length);
+            // copy current data on top of previous data
+            System.arraycopy(data, 0, readData, chunkOffset, data.length);
 
             //
             c.setData(readData);
           }
+          else if (chunkOffset > 0)
+          {
+            // keep start of previous data
+            byte[] newData = Arrays.copyOf(readData, chunkOffset+data.length);
+            System.arraycopy(data, 0, newData, chunkOffset, data.length);
+
+            c.setData(newData);
+          }
           else
             //
             c.setData(data);
         }
+        else if (chunkOffset > 0)
+          // can't apply changed slices to nothing
+          throw new Exception("Chunk does not exist.");
         else
           // create a new chunk
-          c = new Chunk(chunkDesc, data);
+          c = new Chunk(handle, f, data);
 
         // write the chunk to disk
         c.write();
+
+        bytesWritten.addAndGet(data.length);
+        bytesStored.addAndGet(c.getData().length - oldSize);
       }
       catch (Exception e)
       {
-        System.out.println("Failed to submit chunk " + chunkDesc +
+        System.out.println("Failed to submit chunk " + handle +
                            ": " + e.getMessage());
-        return;
+        return false;
       }
 
       // if chunk is not already listed, i.e. new chunk
-      if (!chunksTable.containsKey(chunkDesc.toSeqString()))
+      if (addChunk(handle))
       {
-        // add chunk descriptor to list
-        chunksList.add(chunkDesc);
-
-        // add chunk descriptor to table
-        chunksTable.put(chunkDesc.toSeqString(), chunkDesc);
+        digest.add(handle);
 
         synchronized (newChunks) {
           // add to new chunks list
-          newChunks.add(chunkDesc);
+          newChunks.add(handle);
         }
       }
     }
+
+    return true;
   }
 
   // retrieve an existing chunk
-  private byte[] retrieve(ChunkDescriptor chunkDesc)
+  private byte[] retrieve(ChunkHandle handle)
+    throws Exception
+  {
+    pendingIO.incrementAndGet();
+    try {
+      return read(handle);
+    }
+    finally {
+      pendingIO.decrementAndGet();
+    }
+  }
+
+  // read chunk for retrieve
+  private byte[] read(ChunkHandle handle)
     throws Exception
   {
     byte[] data = null;
@@ -253,9 +471,11 @@ public class ChunkServer
       {
         try
         {
-          Chunk c = Chunk.read(chunkDesc);
+          Chunk c = Chunk.read(handle);
           data = c.getData();
           success = true;
+
+          bytesRead.addAndGet(data.length);
         }
         catch (Exception e)
         {
@@ -263,7 +483,7 @@ public class ChunkServer
           System.out.println(e.getMessage());
 
           try {
-            handleCorruption(chunkDesc);
+            handleCorruption(handle);
           }
           catch (Exception ec) {
             throw new Exception("Failed to correct corruption: " +
@@ -277,16 +497,16 @@ public class ChunkServer
   }
 
   // synchronized by caller
-  private void handleCorruption(ChunkDescriptor chunkDesc)
+  private void handleCorruption(ChunkHandle handle)
     throws Exception
   {
     // add to corrupted list
     synchronized (corruptChunks) {
-      corruptChunks.add(chunkDesc);
+      corruptChunks.add(handle);
     }
 
     GetHoldersMessage ghm =
-      new GetHoldersMessage(csID, contID, chunkDesc);
+      new GetHoldersMessage(csID, contID, handle);
 
     try {
       ghm = ghm.send();
@@ -307,17 +527,17 @@ public class ChunkServer
         
     if (otherHolders.size() == 0)
       throw new Exception("No other chunkservers hold " +
-                          chunkDesc + ".");
+                          handle + ".");
 
     FixCorruptionMessage fcm =
       new FixCorruptionMessage(
-        csID, otherHolders.toArray(new HostID[0]), chunkDesc);
+        csID, otherHolders.toArray(new HostID[0]), handle);
 
     try {
       fcm = fcm.send();
     }
     catch (Exception e) {
-      throw new Exception("Failed to retrieve " + chunkDesc +
+      throw new Exception("Failed to retrieve " + handle +
                           ": " + e.getMessage());
     }
 
@@ -325,30 +545,62 @@ public class ChunkServer
   }
 
 
+  // remove a chunk from disk, returns
+  // false if it was not stored here
+  private boolean delete(ChunkHandle handle)
+  {
+    synchronized (chunksLock)
+    {
+      LinkedHashSet<ChunkHandle> bucket =
+        chunks.get(ChunkDigest.bucketOf(handle));
+
+      if ((bucket == null) || !bucket.remove(handle))
+        return false;
+
+      digest.remove(handle);
+
+      // not yet reported, don't report it now
+      synchronized (newChunks) {
+        newChunks.remove(handle);
+      }
+
+      bytesStored.addAndGet(-Chunk.size(handle));
+      Chunk.delete(handle);
+    }
+
+    return true;
+  }
+
   // remove all chunks from disk and quit
   private void quit()
   {
     synchronized (chunksLock)
     {
-      //
-      ListIterator<ChunkDescriptor> itr =
-        chunksList.listIterator();
-
-      //
-      while (itr.hasNext())
+      for (int b = 0; b < chunks.size(); ++b)
       {
-        //
-        ChunkDescriptor curDesc =
-          itr.next();
+        if (chunks.get(b) == null)
+          continue;
 
         //
-        Chunk.delete(curDesc);
+        Iterator<ChunkHandle> itr =
+          chunks.get(b).iterator();
 
         //
-        itr.remove();
+        while (itr.hasNext())
+        {
+          //
+          ChunkHandle curHandle =
+            itr.next();
 
-        //
-        chunksTable.remove(curDesc.toSeqString());
+          //
+          Chunk.delete(curHandle);
+
+          //
+          itr.remove();
+
+          //
+          digest.remove(curHandle);
+        }
       }
 
       //
@@ -423,7 +675,19 @@ public class ChunkServer
         SubmitDataMessage sdm = (SubmitDataMessage)m;
 
         // write chunk to disk
-        submit(sdm.getChunkDescriptor(), sdm.getData());
+        boolean persisted = submit(sdm.getHandle(), sdm.getFile(),
+                                   sdm.getData(), sdm.getChunkOffset());
+
+        // fan-out writes are not forwarded,
+        // acknowledge back to the sender instead
+        if (sdm.isFanOut())
+        {
+          sdm.acknowledge(persisted);
+
+          // swap source and dest and send back
+          sdm.swapSrcDst();
+          return sdm;
+        }
 
         // set next message destination
         // if it has one
@@ -438,7 +702,7 @@ public class ChunkServer
           }
           catch (Exception e) {
             System.out.println("Unable to forward data: " +
-                               sdm.getChunkDescriptor() + ": " + e.getMessage());
+                               sdm.getHandle() + ": " + e.getMessage());
           }
         }
 
@@ -457,7 +721,7 @@ public class ChunkServer
 
         // get data from chunk
         // will be null if error or corruption
-        byte[] data = retrieve(rdm.getChunkDescriptor());
+        byte[] data = retrieve(rdm.getHandle());
 
         // if corruption or error
         if (data == null)
@@ -471,7 +735,7 @@ public class ChunkServer
             }
             catch (Exception e) {
               System.out.println("Unable to forward request: " +
-                                 rdm.getChunkDescriptor() + ": " + e.getMessage());
+                                 rdm.getHandle() + ": " + e.getMessage());
               // return failure message if we can't
               reply = rdm;
             }
@@ -501,13 +765,52 @@ public class ChunkServer
         // cast message
         FixCorruptionMessage fcm = (FixCorruptionMessage)m;
 
-        fcm.setChunk(Chunk.read(fcm.getChunkDescriptor()));
+        fcm.setChunk(Chunk.read(fcm.getHandle()));
 
         // swap source and dest and send back
         fcm.swapSrcDst();
         return fcm;
       }
 
+      // slice checksums of chunks, without data
+      else if (m.kind == Message.Kind.GetChecksums)
+      {
+        // cast message
+        GetChecksumsMessage gcm = (GetChecksumsMessage)m;
+
+        long[] seqs = gcm.getSeqs();
+
+        Hash[][] checkSums = new Hash[seqs.length][];
+
+        synchronized (chunksLock)
+        {
+          for (int i = 0; i < seqs.length; ++i)
+          {
+            ChunkHandle handle =
+              new ChunkHandle(gcm.getFileId(), seqs[i]);
+
+            // chunks we don't hold or can't read stay
+            // null so the client sends them in full
+            if (exists(handle))
+            {
+              try {
+                checkSums[i] = Chunk.readCheckSums(handle);
+              }
+              catch (Exception e) {
+                System.out.println("Failed to read checksums of " +
+                                   handle + ": " + e.getMessage());
+              }
+            }
+          }
+        }
+
+        gcm.setCheckSums(checkSums);
+
+        // swap source and dest and send back
+        gcm.swapSrcDst();
+        return gcm;
+      }
+
       // send minor heartbeat on request
       else if (m.kind == Message.Kind.RequestMinor)
       {
@@ -527,28 +830,51 @@ public class ChunkServer
       {
         FixReplicationMessage frm = (FixReplicationMessage)m; 
 
-        ChunkDescriptor chunkDesc = frm.getChunkDescriptor();
+        ChunkHandle handle = frm.getHandle();
 
-        byte[] data = retrieve(chunkDesc);
+        try
+        {
+          byte[] data = retrieve(handle);
 
-        HostID[] newHolder = new HostID[1];
-        newHolder[0] = frm.getNewHolder();
+          // pass on pathname so new holder can report it
+          File f;
+          synchronized (chunksLock) {
+            f = fileNames.get(handle.getFileId());
+          }
 
-        SubmitDataMessage sdm =
-          new SubmitDataMessage(csID, newHolder,
-                                chunkDesc, data);
+          HostID[] newHolder = new HostID[1];
+          newHolder[0] = frm.getNewHolder();
+
+          // fan-out so new holder acknowledges once persisted
+          SubmitDataMessage sdm =
+            new SubmitDataMessage(csID, newHolder,
+                                  handle, f, data, true);
 
-        try {
           // send chunk submission
-          sdm.send();
+          sdm = sdm.send();
+
+          frm.setReplicated(sdm.isPersisted(), data.length);
         }
         catch (Exception e) {
           System.out.println("Unable to forward data: " +
-                              chunkDesc + ": " + e.getMessage());
+                              handle + ": " + e.getMessage());
+          frm.setReplicated(false, 0);
         }
 
-        // no reply expected
-        return null;
+        // tell controller how the copy went
+        frm.swapSrcDst();
+        return frm;
+      }
+
+      // drop a chunk moved to another chunkserver
+      else if (m.kind == Message.Kind.DeleteChunk)
+      {
+        DeleteChunkMessage dcm = (DeleteChunkMessage)m;
+
+        dcm.setDeleted(delete(dcm.getHandle()));
+
+        dcm.swapSrcDst();
+        return dcm;
       }
 
       // inappropriate message kind
@@ -566,6 +892,8 @@ public class ChunkServer
     int    csPort   = 8000;       // chunkserver port number
     int    contPort = 8000;       // controller port number
     String contHost = "horde-0";  // controller host name
+    String rack     = null;       // rack we are in
+    String zone     = null;       // zone we are in
 
     try
     {
@@ -584,6 +912,14 @@ public class ChunkServer
         else if (args[i].equals("--cont-host"))
           contHost = args[++i];
 
+        // set rack reported to controller
+        else if (args[i].equals("--rack"))
+          rack = args[++i];
+
+        // set zone reported to controller
+        else if (args[i].equals("--zone"))
+          zone = args[++i];
+
         // bad command line argument
         else
           throw new Exception("Bad argument.");
@@ -601,6 +937,7 @@ public class ChunkServer
       // initialize new chunkserver
       ChunkServer cs = new ChunkServer(new HostID(csPort),
                                        new HostID(contHost, contPort));
+      cs.setLocation(rack, zone);
 
       // start chunkserver thread
       cs.start();
@@ -658,11 +995,20 @@ public class ChunkServer
         // list all chunks currently stored
         else if (cmd.equals("chunks"))
         {
-          synchronized (cs.chunksList)
+          synchronized (cs.chunksLock)
           {
-            for (int i = 0; i < cs.chunksList.size(); ++i)
-              System.out.println(i + ") " +
-                                 cs.chunksList.get(i));
+            int i = 0;
+
+            for (int b = 0; b < cs.chunks.size(); ++b)
+            {
+              if (cs.chunks.get(b) == null)
+                continue;
+
+              Iterator<ChunkHandle> itr = cs.chunks.get(b).iterator();
+
+              while (itr.hasNext())
+                System.out.println(i++ + ") " + itr.next());
+            }
           }
         }
 
@@ -1,7 +1,13 @@
 package goofs;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Submits, retrieves and modifies files
@@ -21,6 +27,40 @@ public class Client
   // id of controller this client will contact
   private HostID controllerID;
 
+  // number of replicas that must acknowledge a write,
+  // zero means chunks are forwarded along a chain
+  // and no acknowledgement is expected
+  private int writeQuorum = 0;
+
+  // seconds to wait for a write quorum
+  private int writeTimeoutSecs = 30;
+
+  /** maximum chunks held in holder cache */
+  public static final int holderCacheSize = 64*1024;
+
+  /** seconds before cached holders expire */
+  public static final int holderCacheSecs = 30;
+
+  // number of chunks sent or fetched at once
+  private int parallelism = 4;
+
+  /** chunks looked up at once when holders are not cached */
+  public static final int prefetchChunks = 256;
+
+  // most chunks prefetched ahead of streaming readers
+  private int readAhead = 8;
+
+  // if true, chunks already stored are compared by
+  // slice checksums and only changed slices are sent
+  private boolean deltaSync = true;
+
+  // response times of chunkservers we have read from
+  private LatencyTracker latency = new LatencyTracker();
+
+  // chunkservers holding recently used chunks
+  private HolderCache holderCache =
+    new HolderCache(holderCacheSize, holderCacheSecs*1000l);
+
   /**
    *  Create a new goofs client
    * @param controllerID ID of controller to contact
@@ -32,111 +72,635 @@ public class Client
     this.clientID = new HostID("client", 8000);
   }
 
-  // submit a new file
+  /**
+   * Set the number of replicas that must persist each
+   * chunk before a submission is acknowledged.  Chunks are
+   * then sent to all replicas in parallel.
+   *
+   * @param writeQuorum Number of replicas to wait for,
+   *   zero to forward chunks along a chain without
+   *   acknowledgement.
+   * @param writeTimeoutSecs Seconds to wait for a quorum.
+   */
+  public void setWriteQuorum(int writeQuorum, int writeTimeoutSecs)
+  {
+    this.writeQuorum      = writeQuorum;
+    this.writeTimeoutSecs = writeTimeoutSecs;
+  }
+
+  /**
+   * Set the number of chunks that are sent
+   * to chunkservers at the same time.
+   *
+   * @param parallelism Chunks in flight at once.
+   */
+  public void setParallelism(int parallelism)
+    throws Exception
+  {
+    if (parallelism < 1)
+      throw new Exception("Parallelism must be at least one.");
+
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Set whether submitting a file already stored sends
+   * only the slices that have changed.
+   *
+   * @param deltaSync True to compare checksums,
+   *   false to always send every chunk.
+   */
+  public void setDeltaSync(boolean deltaSync)
+  {
+    this.deltaSync = deltaSync;
+  }
+
+  // Submit a new file, streaming it up through a pool of
+  // chunk buffers.  This thread reads chunks and hands them
+  // to parallelism upload workers, so at most twice that
+  // many chunks are ever held in memory.
   private void submitFile(File f)
     throws Exception
   {
-    // open a new input stream on file
-    FileInputStream fis = new FileInputStream(f);
+    // length of file in bytes
+    long length = f.length();
 
-    // byte data for file
-    byte[] fileData = new byte[(int)f.length()];
+    // number of chunks, rounded up
+    long numChunks = (length + Chunk.maxSize - 1) / Chunk.maxSize;
 
-    try {
-      // read bytes from file
-      fis.read(fileData);
+    //
+    if (numChunks == 0)
+      throw new Exception("Cannot submit empty file.");
+
+    // size of trailing chunk
+    int lastChunkSize = (int)(length - (numChunks-1)*Chunk.maxSize);
+
+    System.out.println("Breaking " + f + " into " + numChunks + " blocks.");
+    System.out.println("Trailing block size is " + lastChunkSize + " bytes");
 
-      // close input stream
-      fis.close();
+    // id chunks of file are known by, assigned
+    // by controller if file is new
+    long fileId = resolve(f, true);
+
+    // chunkservers already holding each chunk in the
+    // current batch, looked up a batch at a time so we
+    // never hold an entry for every chunk of a huge file
+    HostID[][] holders = null;
+
+    // checksums stored by each holder of each
+    // chunk in the current batch
+    Hash[][][] storedSums = null;
+
+    // reusable buffers for chunks being read and sent,
+    // enough that reading runs ahead of the workers
+    ChunkBufferPool pool =
+      new ChunkBufferPool(2*parallelism, Chunk.maxSize);
+
+    // chunks read but not yet picked up by a worker
+    ArrayBlockingQueue<UploadTask> queue =
+      new ArrayBlockingQueue<UploadTask>(parallelism);
+
+    TransferProgress progress =
+      new TransferProgress("Uploaded", numChunks, length);
+
+    // open a channel on file
+    FileInputStream fis;
+    try {
+      fis = new FileInputStream(f);
     }
     catch (Exception e) {
       throw new Exception("Error reading file: " + e.getMessage());
     }
 
-    // number of chunks
-    int numChunks = fileData.length / Chunk.maxSize;
+    FileChannel channel = fis.getChannel();
 
-    // size of trailing chunk
-    int lastChunkSize = fileData.length % Chunk.maxSize;
+    // start workers sending chunks
+    UploadWorker[] workers = startUploadWorkers(queue, pool, progress);
 
-    // if we have a trailing chunk
-    if (lastChunkSize > 0)
-      // we have one extra chunk
-      ++numChunks;
+    progress.startReporting();
 
-    else
-      // otherwise, last chunk is full sized
-      lastChunkSize = Chunk.maxSize;
+    try
+    {
+      // read each chunk in turn, stop early
+      // if a worker has failed
+      for (long i = 0; (i < numChunks) && !progress.hasFailed(); ++i)
+      {
+        ChunkHandle handle = new ChunkHandle(fileId, i);
 
-    //
-    if (numChunks == 0)
-      throw new Exception("Cannot submit empty file.");
+        // index of chunk within current batch
+        int b = (int)(i % prefetchChunks);
 
-    System.out.println("Breaking " + f + " into " + numChunks + " blocks.");
-    System.out.println("Trailing block size is " + lastChunkSize + " bytes");
+        // start of a new batch
+        if (b == 0)
+        {
+          holders = lookupRange(fileId, i,
+            (int)Math.min(prefetchChunks, numChunks-i));
+
+          if (deltaSync)
+            storedSums = getStoredSums(fileId, holders, i);
+        }
+
+        int chunkLength =
+          (i == numChunks-1) ? lastChunkSize : Chunk.maxSize;
+
+        // wait for a free buffer, this is what
+        // bounds memory while chunks are in flight
+        byte[] buffer = pool.acquire();
+
+        try {
+          readFully(channel, buffer, chunkLength);
+        }
+        catch (Exception e) {
+          pool.release(buffer);
+          progress.fail(new Exception("Error reading file: " + e.getMessage()));
+          break;
+        }
+
+        // compare with what holders already store
+        int[] span = null;
+        if (deltaSync)
+          span = changedSpan(buffer, chunkLength, storedSums[b]);
+
+        byte[] data = buffer;
+        int chunkOffset = 0;
 
-    // array holding all chunk descriptors
-    ChunkDescriptor[] chunkDesc = new ChunkDescriptor[numChunks];
+        // unchanged on every holder, nothing to send
+        if ((span != null) && (span[0] == span[1]))
+        {
+          pool.release(buffer);
+          progress.chunkSkipped(chunkLength);
+          continue;
+        }
 
-    // two-dim array holding chunk, data
-    byte[][] chunkData = new byte[numChunks][];
-    for (int i = 0; i < numChunks-1; ++i)
-      chunkData[i] = new byte[Chunk.maxSize];
-    chunkData[numChunks-1] = new byte[lastChunkSize];
+        // only changed slices are sent
+        else if (span != null)
+        {
+          data = Arrays.copyOfRange(buffer, span[0], span[1]);
+          chunkOffset = span[0];
+          pool.release(buffer);
+        }
 
-    // for each chunk except trailing
-    int curChunk;
-    for (curChunk = 0; curChunk < numChunks-1; ++curChunk)
+        // trailing chunk is sent at its exact size
+        else if (chunkLength < buffer.length)
+        {
+          data = Arrays.copyOf(buffer, chunkLength);
+          pool.release(buffer);
+        }
+
+        // buffer is released once chunk is sent
+        queue.put(new UploadTask(handle, f, holders[b], data, chunkOffset));
+      }
+    }
+    finally
     {
-      int offset = curChunk*Chunk.maxSize;
-      chunkDesc[curChunk] = new ChunkDescriptor(f, offset);
+      // close file channel
+      channel.close();
 
-      /*
-      // for each byte to store in current chunkData element
-      for (int curByte = 0; curByte < Chunk.maxSize; ++curByte)
-        // grab chunk byte from file bytes
-        chunkData[curChunk][curByte] = fileData[offset+curByte];    
-      */
-      System.arraycopy(fileData, offset,
-                       chunkData[curChunk], 0, Chunk.maxSize);
+      // wait for workers to send what is queued
+      stopUploadWorkers(workers, queue);
+
+      progress.stopReporting();
     }
 
-    // take care of trailing chunk
+    if (progress.hasFailed())
+      throw progress.getFailure();
+
+    System.out.println(progress);
+
+    // all chunks are in, record new file length
+    System.out.println("Submitted " + putFileInfo(f, length));
+  }
+
+  // Ask each holder of a batch of chunks starting at
+  // firstSeq for the slice checksums it stores, one message
+  // per holder.  Result is indexed by chunk in batch then
+  // by holder, null where a holder lacks the chunk or failed.
+  private Hash[][][] getStoredSums(long fileId, HostID[][] holders,
+                                   long firstSeq)
+  {
+    Hash[][][] sums = new Hash[holders.length][][];
+
+    // chunks in batch held by each chunkserver
+    Hashtable<String, ArrayList<Integer>> byHost =
+      new Hashtable<String, ArrayList<Integer>>();
+    Hashtable<String, HostID> hosts = new Hashtable<String, HostID>();
+
+    for (int i = 0; i < holders.length; ++i)
     {
-      int offset = curChunk*Chunk.maxSize;
-      chunkDesc[curChunk] = new ChunkDescriptor(f, offset);
+      HostID[] cur = holders[i];
+      sums[i] = new Hash[cur.length][];
 
-      /*
-      for (int curByte = 0; curByte < lastChunkSize; ++curByte)
-        chunkData[curChunk][curByte] =
-          fileData[(curChunk*Chunk.maxSize)+curByte];
-      */
-      System.arraycopy(fileData, curChunk*Chunk.maxSize,
-                       chunkData[curChunk], 0, lastChunkSize);
-    }
+      for (int j = 0; j < cur.length; ++j)
+      {
+        String key = cur[j].toString();
+
+        if (!byHost.containsKey(key))
+        {
+          byHost.put(key, new ArrayList<Integer>());
+          hosts.put(key, cur[j]);
+        }
 
-    // throw an exception if we didn't wind up at the end
-    if (++curChunk != numChunks)
-      throw new Exception("Failed to initialize all chunks.");
+        byHost.get(key).add(i);
+      }
+    }
 
-    // submit each chunk to goofs filesystem
-    for (int i = 0; i < numChunks; ++i)
+    for (String key : byHost.keySet())
     {
-      // message to ask controller for proper chunkservers
-      GetHoldersMessage ghm =
-        new GetHoldersMessage(clientID, controllerID, chunkDesc[i]);
+      ArrayList<Integer> batchList = byHost.get(key);
 
+      long[] seqs = new long[batchList.size()];
+      for (int i = 0; i < seqs.length; ++i)
+        seqs[i] = firstSeq + batchList.get(i);
+
+      GetChecksumsMessage gcm =
+        new GetChecksumsMessage(clientID, hosts.get(key), fileId, seqs);
+
+      Hash[][] reply;
       try {
-        // send request for chunkservers
-        ghm = ghm.send();
+        reply = gcm.send().getCheckSums();
       }
       catch (Exception e) {
-        throw new Exception("Failed to contact controller: " + e.getMessage());
+        // leave as null, these chunks are sent in full
+        System.out.println("Failed to get checksums from " +
+                           hosts.get(key) + ": " + e.getMessage());
+        continue;
+      }
+
+      // put each reply under its chunk and holder
+      for (int i = 0; i < seqs.length; ++i)
+      {
+        int b = batchList.get(i);
+
+        for (int j = 0; j < holders[b].length; ++j)
+          if (holders[b][j].toString().equals(key))
+            sums[b][j] = reply[i];
       }
+    }
+
+    return sums;
+  }
+
+  // Find the bytes of a chunk that differ from what its
+  // holders store, as {start, end}.  Start equals end if
+  // nothing differs.  Returns null if the chunk must be
+  // sent whole, ie it has no holders or some holder does
+  // not have it.
+  private static int[] changedSpan(byte[] data, int length, Hash[][] stored)
+    throws Exception
+  {
+    if (stored.length == 0)
+      return null;
+
+    for (int j = 0; j < stored.length; ++j)
+      if (stored[j] == null)
+        return null;
+
+    Hash[] local = Chunk.sliceSums(data, length);
+
+    // first and one past last changed slice
+    int first = local.length;
+    int last  = 0;
+
+    for (int i = 0; i < local.length; ++i)
+      for (int j = 0; j < stored.length; ++j)
+        if ((i >= stored[j].length) || !local[i].equals(stored[j][i]))
+        {
+          first = Math.min(first, i);
+          last  = Math.max(last, i+1);
+        }
+
+    if (first >= last)
+      return new int[] {0, 0};
+
+    return new int[] {first*Chunk.checkSize,
+                      Math.min(length, last*Chunk.checkSize)};
+  }
+
+  // Record new length of a file with the controller
+  // once all of its chunks have been submitted.
+  FileInfo putFileInfo(File f, long length)
+    throws Exception
+  {
+    PutFileInfoMessage pfim =
+      new PutFileInfoMessage(clientID, controllerID, f,
+                             length, Chunk.maxSize);
+
+    try {
+      pfim = pfim.send();
+    }
+    catch (Exception e) {
+      throw new Exception("Failed to contact controller: " + e.getMessage());
+    }
+
+    holderCache.putFileInfo(pfim.getFileInfo());
+
+    return pfim.getFileInfo();
+  }
+
+  // Get metadata for a file, from the holder cache if
+  // possible.  Returns null if the controller has none.
+  FileInfo getFileInfo(File f)
+    throws Exception
+  {
+    FileInfo info = holderCache.getFileInfo(f);
+
+    if (info != null)
+      return info;
+
+    GetFileInfoMessage gfim =
+      new GetFileInfoMessage(clientID, controllerID, f);
+
+    try {
+      gfim = gfim.send();
+    }
+    catch (Exception e) {
+      throw new Exception("Failed to contact controller: " + e.getMessage());
+    }
+
+    holderCache.putFileInfo(gfim.getFileInfo());
+
+    return gfim.getFileInfo();
+  }
+
+  // Resolve a file to the id its chunks are known by,
+  // from the holder cache if possible.  If create is true
+  // the controller assigns an id to a file it doesn't
+  // know, otherwise ChunkHandle.noFile is returned.
+  long resolve(File f, boolean create)
+    throws Exception
+  {
+    Long fileId = holderCache.getFileId(f);
+
+    // an unknown file may have been created since
+    if ((fileId != null) &&
+        ((fileId != ChunkHandle.noFile) || !create))
+      return fileId;
+
+    // empty range, we only want the id
+    GetRangeHoldersMessage grhm =
+      new GetRangeHoldersMessage(clientID, controllerID,
+                                 f, 0, 0, create);
 
-      // pull the chunkserver id's from the reply
-      HostID[] chunkServers = ghm.getChunkServers();
+    try {
+      grhm = grhm.send();
+    }
+    catch (Exception e) {
+      throw new Exception("Failed to contact controller: " + e.getMessage());
+    }
+
+    holderCache.putFile(f, grhm.getFileId(), grhm.getFileInfo());
+
+    return grhm.getFileId();
+  }
+
+  // Ask the controller for the chunkservers holding each
+  // chunk in a range, bypassing the holder cache.  Used
+  // before writing so we never miss an existing replica.
+  HostID[][] lookupRange(long fileId, long firstSeq, int numChunks)
+    throws Exception
+  {
+    // message to ask controller for chunkservers
+    // already holding each chunk in one round trip
+    GetRangeHoldersMessage grhm =
+      new GetRangeHoldersMessage(clientID, controllerID,
+                                 fileId, firstSeq, numChunks);
+
+    try {
+      // send request for chunkservers
+      grhm = grhm.send();
+    }
+    catch (Exception e) {
+      throw new Exception("Failed to contact controller: " + e.getMessage());
+    }
 
+    // file metadata comes along with the holders
+    holderCache.putFileInfo(grhm.getFileInfo());
+
+    // pull the chunkserver id's for each chunk from the reply
+    return grhm.getChunkServers();
+  }
+
+  // start parallelism workers submitting chunks from queue
+  UploadWorker[] startUploadWorkers(ArrayBlockingQueue<UploadTask> queue,
+                                    ChunkBufferPool pool,
+                                    TransferProgress progress)
+  {
+    UploadWorker[] workers = new UploadWorker[parallelism];
+
+    for (int i = 0; i < workers.length; ++i)
+    {
+      workers[i] = new UploadWorker(queue, pool, progress);
+      workers[i].start();
+    }
+
+    return workers;
+  }
+
+  // tell each worker we are done and wait for them
+  // to finish submitting what is left in queue
+  void stopUploadWorkers(UploadWorker[] workers,
+                         ArrayBlockingQueue<UploadTask> queue)
+    throws InterruptedException
+  {
+    for (int i = 0; i < workers.length; ++i)
+      queue.put(UploadTask.endOfUpload);
+
+    for (int i = 0; i < workers.length; ++i)
+      workers[i].join();
+  }
+
+  /**
+   * Get the number of chunks that are sent
+   * to or fetched from chunkservers at once.
+   */
+  public int getParallelism()
+  {
+    return parallelism;
+  }
+
+  /**
+   * Set the most chunks prefetched ahead of streams
+   * and channels that are read sequentially.
+   *
+   * @param readAhead Chunks to prefetch, zero for none.
+   */
+  public void setReadAhead(int readAhead)
+    throws Exception
+  {
+    if (readAhead < 0)
+      throw new Exception("Read-ahead cannot be negative.");
+
+    this.readAhead = readAhead;
+  }
+
+  /**
+   * Get the most chunks prefetched ahead
+   * of sequential readers.
+   */
+  public int getReadAhead()
+  {
+    return readAhead;
+  }
+
+  /**
+   * Open a stream reading a file stored in goofs.
+   *
+   * @param f File to read.
+   */
+  public GoofsInputStream openInputStream(File f)
+    throws IOException
+  {
+    return new GoofsInputStream(new GoofsChannel(this, f, false));
+  }
+
+  /**
+   * Open a stream writing a file into goofs from its
+   * start, replacing any current contents.
+   *
+   * @param f File to write.
+   */
+  public GoofsOutputStream openOutputStream(File f)
+  {
+    return new GoofsOutputStream(this, f);
+  }
+
+  /**
+   * Open a seekable channel on a file stored in goofs.
+   *
+   * @param f File to open.
+   * @param writable True to allow writes, in which
+   *   case the file need not exist yet.
+   */
+  public GoofsChannel openChannel(File f, boolean writable)
+    throws IOException
+  {
+    return new GoofsChannel(this, f, writable);
+  }
+
+  // a chunk read from file waiting to be submitted
+  static class UploadTask
+  {
+    // marks end of upload for workers
+    public static final UploadTask endOfUpload =
+      new UploadTask(null, null, null, null);
+
+    public ChunkHandle handle;
+    public File f;
+    public HostID[] holders;
+    public byte[] data;
+    public int chunkOffset;
+
+    public UploadTask(ChunkHandle handle, File f,
+                      HostID[] holders, byte[] data)
+    {
+      this(handle, f, holders, data, 0);
+    }
+
+    public UploadTask(ChunkHandle handle, File f, HostID[] holders,
+                      byte[] data, int chunkOffset)
+    {
+      this.handle      = handle;
+      this.f           = f;
+      this.holders     = holders;
+      this.data        = data;
+      this.chunkOffset = chunkOffset;
+    }
+  }
+
+  // thread submitting chunks taken from upload queue
+  class UploadWorker
+    extends Thread
+  {
+    private ArrayBlockingQueue<UploadTask> queue;
+    private ChunkBufferPool pool;
+    private TransferProgress progress;
+
+    public UploadWorker(ArrayBlockingQueue<UploadTask> queue,
+                        ChunkBufferPool pool, TransferProgress progress)
+    {
+      this.queue    = queue;
+      this.pool     = pool;
+      this.progress = progress;
+
+      // a stream never closed mustn't keep
+      // the JVM up, uploads are joined
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      while (true)
+      {
+        UploadTask task;
+
+        try {
+          task = queue.take();
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+
+        if (task == UploadTask.endOfUpload)
+          return;
+
+        // another worker failed, just drain the queue
+        if (progress.hasFailed())
+        {
+          release(pool, task.data);
+          continue;
+        }
+
+        int bytes = task.data.length;
+
+        try {
+          submitChunk(task.handle, task.f, task.holders, task.data,
+                      task.chunkOffset, pool);
+          progress.chunkDone(bytes);
+        }
+        catch (Exception e) {
+          progress.fail(e);
+        }
+      }
+    }
+  }
+
+  // return data to a buffer pool, if there is one
+  private static void release(ChunkBufferPool pool, byte[] data)
+  {
+    if (pool != null)
+      pool.release(data);
+  }
+
+  // read exactly length bytes from a channel into buffer
+  private static void readFully(FileChannel channel, byte[] buffer, int length)
+    throws Exception
+  {
+    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, length);
+
+    while (bb.hasRemaining())
+      if (channel.read(bb) < 0)
+        throw new Exception("File ended early, was it truncated?");
+  }
+
+  // Submit a single chunk of file f to the chunkservers
+  // already holding it or, if there are none, to new
+  // chunkservers.  The data is released back to pool,
+  // if any, once no longer needed.
+  void submitChunk(ChunkHandle handle, File f, HostID[] chunkServers,
+                   byte[] data, ChunkBufferPool pool)
+    throws Exception
+  {
+    submitChunk(handle, f, chunkServers, data, 0, pool);
+  }
+
+  // Submit data starting at chunkOffset within a chunk,
+  // only chunks that already exist may have an offset.
+  void submitChunk(ChunkHandle handle, File f, HostID[] chunkServers,
+                   byte[] data, int chunkOffset, ChunkBufferPool pool)
+    throws Exception
+  {
+    try
+    {
       if (chunkServers.length == 0)
       {
         System.out.println("New chunk going to: ");
@@ -162,116 +726,356 @@ public class Client
       for (int j = 0; j < chunkServers.length; ++j)
         System.out.println(j + ") " + chunkServers[j]);
 
+      // remember where this chunk is going, the
+      // controller won't know until next heartbeat
+      holderCache.put(handle, chunkServers);
+    }
+    catch (Exception e) {
+      release(pool, data);
+      throw e;
+    }
+
+    // send to all chunkservers in parallel
+    // and wait for a quorum to persist
+    if (writeQuorum > 0)
+      submitQuorum(chunkServers, handle, f, data, chunkOffset, pool);
+
+    else
+    {
       // message to submit chunk to chunkserver
       SubmitDataMessage sdm =
-        new SubmitDataMessage(clientID, chunkServers, chunkDesc[i], chunkData[i]);
+        new SubmitDataMessage(clientID, chunkServers, handle, f, data);
+
+      sdm.setChunkOffset(chunkOffset);
 
       try {
         // send chunk submission
         sdm.send();
       }
       catch (Exception e) {
-        throw new Exception("Failed to contact any chunkserver at " + chunkDesc[i] +
+        throw new Exception("Failed to contact any chunkserver at " + handle +
                             ": " + e.getMessage());
       }
+      finally {
+        release(pool, data);
+      }
     }
   }
 
-  // retrieve a file already stored
-  private void retrieveFile(File f)
+  // submit chunk to all chunkservers in parallel
+  // and block until a quorum has persisted it,
+  // data is released after the last replica
+  private void submitQuorum(HostID[] chunkServers,
+                            ChunkHandle handle, File f,
+                            final byte[] data, int chunkOffset,
+                            final ChunkBufferPool pool)
     throws Exception
   {
-    int offset = 0;
-    ChunkDescriptor curDesc = new ChunkDescriptor(f, offset);
-    ArrayList<Byte> fileData = new ArrayList<Byte>();
-
-    // message to ask controller for proper chunkservers
-    GetHoldersMessage ghm =
-      new GetHoldersMessage(clientID, controllerID, curDesc);
+    QuorumWrite qw;
 
     try {
-      // send request for chunkservers
-      ghm = ghm.send();
+      qw = new QuorumWrite(clientID, chunkServers, handle, f,
+                           data, writeQuorum);
     }
     catch (Exception e) {
-      throw new Exception("Failed to contact controller: " + e.getMessage());
+      release(pool, data);
+      throw new Exception("Failed to submit " + handle +
+                          ": " + e.getMessage());
     }
 
-    // pull the chunkserver id's from the reply
-    HostID[] holders = ghm.getChunkServers();
+    qw.setChunkOffset(chunkOffset);
 
-    if (holders.length == 0)
-    {
-      System.out.println("File " + f + " not found in filesystem.");
-      return;
+    // reuse buffer once stragglers are done
+    qw.setOnComplete(new Runnable() {
+      public void run()
+      {
+        release(pool, data);
+      }
+    });
+
+    qw.start();
+
+    try {
+      int numAcks = qw.waitForQuorum(writeTimeoutSecs*1000l);
+
+      System.out.println("Chunk " + handle + " persisted on " +
+                         numAcks + " of " + chunkServers.length +
+                         " chunkservers.");
+    }
+    catch (Exception e) {
+      throw new Exception("Failed to submit " + handle +
+                          ": " + e.getMessage());
     }
+  }
 
-    do
+  // Get chunkservers holding a chunk, from the holder cache
+  // if possible.  Otherwise look up this chunk along with the
+  // next prefetchChunks-1 chunks and cache them all.
+  HostID[] getHolders(ChunkHandle handle)
+    throws Exception
+  {
+    HostID[] holders = holderCache.get(handle);
+
+    if (holders != null)
+      return holders;
+
+    long fileId = handle.getFileId();
+    long seq    = handle.getSequence();
+
+    // past the end of a file we have metadata for
+    FileInfo info = holderCache.getFileInfo(fileId);
+    if ((info != null) && (seq >= info.getNumChunks()))
+      return new HostID[0];
+
+    // look up this chunk and those following it
+    HostID[][] range = lookupRange(fileId, seq, prefetchChunks);
+
+    for (int i = 0; i < range.length; ++i)
+      holderCache.put(new ChunkHandle(fileId, seq+i), range[i]);
+
+    return range[0];
+  }
+
+  // Read a chunk from its holders.  If the holders
+  // we have don't have the chunk, they may be stale
+  // so drop them from the cache and try once more.
+  byte[] readChunk(ChunkHandle handle, HostID[] holders)
+    throws Exception
+  {
+    for (int attempt = 0; ; ++attempt)
     {
       RetrieveDataMessage rdm =
-        new RetrieveDataMessage(clientID, holders, curDesc);
+        new RetrieveDataMessage(clientID, holders, handle);
+
+      String reason;
 
       try {
-        rdm = rdm.send();
+        // read from fastest holder, hedging to
+        // another if it is slow to respond
+        rdm = rdm.sendHedged(latency);
+
+        if (rdm.getData() != null)
+          return rdm.getData();
+
+        reason = "Retrieve failed.";
       }
       catch (Exception e) {
-        throw new Exception("Failed to retrieve " + curDesc +
-                            ": " + e.getMessage());
+        reason = e.getMessage();
       }
 
-      byte[] chunkData = rdm.getData();
+      // holders were stale, ask controller again
+      holderCache.invalidate(handle);
 
-      if (chunkData == null)
-        throw new Exception("Unable to retrieve " + curDesc +
-                            ": " + "Retrieve failed.");
+      if (attempt > 0)
+        throw new Exception("Unable to retrieve " + handle + ": " + reason);
+
+      holders = getHolders(handle);
+
+      if (holders.length == 0)
+        throw new Exception("Unable to retrieve " + handle +
+                            ": No chunkservers hold chunk.");
+    }
+  }
 
-      for (int i = 0; i < chunkData.length; ++i)
-        fileData.add(new Byte(chunkData[i]));
+  // Retrieve a file already stored.  Chunks are fetched by
+  // parallelism workers and each is written straight to its
+  // offset in a partial file, so chunks may arrive in any
+  // order and only one chunk per worker is held in memory.
+  // The partial file replaces the target once complete.
+  private void retrieveFile(File f)
+    throws Exception
+  {
+    // resolving the file also brings its metadata, if
+    // the controller has any, telling us where file ends
+    long fileId = resolve(f, false);
 
-      //System.arraycopy(chunkData, 0, fileData, offset, chunkData.length);
+    HostID[] holders = new HostID[0];
+    if (fileId != ChunkHandle.noFile)
+      holders = getHolders(new ChunkHandle(fileId, 0));
 
-      if (chunkData.length < Chunk.maxSize)
+    if (holders.length == 0)
+    {
+      System.out.println("File " + f + " not found in filesystem.");
+      return;
+    }
+
+    FileInfo info = holderCache.getFileInfo(fileId);
+
+    // number of chunks to fetch
+    long numChunks;
+
+    if (info != null)
+    {
+      System.out.println("Retrieving " + info);
+      numChunks = info.getNumChunks();
+    }
+    else
+    {
+      // no metadata, ask for holders of every chunk
+      // the controller knows of to find the end
+      HostID[][] range =
+        lookupRange(fileId, 0, GetRangeHoldersMessage.wholeFile);
+
+      for (int i = 0; i < range.length; ++i)
+        holderCache.put(new ChunkHandle(fileId, i), range[i]);
+
+      numChunks = range.length;
+    }
+
+    // chunks are written here until all have arrived
+    File partFile = new File(f.getPath() + ".part");
+
+    RandomAccessFile output = new RandomAccessFile(partFile, "rw");
+    FileChannel channel = output.getChannel();
+
+    TransferProgress progress = new TransferProgress("Retrieved", numChunks,
+      (info != null) ? info.getLength() : numChunks*Chunk.maxSize);
+
+    // index of next chunk for a worker to fetch
+    AtomicLong nextSeq = new AtomicLong(0);
+
+    // one past last byte written
+    AtomicLong fileLength = new AtomicLong(0);
+
+    try
+    {
+      // discard anything left from an earlier attempt
+      channel.truncate(0);
+
+      RetrieveWorker[] workers = new RetrieveWorker[parallelism];
+      for (int i = 0; i < workers.length; ++i)
       {
-        System.out.println("Read trailing chunk.");
-        break;
+        workers[i] = new RetrieveWorker(f, fileId, info, numChunks, nextSeq,
+                                        channel, fileLength, progress);
+        workers[i].start();
       }
-      else
-        offset += chunkData.length;
 
-      curDesc = new ChunkDescriptor(f, offset);
+      progress.startReporting();
 
-      ghm = new GetHoldersMessage(clientID, controllerID, curDesc);
+      for (int i = 0; i < workers.length; ++i)
+        workers[i].join();
 
-      try {
-        ghm = ghm.send();
-      }
-      catch (Exception e) {
-        throw new Exception("Failed to contact controller: " + e.getMessage());
-      }
+      progress.stopReporting();
+
+      if (progress.hasFailed())
+        throw progress.getFailure();
+
+      // drop any stale bytes past the end
+      channel.truncate(fileLength.get());
 
-      holders = ghm.getChunkServers();
+      // flush and close output file
+      channel.force(true);
+    }
+    catch (Exception e) {
+      output.close();
+      partFile.delete();
+      throw e;
     }
-    while (holders.length > 0);
 
+    output.close();
 
-    byte[] fileBytes = new byte[fileData.size()];
-    for (int i = 0; i < fileBytes.length; ++i)
-      fileBytes[i] = fileData.get(i).byteValue();
+    System.out.println(progress);
+    System.out.println(holderCache);
 
     if (f.exists())
       f.delete();
 
-    f.createNewFile();
+    if (!partFile.renameTo(f))
+      throw new Exception("Failed to rename " + partFile + " to " + f + ".");
 
-    FileOutputStream output = new FileOutputStream(f);
+    System.out.println("Successfully retrieved " + f + ".");
+  }
 
-    output.write(fileBytes);
+  // thread fetching chunks and writing each at its offset
+  private class RetrieveWorker
+    extends Thread
+  {
+    private File f;
+    private long fileId;
+    private FileInfo info;
+    private long numChunks;
+    private AtomicLong nextSeq;
+    private FileChannel channel;
+    private AtomicLong fileLength;
+    private TransferProgress progress;
+
+    public RetrieveWorker(File f, long fileId, FileInfo info,
+                          long numChunks, AtomicLong nextSeq,
+                          FileChannel channel, AtomicLong fileLength,
+                          TransferProgress progress)
+    {
+      this.f          = f;
+      this.fileId     = fileId;
+      this.info       = info;
+      this.numChunks  = numChunks;
+      this.nextSeq    = nextSeq;
+      this.channel    = channel;
+      this.fileLength = fileLength;
+      this.progress   = progress;
+    }
 
-    // flush and close output stream
-    output.flush();
-    output.close();
+    public void run()
+    {
+      try
+      {
+        while (!progress.hasFailed())
+        {
+          long seq = nextSeq.getAndIncrement();
 
-    System.out.println("Successfully retrieved " + f + ".");
+          if (seq >= numChunks)
+            break;
+
+          fetch(seq);
+        }
+      }
+      catch (Exception e) {
+        progress.fail(e);
+      }
+    }
+
+    // fetch one chunk and write it at its offset
+    private void fetch(long seq)
+      throws Exception
+    {
+      ChunkHandle handle = new ChunkHandle(fileId, seq);
+
+      HostID[] holders = getHolders(handle);
+
+      if (holders.length == 0)
+        throw new Exception("No chunkservers hold chunk " + seq +
+                            " of " + f + ".");
+
+      byte[] chunkData = readChunk(handle, holders);
+
+      // chunks keep stale bytes past the end of a file
+      // that has shrunk, use only what the file holds
+      int chunkLength = chunkData.length;
+      if (info != null)
+      {
+        if (chunkLength < info.getChunkLength(seq))
+          throw new Exception("Chunk " + handle + " is short, " +
+                              chunkLength + " of " +
+                              info.getChunkLength(seq) + " bytes.");
+
+        chunkLength = info.getChunkLength(seq);
+      }
+
+      long position = seq*Chunk.maxSize;
+
+      // positional writes don't move the channel
+      // so workers can write at the same time
+      ByteBuffer bb = ByteBuffer.wrap(chunkData, 0, chunkLength);
+      while (bb.hasRemaining())
+        position += channel.write(bb, position);
+
+      // remember furthest byte written
+      long end = position;
+      long cur = fileLength.get();
+      while ((end > cur) && !fileLength.compareAndSet(cur, end))
+        cur = fileLength.get();
+
+      progress.chunkDone(chunkLength);
+    }
   }
 
   /**
@@ -284,6 +1088,10 @@ public class Client
     String   contHost = "horde-0";     // controller host name
     String   fileName = "";            // name of file to process
     ModeKind mode     = ModeKind.None; // current mode of operation
+    int      quorum   = 0;             // replicas to acknowledge writes
+    int      wTimeout = 30;            // seconds to wait for write quorum
+    int      parallel = 4;             // chunks in flight at once
+    boolean  delta    = true;          // send only changed slices
 
     try
     {
@@ -326,6 +1134,22 @@ public class Client
         else if (args[i].equals("--file-name"))
           fileName = args[++i];
 
+        // set number of replicas to acknowledge writes
+        else if (args[i].equals("--write-quorum"))
+          quorum = Integer.parseInt(args[++i]);
+
+        // set number of chunks in flight at once
+        else if (args[i].equals("--parallel"))
+          parallel = Integer.parseInt(args[++i]);
+
+        // set seconds to wait for write quorum
+        else if (args[i].equals("--write-timeout"))
+          wTimeout = Integer.parseInt(args[++i]);
+
+        // send every chunk even if unchanged
+        else if (args[i].equals("--full"))
+          delta = false;
+
         // bad command line argument
         else
           throw new Exception("Bad argument.");
@@ -345,6 +1169,15 @@ public class Client
       // initialize new client
       Client clnt = new Client(new HostID(contHost, contPort));
 
+      // set write acknowledgement policy
+      clnt.setWriteQuorum(quorum, wTimeout);
+
+      // set chunks in flight at once
+      clnt.setParallelism(parallel);
+
+      // set whether unchanged slices are skipped
+      clnt.setDeltaSync(delta);
+
       if (mode == ModeKind.Submit)
         // submit given file
         clnt.submitFile(new File(fileName));
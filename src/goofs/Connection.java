@@ -0,0 +1,157 @@
+package goofs;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Socket to another goofs node along with the
+ * object streams used to send messages over it.
+ * Connections used for messages that expect a
+ * reply may be kept open and reused.
+ *
+ * @author Elliott Forney
+ */
+public class Connection
+{
+  // node on the other end
+  private HostID dst;
+
+  // underlying socket
+  private Socket s;
+
+  // object stream for sending messages
+  private ObjectOutputStream output;
+
+  // object stream for receiving replies,
+  // opened when the first reply arrives
+  private ObjectInputStream input = null;
+
+  // time connection was last returned to a pool
+  private long lastUsed;
+
+  // true if this connection has carried messages before
+  private boolean reused = false;
+
+  /**
+   * Open a new connection.
+   *
+   * @param dst Node to connect to.
+   */
+  public Connection(HostID dst)
+    throws Exception
+  {
+    this.dst = dst;
+
+    // open socket to destination
+    s = new Socket(dst.getHost(), dst.getPort());
+
+    // messages are small and latency matters
+    s.setTcpNoDelay(true);
+
+    // open output stream on socket
+    output = new ObjectOutputStream(
+      new BufferedOutputStream(s.getOutputStream()));
+
+    lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Get the node on the other end of this connection.
+   */
+  public HostID getDest()
+  {
+    return dst;
+  }
+
+  /**
+   * Get the underlying socket.
+   */
+  public Socket getSocket()
+  {
+    return s;
+  }
+
+  /**
+   * Send a message over this connection.
+   *
+   * @param m Message to send.
+   */
+  public void write(Message m)
+    throws Exception
+  {
+    // forget objects sent before so they
+    // are neither referenced nor retained
+    output.reset();
+
+    // send the message
+    output.writeObject(m);
+
+    // flush output stream
+    output.flush();
+  }
+
+  /**
+   * Receive a reply over this connection.
+   *
+   * @return Reply message.
+   */
+  public Message read()
+    throws Exception
+  {
+    if (input == null)
+      input = new ObjectInputStream(
+        new BufferedInputStream(s.getInputStream()));
+
+    return (Message)input.readObject();
+  }
+
+  /**
+   * Check if this connection has been used before,
+   * in which case the other end may have hung up.
+   */
+  public boolean isReused()
+  {
+    return reused;
+  }
+
+  /**
+   * Mark this connection as idle and ready for reuse.
+   */
+  public void markIdle()
+  {
+    reused   = true;
+    lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Get time connection was last marked idle.
+   *
+   * @return Milliseconds since epoch.
+   */
+  public long getLastUsed()
+  {
+    return lastUsed;
+  }
+
+  /**
+   * Close this connection.
+   */
+  public void close()
+  {
+    try {
+      // close output stream
+      output.close();
+    }
+    catch (Exception e) {
+      // do nothing
+    }
+
+    try {
+      // close socket
+      s.close();
+    }
+    catch (Exception e) {
+      // do nothing
+    }
+  }
+}
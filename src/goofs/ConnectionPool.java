@@ -0,0 +1,83 @@
+package goofs;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+/**
+ * Pool of idle connections to other goofs
+ * nodes, keyed by node id.  Connections idle
+ * for longer than idleSecs are closed rather
+ * than reused so that the other end, which
+ * hangs up after MessageHandler.idleSecs,
+ * never closes a connection we pick up.
+ *
+ * @author Elliott Forney
+ */
+public class ConnectionPool
+{
+  /** seconds a connection may sit idle before being closed */
+  public static final int idleSecs = 30;
+
+  /** most idle connections kept for a single node */
+  public static final int maxIdlePerHost = 8;
+
+  // idle connections by node id string
+  private Hashtable<String, ArrayList<Connection>> idle =
+    new Hashtable<String, ArrayList<Connection>>();
+
+  /**
+   * Take an idle connection to a node.
+   *
+   * @param dst Node to connect to.
+   * @return An idle connection or null
+   *   if there are none.
+   */
+  public synchronized Connection acquire(HostID dst)
+  {
+    ArrayList<Connection> conns = idle.get(dst.toString());
+
+    if (conns == null)
+      return null;
+
+    long now = System.currentTimeMillis();
+
+    // most recently used connections are at the end
+    while (!conns.isEmpty())
+    {
+      Connection conn = conns.remove(conns.size()-1);
+
+      if ((now - conn.getLastUsed()) < (idleSecs*1000l))
+        return conn;
+
+      conn.close();
+    }
+
+    return null;
+  }
+
+  /**
+   * Return a connection to the pool once
+   * a message exchange has completed.
+   *
+   * @param conn Connection to return.
+   */
+  public synchronized void release(Connection conn)
+  {
+    ArrayList<Connection> conns = idle.get(conn.getDest().toString());
+
+    if (conns == null)
+    {
+      conns = new ArrayList<Connection>();
+      idle.put(conn.getDest().toString(), conns);
+    }
+
+    if (conns.size() >= maxIdlePerHost)
+    {
+      conn.close();
+      return;
+    }
+
+    conn.markIdle();
+    conns.add(conn);
+  }
+}
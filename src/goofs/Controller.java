@@ -4,11 +4,13 @@ import java.io.*;
 import java.lang.Thread;
 import java.net.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Controller for the goofs filesystem.
@@ -32,24 +34,92 @@ public class Controller
   private ArrayList<ControllerSEntry> sEntryList =
     new ArrayList<ControllerSEntry>();
 
-  // server entries in a hash table mapped by host id
-  private Hashtable<String, ControllerSEntry> sEntryByHost =
-    new Hashtable<String, ControllerSEntry>();
+  // server entries in a hash table mapped by host id,
+  // read without locking, changed only under sLock
+  private ConcurrentHashMap<String, ControllerSEntry> sEntryByHost =
+    new ConcurrentHashMap<String, ControllerSEntry>();
+
+  // where chunkservers and clients are
+  private Topology topology;
+
+  // server entries ordered by load within each
+  // rack and overall, for placing new chunks
+  private Placement placement;
 
   // lock for server data structures
   private Object sLock = new Object();
 
-  // chunk entries in a hash table mapped by chunk descriptor
-  private Hashtable<String, ControllerCEntry> cEntryByDesc =
-    new Hashtable<String, ControllerCEntry>();
+  // holders of each chunk by node id, kept in primitive
+  // arrays rather than an entry per chunk and locked
+  // by stripe so lookups never wait on heartbeats
+  private StripedChunkIndex chunkIndex = new StripedChunkIndex(1024);
+
+  // takes chunk lists of heartbeats arriving together
+  // into chunkIndex in bulk, over a thread per processor
+  private HeartbeatIngester ingester = new HeartbeatIngester(chunkIndex);
+
+  // file entries in a hash table mapped by file name,
+  // read without locking, changed only under fLock
+  private ConcurrentHashMap<String, ControllerFEntry> fEntryByName =
+    new ConcurrentHashMap<String, ControllerFEntry>();
+
+  // file entries in a hash table mapped by file id
+  private ConcurrentHashMap<Long, ControllerFEntry> fEntryById =
+    new ConcurrentHashMap<Long, ControllerFEntry>();
+
+  // next file id to assign, starts from the clock so
+  // ids stay unique across restarts of the controller
+  private long nextFileId = System.currentTimeMillis() << 20;
+
+  // lock for file data structures
+  private Object fLock = new Object();
 
-  // lock for chunk data structures
-  private Object cLock = new Object();
+  // chunkserver of each node id, index zero is unused,
+  // copied on each new node so readers need no lock
+  private volatile HostID[] hostByNode = new HostID[1];
+
+  // node id of each chunkserver by host id string
+  private ConcurrentHashMap<String, Integer> nodeByHost =
+    new ConcurrentHashMap<String, Integer>();
+
+  // lock for assigning node ids, never held
+  // while taking another lock but the log's
+  private Object nLock = new Object();
 
   // reaper to remove entries for chunk servers
   // that are no longer responding
   ControllerReaper reaper = new ControllerReaper();
 
+  // length of a tick of the deadline wheel, how
+  // late a dead chunkserver may be noticed
+  private static final long deadlineTickMillis = 1000;
+
+  // deadline by which each chunkserver must next
+  // heartbeat, pushed back by each heartbeat
+  private TimingWheel<ControllerSEntry> deadlines =
+    new TimingWheel<ControllerSEntry>(deadlineTickMillis,
+      (int)(2*ControllerSEntry.expirationSecs*1000/deadlineTickMillis),
+      reaper);
+
+  // default cap on bytes per second moved
+  // between chunkservers in the background
+  public static final double defaultBandwidth = 20e6;
+
+  // cap on bytes per second moved between chunkservers
+  private Throttle throttle = new Throttle(defaultBandwidth);
+
+  // copies chunks that lost replicas to new holders
+  private ReplicationScheduler replicator;
+
+  // moves chunks off chunkservers holding too many bytes
+  private Rebalancer balancer;
+
+  // default directory metadata is kept in
+  public static final String defaultMetaDir = "/tmp/idfah-goofs-controller/";
+
+  // log and checkpoints of metadata, replayed on restart
+  private ControllerLog oplog;
+
   /**
    * Create a new goofs controller.
    * @param port Port number to listen on
@@ -57,10 +127,52 @@ public class Controller
   public Controller(int port)
     throws Exception
   {
-    this.id = new HostID(port);
+    this(port, new Topology());
+  }
+
+  /**
+   * Create a new goofs controller.
+   * @param port Port number to listen on
+   * @param topology Where chunkservers and clients are
+   */
+  public Controller(int port, Topology topology)
+    throws Exception
+  {
+    this(port, topology, null);
+  }
 
-    // start cleanup thread
-    reaper.start();
+  /**
+   * Create a new goofs controller.
+   * @param port Port number to listen on
+   * @param topology Where chunkservers and clients are
+   * @param metaDir Directory metadata is kept in across
+   *   restarts, null to keep it only in memory
+   */
+  public Controller(int port, Topology topology, File metaDir)
+    throws Exception
+  {
+    this.id = new HostID(port);
+    this.topology  = topology;
+    this.placement = new Placement(topology);
+
+    // pick up where we left off before serving anything
+    oplog = new ControllerLog(metaDir, chunkIndex, new ControllerState());
+    oplog.recover();
+    restoreServers();
+    oplog.start();
+
+    // start re-replication workers
+    replicator = new ReplicationScheduler(id, topology,
+                   new ControllerCluster(), throttle);
+    replicator.start(ReplicationScheduler.defaultWorkers);
+
+    // start moving chunks onto emptier chunkservers
+    balancer = new Rebalancer(id, topology,
+                 new ControllerCluster(), replicator);
+    balancer.start();
+
+    // start noticing missed heartbeats
+    deadlines.start("reaper");
   }
 
   /**
@@ -111,27 +223,52 @@ public class Controller
         // get id for sender
         HostID cs = mhbm.getSource();
 
-        // get all chunk descriptors currently on sender
-        ChunkDescriptor[] chunkDesc = mhbm.getAllChunks();
+        // learn where sender is before placing it
+        locate(cs, mhbm.getRack(), mhbm.getZone());
 
-        //
-        ChunkDescriptor[] corruptDesc = mhbm.getCorruptChunks();
+        // list of chunks in buckets we disagreed on
+        if (!mhbm.isSummary())
+        {
+          // learn names of files we may have forgotten
+          registerFiles(mhbm.getFileIds(), mhbm.getFiles());
+
+          reconcile(cs, mhbm.getBuckets(), mhbm.getChunks());
+
+          System.out.println("Major: " + m +
+                             " Buckets: " + mhbm.getBuckets().length +
+                             " Listed: " + mhbm.getChunks().length);
+
+          // no reply expected
+          return null;
+        }
 
         //
-        //cleanCorrupt(corruptDesc);
+        ChunkHandle[] corruptHandles = mhbm.getCorruptChunks();
 
-        // touch sending node and chunks
-        touch(cs, chunkDesc);
+        // touch sending node, chunks come in the list
+        ControllerSEntry curSEntry = touch(cs, new ChunkHandle[0], false);
+
+        // ask for chunks only where summaries differ
+        mhbm.setStaleBuckets(curSEntry.staleBuckets(mhbm.getDigest()));
 
         System.out.println("Major: " + m +
-                           " Total: " + chunkDesc.length +
-                           " Corrupt: " + corruptDesc.length);
+                           " Total: " + mhbm.getDigest().size() +
+                           " Stale buckets: " +
+                           mhbm.getStaleBuckets().length +
+                           " Corrupt: " + corruptHandles.length);
 
         // update number of chunks in our map
-        setNumChunks(cs, chunkDesc.length);
+        setNumChunks(cs, mhbm.getDigest().size());
 
-        // no reply expected
-        return null;
+        // update load used to place new chunks
+        setLoad(cs, mhbm.getLoad());
+
+        // reply with stale buckets only, not the digest
+        mhbm.clearSummary();
+
+        // swap source and dest and send back
+        mhbm.swapSrcDst();
+        return mhbm;
       }
 
       // minor heartbeat message
@@ -144,38 +281,100 @@ public class Controller
         // get id for sender
         HostID cs = mhbm.getSource();
 
-        // get new chunk descriptors on sender
-        ChunkDescriptor[] chunkDesc = mhbm.getNewChunks();
+        // get new chunk handles on sender
+        ChunkHandle[] handles = mhbm.getNewChunks();
+
+        // learn where sender is before placing it
+        locate(cs, mhbm.getRack(), mhbm.getZone());
 
         //
-        ChunkDescriptor[] corruptDesc = mhbm.getCorruptChunks();
+        ChunkHandle[] corruptHandles = mhbm.getCorruptChunks();
 
         // touch sending node and chunks
-        touch(cs, chunkDesc);
+        touch(cs, handles);
 
         System.out.println("Minor: " + m +
-                           " New: " + chunkDesc.length +
-                           " Corrupt: " + corruptDesc.length);
+                           " New: " + handles.length +
+                           " Corrupt: " + corruptHandles.length);
+
+        // update load used to place new chunks
+        setLoad(cs, mhbm.getLoad());
 
         // no reply expected
         return null;
       }
 
       // get chunkserver holding chunk associated with a 
-      // given chunk descriptor
+      // given chunk handle
       else if (m.kind == Message.Kind.GetHolders)
       {
         // cast message
         GetHoldersMessage ghm = (GetHoldersMessage)m;
 
         // get chunkservers holding chunk
-        ghm.setChunkServers(queryChunk(ghm.getChunkDescriptor()));
+        ghm.setChunkServers(queryChunk(ghm.getHandle(), ghm.getSource()));
 
         // swap source and dest and send back
         ghm.swapSrcDst();
         return ghm;
       }
 
+      // get chunkservers holding each chunk in a
+      // range of chunks belonging to a file
+      else if (m.kind == Message.Kind.GetRangeHolders)
+      {
+        // cast message
+        GetRangeHoldersMessage grhm = (GetRangeHoldersMessage)m;
+
+        // resolve pathname to file id, if named by pathname
+        long fileId = grhm.getFileId();
+        if (grhm.getFile() != null)
+          fileId = fileIdFor(grhm.getFile(), grhm.getCreate());
+        grhm.setFileId(fileId);
+
+        // get file metadata, if we have any
+        FileInfo info = queryFile(fileId);
+        grhm.setFileInfo(info);
+
+        // get chunkservers holding each chunk
+        grhm.setChunkServers(queryRange(fileId, info,
+                                        grhm.getFirstSequence(),
+                                        grhm.getNumChunks(),
+                                        grhm.getSource()));
+
+        // swap source and dest and send back
+        grhm.swapSrcDst();
+        return grhm;
+      }
+
+      // get metadata for a whole file
+      else if (m.kind == Message.Kind.GetFileInfo)
+      {
+        // cast message
+        GetFileInfoMessage gfim = (GetFileInfoMessage)m;
+
+        gfim.setFileInfo(queryFile(gfim.getFile()));
+
+        // swap source and dest and send back
+        gfim.swapSrcDst();
+        return gfim;
+      }
+
+      // record a new submission of a file
+      else if (m.kind == Message.Kind.PutFileInfo)
+      {
+        // cast message
+        PutFileInfoMessage pfim = (PutFileInfoMessage)m;
+
+        pfim.setFileInfo(updateFile(pfim.getFile(),
+                                    pfim.getLength(),
+                                    pfim.getChunkSize()));
+
+        // swap source and dest and send back
+        pfim.swapSrcDst();
+        return pfim;
+      }
+
       // get chunkservers that are eligible to hold new chunks
       else if (m.kind == Message.Kind.GetFree)
       {
@@ -183,7 +382,7 @@ public class Controller
         GetFreeMessage gfm = (GetFreeMessage)m;
 
         // get eligible chunkservers
-        gfm.setChunkServers(getFree());
+        gfm.setChunkServers(getFree(gfm.getSource()));
 
         // swap source and dest and send back
         gfm.swapSrcDst();
@@ -196,128 +395,62 @@ public class Controller
     }
   }
 
-  // thread to remove server entries that
-  // have not responded for a period of time
+  // removes server entries whose chunkservers miss
+  // their deadlines, fired by the deadline wheel
   private class ControllerReaper
-    extends Thread
+    implements TimingWheel.Expiry<ControllerSEntry>
   {
-    // seconds to sleep between passes of reaper
-    private static final int deathSleepSecs = 20;
-
-    // start reaping
-    public void run()
+    // called as a chunkserver's deadline passes
+    public void expired(ControllerSEntry e)
     {
-      while (true)
+      synchronized (sLock)
       {
-        // check for expired server entries
-        reap();
+        // already removed, a late timeout
+        if (sEntryByHost.get(e.getID().toString()) != e)
+          return;
 
-        // check for under-replicated chunks
-        //checkReplication();
-
-        try {
-          // block until past next heartbeat
-          Thread.sleep(deathSleepSecs*1000);
-        }
-        catch (Exception e) {
-          System.out.println("Reaper sleep interrupted.");
+        // heartbeat arrived as the deadline passed,
+        // it has rescheduled or is about to
+        if (!e.hasExpired())
+        {
+          deadlines.reschedule(e.timeout, e.millisToExpiry());
+          return;
         }
+
+        reap(e);
       }
     }
 
-    // remove entries that have not
-    // responed for a period of time
-    public synchronized void reap()
+    // remove all entries that have not responded
+    // for a period of time, whatever their deadlines
+    public void reap()
     {
-      // list of server entries to delete
-      ArrayList<ControllerSEntry> delList =
-        new ArrayList<ControllerSEntry>();
-
       synchronized (sLock)
       {
-        // create iterator over entry list
-        ListIterator<ControllerSEntry> itr =
-          sEntryList.listIterator();
+        // copy since reaping removes from list
+        ControllerSEntry[] entries =
+          sEntryList.toArray(new ControllerSEntry[sEntryList.size()]);
 
-        // while we have more entries
-        while (itr.hasNext())
-        {
-          // get current entry
-          ControllerSEntry curEntry = itr.next();
-
-          // if entry has expired
-          if (curEntry.hasExpired())
-          {
-            // send message to console
-            System.out.println("ChunkServer " + curEntry.getID() +
-                              " appears dead.  Removing from list.");
-
-            delList.add(curEntry);
-          }
-        }
-
-        // delete each expired server entry
-        itr = delList.listIterator();
-        while (itr.hasNext())
-        {
-          ControllerSEntry curSEntry = itr.next();
-
-          // delete server entry
-          delSEntry(curSEntry);
-
-          // remove chunks on this chunkserver from CEntries
-          synchronized (cLock) {
-            cleanCEntries(curSEntry);
-          }
-        }
+        for (int i = 0; i < entries.length; ++i)
+          if (entries[i].hasExpired())
+            reap(entries[i]);
       }
     }
 
-    // check for under-replicated chunks and fix
-    // kinda hairy here but it works
-/*    private void checkReplication()
+    // remove an entry that has expired
+    // Must be synchronized on sLock by caller!
+    private void reap(ControllerSEntry e)
     {
-      synchronized (cLock)
-      {
-        Iterator<ControllerCEntry> itr =
-          cEntryByDesc.values().iterator();
-
-        // iterate over chunk entries
-        while (itr.hasNext())
-        {
-          ControllerCEntry curCEntry =
-            itr.next();
-
-          System.out.println("For centry " + curCEntry.getDescriptor() + " numreplicas " + curCEntry.getNumChunkServers());
+      // send message to console
+      System.out.println("ChunkServer " + e.getID() +
+                         " appears dead.  Removing from list.");
 
-          // if chunk doesn't have enough replicas
-          if (curCEntry.getNumChunkServers() < replicationLevel)
-          {
-            HostID[] curHolders = curCEntry.getChunkServers();
+      // delete server entry
+      delSEntry(e);
 
-            synchronized (sLock)
-            {
-              HostID newHolder = null;
-
-              // look at each server entry
-              for (int i = 0; (i < sEntryList.size()) && (newHolder == null); ++i)
-              {
-                newHolder = sEntryList.get(i).getID();
-
-                // check if server entry is a holder of chunk
-                for (int j = 0; (j < curHolders.length) && (newHolder != null); ++j)
-                  if (newHolder.equals(curHolders[j]))
-                    newHolder = null;
-              }
-              if (newHolder == null)
-                System.out.println("No available chunkservers to fix replication of " + curCEntry.getDescriptor());
-              else
-                {}//fixReplication(curHolders[0], newHolder, curCEntry.getDescriptor());
-            }
-          }
-        }
-      }
-    } */
+      // remove chunks on this chunkserver from CEntries
+      cleanCEntries(e);
+    }
   }
 
   //
@@ -336,35 +469,31 @@ public class Controller
     return chunkServers;
   }
 
-  // Get chunkservers that are eligible to store new chunks.
-  private HostID[] getFree()
+  // Get chunkservers that are eligible to store new
+  // chunks written by a given host, in pipeline order.
+  private HostID[] getFree(HostID writer)
   {
     // array to hold return value
     HostID[] free;
 
-    // if we have fewer than replicationLevel chunkservers
-    // available, we will return fewer
-    if (sEntryList.size() < Controller.replicationLevel)
-      free = new HostID[sEntryList.size()];
-    else
-      free = new HostID[Controller.replicationLevel];
-
     // lock our server data structures
     synchronized (sLock)
     {
-      // sort by number of stored chunks
-      // this would definitely be a bottleneck
-      // for scaling, need a better hueristic.
-      Collections.sort(sEntryList);
+      // spread over racks, if we have fewer than replicationLevel
+      // chunkservers with room we return fewer
+      ControllerSEntry[] chosen =
+        placement.choose(writer, Controller.replicationLevel);
+
+      free = new HostID[chosen.length];
 
-      // get top entries from list
-      for (int i = 0; i < free.length; ++i)
+      for (int i = 0; i < chosen.length; ++i)
       {
-        free[i] = sEntryList.get(i).getID();
+        free[i] = chosen[i].getID();
 
         // assume we will be adding new chunks,
         // fixed on major heartbeat if not
-        sEntryList.get(i).incrementNumChunks();
+        chosen[i].incrementNumChunks();
+        placement.update(chosen[i]);
       }
     }
 
@@ -372,78 +501,330 @@ public class Controller
   }
 
   // Find id's of chunk servers currently holding a copy
-  // of a chunk described by a given chunk descriptor.
-  private HostID[] queryChunk(ChunkDescriptor cd)
+  // of a chunk described by a given chunk handle,
+  // nearest a given reader first.
+  private HostID[] queryChunk(ChunkHandle handle, HostID reader)
   {
-    HostID[] holders;
+    int[] nodes = chunkIndex.getHolders(handle.getFileId(),
+                                        handle.getSequence());
 
-    synchronized (cLock)
+    if (nodes == null)
+      return new HostID[0];
+    else
+      return nearestFirst(reader, hostsFor(nodes));
+  }
+
+  // Order holders nearest a reader first so reads stay
+  // in its rack where they can, holders at one distance
+  // are shuffled to spread reads between them.
+  private HostID[] nearestFirst(HostID reader, HostID[] holders)
+  {
+    Collections.shuffle(Arrays.asList(holders));
+    topology.sortByDistance(reader, holders);
+
+    return holders;
+  }
+
+  // Find id's of chunk servers currently holding each
+  // chunk in a range of chunks belonging to a given file.
+  // If numChunks is GetRangeHoldersMessage.wholeFile, the
+  // range ends at the last chunk in the file metadata or,
+  // if we have none, before the first chunk we don't know of.
+  // Holders of each chunk are nearest a given reader first.
+  private HostID[][] queryRange(long fileId, FileInfo info,
+                                long firstSeq, int numChunks,
+                                HostID reader)
+  {
+    // file metadata tells us exactly where file ends
+    if ((numChunks == GetRangeHoldersMessage.wholeFile) && (info != null))
+      numChunks = (int)Math.min(Integer.MAX_VALUE,
+                                Math.max(0, info.getNumChunks() - firstSeq));
+
+    ArrayList<int[]> nodes = new ArrayList<int[]>();
+
+    boolean wholeFile =
+      (numChunks == GetRangeHoldersMessage.wholeFile);
+
+    for (long seq = firstSeq;
+         wholeFile || (seq < firstSeq+numChunks); ++seq)
     {
-      ControllerCEntry cEntry =
-        cEntryByDesc.get(cd.toSeqString());
+      int[] cur = chunkIndex.getHolders(fileId, seq);
+
+      if (cur != null)
+        nodes.add(cur);
+
+      // end of file
+      else if (wholeFile)
+        break;
 
-      if (cEntry == null)
-        holders = new HostID[0];
       else
-        holders = cEntry.getChunkServers();
+        nodes.add(new int[0]);
     }
 
+    // node ids to chunkservers
+    HostID[][] holders = new HostID[nodes.size()][];
+    for (int i = 0; i < holders.length; ++i)
+      holders[i] = nearestFirst(reader, hostsFor(nodes.get(i)));
+
     return holders;
   }
 
+  // Get metadata for a given file or
+  // null if we don't know about the file.
+  private FileInfo queryFile(File f)
+  {
+    ControllerFEntry fEntry = fEntryByName.get(f.toString());
+
+    if (fEntry == null)
+      return null;
+    else
+      return fEntry.getInfo();
+  }
+
+  // Get metadata for file with a given id or
+  // null if we don't know about the file.
+  private FileInfo queryFile(long fileId)
+  {
+    ControllerFEntry fEntry = fEntryById.get(fileId);
+
+    if (fEntry == null)
+      return null;
+    else
+      return fEntry.getInfo();
+  }
+
+  // Resolve a pathname to the id its chunks are known
+  // by.  If create is true, a file we don't know is
+  // assigned a new id, otherwise ChunkHandle.noFile
+  // is returned for it.
+  private long fileIdFor(File f, boolean create)
+  {
+    ControllerFEntry fEntry = fEntryByName.get(f.toString());
+
+    if (fEntry != null)
+      return fEntry.getFileId();
+
+    if (!create)
+      return ChunkHandle.noFile;
+
+    synchronized (fLock)
+    {
+      // may have been added since we looked
+      fEntry = fEntryByName.get(f.toString());
+
+      if (fEntry == null)
+        fEntry = addFEntry(nextFileId++, f);
+    }
+
+    return fEntry.getFileId();
+  }
+
+  // Record names of files reported by a chunkserver,
+  // rebuilds the namespace after a controller restart.
+  private void registerFiles(long[] fileIds, File[] files)
+  {
+    synchronized (fLock)
+    {
+      for (int i = 0; i < fileIds.length; ++i)
+      {
+        // never hand out an id already in use
+        if (fileIds[i] >= nextFileId)
+          nextFileId = fileIds[i]+1;
+
+        if (fEntryById.containsKey(fileIds[i]))
+          continue;
+
+        // first name we heard of wins
+        if (fEntryByName.containsKey(files[i].toString()))
+        {
+          System.out.println("File " + files[i] + " reported with id " +
+                             fileIds[i] + " but already known by " +
+                             fEntryByName.get(files[i].toString()).getFileId());
+          continue;
+        }
+
+        addFEntry(fileIds[i], files[i]);
+      }
+    }
+  }
+
+  // add file entry for given id and pathname
+  // Must be synchronized by caller!
+  private ControllerFEntry addFEntry(long fileId, File f)
+  {
+    ControllerFEntry fEntry = new ControllerFEntry(fileId, f);
+
+    fEntryByName.put(f.toString(), fEntry);
+    fEntryById.put(fileId, fEntry);
+
+    oplog.fileCreated(fileId, f);
+
+    return fEntry;
+  }
+
+  // Record a new submission of a given file,
+  // creating a file entry if needed.
+  private FileInfo updateFile(File f, long length, int chunkSize)
+  {
+    ControllerFEntry fEntry = fEntryById.get(fileIdFor(f, true));
+    FileInfo info;
+
+    // logged in the order submissions are made
+    synchronized (fEntry)
+    {
+      fEntry.update(length, chunkSize);
+
+      info = fEntry.getInfo();
+      oplog.fileUpdated(info);
+    }
+
+    return info;
+  }
+
   // Update timestamp or create server entry
   // for given chunkserver id and add chunk
   // entries to table if they don't already
   // exist.
-  private void touch(HostID cs, ChunkDescriptor[] chunkDesc)
+  private void touch(HostID cs, ChunkHandle[] handles)
   {
+    touch(cs, handles, true);
+  }
+
+  // Touch a chunkserver and its chunks, asking for a major
+  // heartbeat if the chunkserver is new and majorIfNew is
+  // set.  Returns the chunkserver's server entry.
+  private ControllerSEntry touch(HostID cs, ChunkHandle[] handles,
+                                 boolean majorIfNew)
+  {
+    ControllerSEntry curSEntry;
+    boolean added = false;
+
+    // under sLock so the reaper can't remove the
+    // entry between looking it up and touching it
     synchronized (sLock)
     {
       // lookup entry by chunkserver id
-      ControllerSEntry curSEntry =
-        sEntryByHost.get(cs.toString());
+      curSEntry = sEntryByHost.get(cs.toString());
 
-      // if entry was not in table
+      // add a new server entry for given
+      // chunkserver id, or one reaped since
       if (curSEntry == null)
       {
-        // add a new server entry for
-        // given chunkserver id
-        addSEntry(cs, chunkDesc);
-
-        // request a major heartbeat
-        try {
-          requestMajor(cs);
-        }
-        catch (Exception e) {
-          System.out.println(e.getMessage());
-        }
+        curSEntry = addSEntry(cs, handles);
+        added = true;
       }
 
       else
+      {
         // otherwise, update timestamp
-        curSEntry.touch(chunkDesc);
+        curSEntry.touch(handles);
+
+        // and push back deadline
+        deadlines.reschedule(curSEntry.timeout,
+                             ControllerSEntry.expirationSecs*1000);
+      }
     }
 
-    for (int i = 0; i < chunkDesc.length; ++i)
+    // request a major heartbeat
+    if (added && majorIfNew)
     {
-      synchronized (cLock)
-      {
-        ControllerCEntry curCEntry =
-          cEntryByDesc.get(chunkDesc[i].toSeqString());
+      try {
+        requestMajor(cs);
+      }
+      catch (Exception e) {
+        System.out.println(e.getMessage());
+      }
+    }
 
-        if (curCEntry == null)
-        {
-          ControllerCEntry newCEntry =
-            new ControllerCEntry(chunkDesc[i], cs);
+    // entry now holds these chunks and is just touched, so it
+    // isn't reaped before they are in and its holders go
+    // with it if it is reaped later
+    int node = nodeFor(cs);
 
-          cEntryByDesc.put(chunkDesc[i].toSeqString(), newCEntry);
-        }
-        else
-          curCEntry.touch(cs);
-      }
+    // taken in with other heartbeats arriving now
+    ChunkHandle[] rejected = ingester.addHolders(handles, node);
+    oplog.holdersAdded(handles, node);
+
+    for (int i = 0; i < rejected.length; ++i)
+      System.out.println("Too many holders of " + rejected[i] +
+                         ", not recording " + cs + ".");
+
+    return curSEntry;
+  }
+
+  // Replace the chunks we have for a chunkserver in some
+  // digest buckets with those it listed, forgetting it as
+  // a holder of chunks it no longer has.
+  private void reconcile(HostID cs, int[] buckets, ChunkHandle[] listed)
+  {
+    ControllerSEntry curSEntry = touch(cs, new ChunkHandle[0], false);
+
+    ChunkHandle[] gone = curSEntry.reconcile(buckets, listed);
+
+    int node = nodeFor(cs);
+
+    chunkIndex.removeHolders(gone, node);
+    oplog.holdersRemoved(gone, node);
+
+    ChunkHandle[] rejected = ingester.addHolders(listed, node);
+    oplog.holdersAdded(listed, node);
+
+    for (int i = 0; i < rejected.length; ++i)
+      System.out.println("Too many holders of " + rejected[i] +
+                         ", not recording " + cs + ".");
+  }
+
+  // Get node id of a chunkserver, assigning
+  // the next id if it has none yet.
+  private int nodeFor(HostID cs)
+  {
+    Integer node = nodeByHost.get(cs.toString());
+
+    if (node != null)
+      return node;
+
+    synchronized (nLock)
+    {
+      // may have been assigned since we looked
+      node = nodeByHost.get(cs.toString());
+
+      if (node != null)
+        return node;
+
+      // index zero marks no holder
+      if (hostByNode.length > ChunkIndex.maxNode)
+        throw new IllegalStateException("Out of node ids.");
+
+      node = hostByNode.length;
+
+      // publish host before its id so anyone
+      // holding the id can translate it
+      HostID[] hosts = new HostID[node+1];
+      System.arraycopy(hostByNode, 0, hosts, 0, node);
+      hosts[node] = cs;
+      hostByNode = hosts;
+
+      // logged before anyone can log holders by it
+      oplog.nodeAssigned(node, cs);
+
+      nodeByHost.put(cs.toString(), node);
+
+      return node;
     }
   }
 
+  // Get chunkservers for an array of node ids.
+  private HostID[] hostsFor(int[] nodes)
+  {
+    HostID[] hosts = new HostID[nodes.length];
+    HostID[] byNode = hostByNode;
+
+    for (int i = 0; i < nodes.length; ++i)
+      hosts[i] = byNode[nodes[i]];
+
+    return hosts;
+  }
+
   // Set the number of chunks currently stored on
   // a given chunkserver.
   private void setNumChunks(HostID cs, int numChunks)
@@ -454,8 +835,54 @@ public class Controller
       ControllerSEntry curSEntry =
         sEntryByHost.get(cs.toString());
 
+      // reaped since heartbeat arrived
+      if (curSEntry == null)
+        return;
+
       // set number of chunks
       curSEntry.setNumChunks(numChunks);
+      placement.update(curSEntry);
+    }
+  }
+
+  // Set the load last reported by a given chunkserver.
+  private void setLoad(HostID cs, NodeLoad load)
+  {
+    // older chunkservers don't report load
+    if (load == null)
+      return;
+
+    synchronized (sLock)
+    {
+      ControllerSEntry curSEntry =
+        sEntryByHost.get(cs.toString());
+
+      // reaped since heartbeat arrived
+      if (curSEntry == null)
+        return;
+
+      curSEntry.setLoad(load);
+      placement.update(curSEntry);
+    }
+  }
+
+  // Record where a chunkserver says it is and
+  // move it if that changes where we thought.
+  private void locate(HostID cs, String rack, String zone)
+  {
+    if (!topology.report(cs, rack, zone))
+      return;
+
+    oplog.located(cs, rack, zone);
+
+    synchronized (sLock)
+    {
+      ControllerSEntry curSEntry =
+        sEntryByHost.get(cs.toString());
+
+      // placed when first touched otherwise
+      if (curSEntry != null)
+        placement.relocate(curSEntry);
     }
   }
 
@@ -511,39 +938,23 @@ public class Controller
       requestMinor(chunkServer[i]);
   }
 
-  //
-  private void fixReplication(HostID curHolder, HostID newHolder, ChunkDescriptor chunkDesc)
-  {
-    FixReplicationMessage frm =
-      new FixReplicationMessage(id, curHolder, newHolder, chunkDesc);
-
-    System.out.println("Fixing replication: Sending " + chunkDesc +
-                       " from " + curHolder + " to " + newHolder);
-
-    synchronized (sLock) {
-      // very ineffecient but keeps balance
-      Collections.sort(sEntryList);
-      sEntryByHost.get(newHolder.toString()).incrementNumChunks();
-    }
-
-    try {
-      frm.send();
-    }
-    catch (Exception e) {
-      System.out.println("Failed to send fix replication message: " +
-                         e.getMessage());
-    }
-  }
-
   // add server entry for given chunkserver id
   // Must be synchronized by caller!
-  private void addSEntry(HostID cs, ChunkDescriptor[] chunkDesc)
+  private ControllerSEntry addSEntry(HostID cs, ChunkHandle[] handles)
   {
     ControllerSEntry newEntry =
-      new ControllerSEntry(cs, chunkDesc);
+      new ControllerSEntry(cs, handles);
 
     sEntryByHost.put(cs.toString(), newEntry);
+
+    newEntry.listSlot = sEntryList.size();
     sEntryList.add(newEntry);
+    placement.add(newEntry);
+
+    newEntry.timeout = deadlines.schedule(newEntry,
+                         ControllerSEntry.expirationSecs*1000);
+
+    return newEntry;
   }
 
   // delete given server entry from all data structure
@@ -553,82 +964,166 @@ public class Controller
     // remove server entry from hash table by id
     sEntryByHost.remove(e.getID().toString());
 
-    // create iterator over entry list
-    ListIterator<ControllerSEntry> itr =
-      sEntryList.listIterator();
+    // no longer a candidate for new chunks
+    placement.remove(e);
 
-    // while we have more entries
-    while (itr.hasNext())
-    {
-      // get current entry
-      ControllerSEntry curSEntry = itr.next();
+    // nor has a deadline to miss
+    deadlines.cancel(e.timeout);
 
-      // if this is the entry we are looking for
-      if (curSEntry.equals(e))
-      {
-        // remove from list
-        itr.remove();
-        break; // we're done
-      }
+    // move last entry into its slot rather than
+    // shifting the rest down, order doesn't matter
+    ControllerSEntry last = sEntryList.remove(sEntryList.size()-1);
+
+    if (last != e)
+    {
+      sEntryList.set(e.listSlot, last);
+      last.listSlot = e.listSlot;
     }
+
+    e.listSlot = -1;
   }
 
-  //
+  // Forget a dead chunkserver as holder of its chunks and
+  // queue them for new replicas, costs O(chunks on node),
+  // new holders are picked later from the placement heaps
   // Must be synchronized by caller!
   private void cleanCEntries(ControllerSEntry sentry)
   {
     HostID cs = sentry.getID();
-    ChunkDescriptor[] chunkDesc = sentry.getChunks();
+    ChunkHandle[] handles = sentry.getChunks();
+
+    // remove chunkserver from holders of its chunks,
+    // a stripe of the index at a time
+    int node = nodeFor(cs);
+
+    int[] remaining = chunkIndex.removeHolders(handles, node);
+    oplog.holdersRemoved(handles, node);
+
+    // nowhere left to copy from
+    for (int i = 0; i < handles.length; ++i)
+      if (remaining[i] == 0)
+        System.out.println("No replicas left of " + handles[i] + ".");
+
+    // copied in the background, fewest replicas first
+    replicator.enqueue(handles, remaining);
+  }
 
-    // for each chunk descriptor
-    for (int i = 0; i < chunkDesc.length; ++i)
+  // Chunkservers and holders as seen by the replication
+  // scheduler and rebalancer, called without them locked.
+  private class ControllerCluster
+    implements ReplicationScheduler.Cluster, Rebalancer.Cluster
+  {
+    public ControllerSEntry[] servers()
     {
-      // get centry by chunk descriptor
-      ControllerCEntry curCEntry =
-        cEntryByDesc.get(chunkDesc[i].toSeqString());
+      synchronized (sLock) {
+        return sEntryList.toArray(new ControllerSEntry[sEntryList.size()]);
+      }
+    }
 
-      // remove chunkserver from centry
-      curCEntry.delChunkServer(cs);
+    public HostID[] holders(ChunkHandle handle)
+    {
+      int[] nodes = chunkIndex.getHolders(handle.getFileId(),
+                                          handle.getSequence());
 
-      //
-      HostID[] curHolders = curCEntry.getChunkServers();
+      return (nodes == null) ? new HostID[0] : hostsFor(nodes);
+    }
 
-      //
-      HostID newHolder = null;
+    public HostID target(ChunkHandle handle, HostID[] holders,
+                         final Set<String> busy)
+    {
+      synchronized (sLock)
+      {
+        ControllerSEntry e = placement.another(holders,
+          new ServerHeap.Filter()
+          {
+            public boolean accept(ControllerSEntry e)
+            {
+              return !busy.contains(e.getID().toString());
+            }
+          });
 
-      // look at each server entry
-      for (int j = 0; (j < sEntryList.size()) && (newHolder == null); ++j)
+        if (e == null)
+          return null;
+
+        // count chunk now so placement stays balanced
+        e.incrementNumChunks();
+        placement.update(e);
+
+        return e.getID();
+      }
+    }
+
+    public void reserve(HostID target)
+    {
+      synchronized (sLock)
       {
-        newHolder = sEntryList.get(j).getID();
+        ControllerSEntry e = sEntryByHost.get(target.toString());
+
+        // reaped meanwhile
+        if (e == null)
+          return;
 
-        // check if server entry is a holder of chunk
-        for (int k = 0; (k < curHolders.length) && (newHolder != null); ++k)
-          if (newHolder.equals(curHolders[k]))
-            newHolder = null;
+        e.incrementNumChunks();
+        placement.update(e);
       }
-      if (newHolder == null)
-        System.out.println(
-          "No available chunkservers to fix replication of " +
-          curCEntry.getDescriptor() + ".");
-      else
-        fixReplication(curHolders[0], newHolder, curCEntry.getDescriptor());
     }
-  }
 
-  //
-/*  private void cleanCorrupt(ChunkDescriptor[] chunkDesc)
-  {
-    synchronized (cLock)
+    public void release(HostID target)
+    {
+      synchronized (sLock)
+      {
+        ControllerSEntry e = sEntryByHost.get(target.toString());
+
+        // reaped meanwhile
+        if (e == null)
+          return;
+
+        e.decrementNumChunks();
+        placement.update(e);
+      }
+    }
+
+    public boolean replicated(ChunkHandle handle, HostID target)
+    {
+      // reaper removes holders under sLock, so a
+      // target reaped meanwhile is never recorded
+      synchronized (sLock)
+      {
+        ControllerSEntry e = sEntryByHost.get(target.toString());
+
+        if (e == null)
+          return false;
+
+        int node = nodeFor(target);
+
+        e.addChunk(handle);
+        chunkIndex.addHolder(handle.getFileId(), handle.getSequence(), node);
+        oplog.holdersAdded(new ChunkHandle[] {handle}, node);
+        return true;
+      }
+    }
+
+    public void removed(ChunkHandle handle, HostID source)
     {
-      for (i = 0; i < chunkDesc.length; ++i)
+      synchronized (sLock)
       {
-        ControllerCEntry centry =
-          cEntryByDesc.get(chunkDesc[i].toSeqString());
+        int node = nodeFor(source);
+
+        chunkIndex.removeHolder(handle.getFileId(), handle.getSequence(), node);
+        oplog.holdersRemoved(new ChunkHandle[] {handle}, node);
+
+        ControllerSEntry e = sEntryByHost.get(source.toString());
 
-        centry.delChunkServer(chunkDesc[i]);
+        // reaped meanwhile
+        if (e == null)
+          return;
+
+        e.removeChunk(handle);
+        e.decrementNumChunks();
+        placement.update(e);
       }
     }
-  } */
+  }
 
   // Generate human readable string
   // listing all current chunkservers.
@@ -647,24 +1142,172 @@ public class Controller
     return s;
   }
 
+  // Controller state as seen by the metadata log, called
+  // back while recovering before anything else runs, and
+  // while checkpointing without the log locked.
+  private class ControllerState
+    implements ControllerLog.State
+  {
+    public void nodeAssigned(int node, HostID cs)
+    {
+      synchronized (nLock)
+      {
+        if (node >= hostByNode.length)
+        {
+          HostID[] hosts = new HostID[node+1];
+          System.arraycopy(hostByNode, 0, hosts, 0, hostByNode.length);
+          hostByNode = hosts;
+        }
+
+        hostByNode[node] = cs;
+        nodeByHost.put(cs.toString(), node);
+      }
+    }
+
+    public void located(HostID cs, String rack, String zone)
+    {
+      topology.report(cs, rack, zone);
+    }
+
+    public void fileCreated(long fileId, File f)
+    {
+      registerFiles(new long[] {fileId}, new File[] {f});
+    }
+
+    public void fileUpdated(FileInfo info)
+    {
+      ControllerFEntry fEntry = fEntryById.get(info.getFileId());
+
+      if (fEntry != null)
+        fEntry.restore(info);
+    }
+
+    public void snapshot(ControllerLog log)
+      throws IOException
+    {
+      HostID[] hosts = hostByNode;
+
+      for (int node = 1; node < hosts.length; ++node)
+      {
+        // lost from a damaged log
+        if (hosts[node] == null)
+          continue;
+
+        log.checkpointNode(node, hosts[node]);
+
+        Topology.Location loc = topology.locate(hosts[node]);
+        log.checkpointLocated(hosts[node], loc.getRack(), loc.getZone());
+      }
+
+      Iterator<ControllerFEntry> itr = fEntryById.values().iterator();
+
+      while (itr.hasNext())
+      {
+        ControllerFEntry fEntry = itr.next();
+
+        log.checkpointFile(fEntry.getFileId(), fEntry.getFile(),
+                           fEntry.getInfo());
+      }
+    }
+  }
+
+  // Make server entries for chunkservers holding recovered
+  // chunks, so new chunks are placed by what they hold
+  // until they report.  Those that never do are reaped.
+  private void restoreServers()
+  {
+    ChunkHandle[] handles = chunkIndex.handles();
+
+    if (handles.length == 0)
+      return;
+
+    // chunks of each node
+    HostID[] hosts = hostByNode;
+    ArrayList<ArrayList<ChunkHandle>> held =
+      new ArrayList<ArrayList<ChunkHandle>>(
+        Collections.nCopies(hosts.length, (ArrayList<ChunkHandle>)null));
+
+    for (int i = 0; i < handles.length; ++i)
+    {
+      int[] nodes = chunkIndex.getHolders(handles[i].getFileId(),
+                                          handles[i].getSequence());
+
+      for (int j = 0; j < nodes.length; ++j)
+      {
+        if (held.get(nodes[j]) == null)
+          held.set(nodes[j], new ArrayList<ChunkHandle>());
+
+        held.get(nodes[j]).add(handles[i]);
+      }
+    }
+
+    synchronized (sLock)
+    {
+      for (int node = 1; node < hosts.length; ++node)
+      {
+        if ((held.get(node) == null) || (hosts[node] == null))
+          continue;
+
+        ControllerSEntry e = addSEntry(hosts[node],
+          held.get(node).toArray(new ChunkHandle[held.get(node).size()]));
+
+        e.setNumChunks(held.get(node).size());
+        placement.update(e);
+      }
+    }
+
+    System.out.println("Restored " + sEntryList.size() + " chunkservers " +
+                       "holding " + handles.length + " chunks.");
+  }
+
+  // Generate human readable string
+  // listing chunkservers in each rack.
+  private String getRackString()
+  {
+    synchronized (sLock) {
+      return placement.toString();
+    }
+  }
+
   //
   private String getCEntryString()
   {
     String s = "";
 
-    synchronized (cLock)
+    ChunkHandle[] handles = chunkIndex.handles();
+
+    for (int i = 0; i < handles.length; ++i)
     {
-      Iterator<ControllerCEntry> itr =
-        cEntryByDesc.values().iterator();
+      s += i + ") " + handles[i];
 
-      int i = 0;
-      while (itr.hasNext())
-        s += i++ + ") " + itr.next() + "\n";
+      HostID[] holders = hostsFor(
+        chunkIndex.getHolders(handles[i].getFileId(),
+                              handles[i].getSequence()));
+      for (int j = 0; j < holders.length; ++j)
+        s += " -> " + holders[j];
+
+      s += "\n";
     }
 
     return s;
   }
 
+  // Generate human readable string
+  // listing all files we know of.
+  private String getFEntryString()
+  {
+    String s = "";
+
+    Iterator<ControllerFEntry> itr =
+      fEntryByName.values().iterator();
+
+    int i = 0;
+    while (itr.hasNext())
+      s += i++ + ") " + itr.next() + "\n";
+
+    return s;
+  }
+
   /**
    * Start a new controller
    * @param args Command-line arguments
@@ -672,6 +1315,9 @@ public class Controller
   public static void main(String[] args)
   {
     int contPort = 8000; // controller port number
+    Topology topology = new Topology(); // where hosts are
+    double bandwidth = defaultBandwidth; // background copy cap
+    File metaDir = new File(defaultMetaDir); // metadata kept here
 
     try
     {
@@ -682,6 +1328,21 @@ public class Controller
         if (args[i].equals("--port"))
           contPort = Integer.parseInt(args[++i]);
 
+        // load racks and zones of hosts
+        else if (args[i].equals("--topology"))
+          topology = Topology.load(new File(args[++i]));
+
+        // cap on background copying in MB/s
+        else if (args[i].equals("--bandwidth"))
+          bandwidth = Double.parseDouble(args[++i]) * 1e6;
+
+        // directory metadata is kept in, or none
+        else if (args[i].equals("--meta-dir"))
+        {
+          String d = args[++i];
+          metaDir = d.equals("none") ? null : new File(d);
+        }
+
         // bad command line argument
         else
           throw new Exception("Bad argument.");
@@ -697,7 +1358,8 @@ public class Controller
     try
     {
       // initialize new controller
-      Controller cont = new Controller(contPort);
+      Controller cont = new Controller(contPort, topology, metaDir);
+      cont.throttle.setRate(bandwidth);
 
       // start controller thread
       cont.start();
@@ -747,7 +1409,43 @@ public class Controller
         // print some simple help
         if (cmd.equals("?"))
           System.out.println(
-            "clear centry free holders id major minor reap sentry quit");
+            "balance bench checkpoint clear centry files free holders id " +
+            "major minor racks reap replication sentry quit");
+
+        // benchmark controller data structures
+        else if (cmd.equals("bench"))
+        {
+          String what = tok.hasMoreElements() ? tok.nextToken() : "";
+
+          if (what.equals("index"))
+            ControllerBench.indexMemory(tok.hasMoreElements() ?
+              Long.parseLong(tok.nextToken()) : ControllerBench.defaultChunks);
+
+          else if (what.equals("holders"))
+            ControllerBench.holdersScaling(tok.hasMoreElements() ?
+              Integer.parseInt(tok.nextToken()) :
+              2*Runtime.getRuntime().availableProcessors());
+
+          else if (what.equals("free"))
+            ControllerBench.placement(tok.hasMoreElements() ?
+              Integer.parseInt(tok.nextToken()) : ControllerBench.defaultServers);
+
+          else if (what.equals("ingest"))
+            ControllerBench.ingest(tok.hasMoreElements() ?
+              Integer.parseInt(tok.nextToken()) : ControllerBench.defaultReporting);
+
+          else
+            System.out.println(
+              "bench index [chunks] | holders [threads] | free [servers] | " +
+              "ingest [servers]");
+        }
+
+        // checkpoint metadata now and show the log
+        else if (cmd.equals("checkpoint"))
+        {
+          cont.oplog.checkpoint();
+          System.out.println(cont.oplog);
+        }
 
         // clear the console
         else if (cmd.equals("clear"))
@@ -757,16 +1455,20 @@ public class Controller
         else if (cmd.equals("centry"))
           System.out.println(cont.getCEntryString());
 
+        // list all files we know of
+        else if (cmd.equals("files"))
+          System.out.println(cont.getFEntryString());
+
         // list chunkservers eligible to hold new chunks
         else if (cmd.equals("free"))
         {
-          HostID[] free = cont.getFree();
+          HostID[] free = cont.getFree(cont.id);
           for (int i = 0; i < free.length; ++i)
             System.out.println(i + ") " + free[i]);
           System.out.println();
         }
 
-        // list chunkservers holding chunk descriptor
+        // list chunkservers holding a chunk of a file
         else if (cmd.equals("holders"))
         {
           if (!tok.hasMoreElements())
@@ -781,10 +1483,11 @@ public class Controller
 
             else
             {
-              int offset = Integer.parseInt(tok.nextToken());
+              long offset = Long.parseLong(tok.nextToken());
 
               HostID[] holders = cont.queryChunk(
-                new ChunkDescriptor(f, offset));
+                new ChunkHandle(cont.fileIdFor(f, false),
+                                offset/Chunk.maxSize), cont.id);
 
               for (int i = 0; i < holders.length; ++i)
                 System.out.println(i + ") " + holders[i]);
@@ -807,9 +1510,42 @@ public class Controller
         else if (cmd.equals("minor"))
           cont.requestAllMinor();
 
+        // list racks and how many chunkservers are in each
+        else if (cmd.equals("racks"))
+          System.out.println(cont.getRackString());
+
         else if (cmd.equals("reap"))
           cont.reaper.reap();
 
+        // show rebalancing progress, turn it on or
+        // off, or set the spread allowed in percent
+        else if (cmd.equals("balance"))
+        {
+          if (tok.hasMoreElements())
+          {
+            String arg = tok.nextToken();
+
+            if (arg.equals("on"))
+              cont.balancer.setEnabled(true);
+            else if (arg.equals("off"))
+              cont.balancer.setEnabled(false);
+            else
+              cont.balancer.setThreshold(Double.parseDouble(arg) / 100);
+          }
+
+          System.out.println(cont.balancer);
+        }
+
+        // show re-replication progress, or set
+        // the background copy cap in MB/s
+        else if (cmd.equals("replication"))
+        {
+          if (tok.hasMoreElements())
+            cont.throttle.setRate(Double.parseDouble(tok.nextToken()) * 1e6);
+
+          System.out.println(cont.replicator);
+        }
+
         //
         else if (cmd.equals("sentry"))
           System.out.println(cont.getSEntryString());
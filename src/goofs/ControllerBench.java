@@ -0,0 +1,589 @@
+package goofs;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+
+/**
+ * Benchmarks of controller data structures, run
+ * from the controller prompt with the bench command.
+ *
+ * @author Elliott Forney
+ */
+public class ControllerBench
+{
+  /** chunks indexed by default, a few petabytes of data */
+  public static final long defaultChunks = 100*1000*1000;
+
+  // chunks per simulated file, 1GB files
+  private static final int chunksPerFile = 16*1024;
+
+  // chunkservers holders are drawn from
+  private static final int numNodes = 1000;
+
+  // chunks in the string keyed table we compare against,
+  // kept small since it takes so much more memory
+  private static final int maxLegacyChunks = 1000*1000;
+
+  // chunks indexed when measuring lookup scaling
+  private static final int scalingChunks = 4*1000*1000;
+
+  // chunks in each simulated heartbeat
+  private static final int heartbeatChunks = 10*1000;
+
+  // seconds each lookup scaling run lasts
+  private static final int scalingSecs = 3;
+
+  /** chunkservers placed among by default */
+  public static final int defaultServers = 10*1000;
+
+  // allocations measured for each placement method
+  private static final int numAllocations = 1000*1000;
+
+  // allocations measured by resorting, far slower
+  private static final int numSortAllocations = 1000;
+
+  // allocations between simulated major heartbeats
+  private static final int allocationsPerHeartbeat = 100;
+
+  /** default chunkservers reporting at once */
+  public static final int defaultReporting = 100;
+
+  // chunks each reporting chunkserver holds
+  private static final int chunksPerServer = 50*1000;
+
+  /**
+   * Measure bytes per chunk taken by the chunk index
+   * and by a string keyed table like the one it replaced.
+   * If the heap is too small for numChunks, fewer chunks
+   * are indexed and the footprint at numChunks is projected
+   * from the table layout.
+   *
+   * @param numChunks Chunks to index.
+   */
+  public static void indexMemory(long numChunks)
+    throws Exception
+  {
+    System.out.printf("Projected index at %d chunks: %.1f MB, %.1f bytes/chunk%n",
+                      numChunks, ChunkIndex.memoryFor(numChunks)/1e6,
+                      (double)ChunkIndex.memoryFor(numChunks)/numChunks);
+
+    // index is presized, leave a quarter of
+    // free heap for the rest of the controller
+    long room = (Runtime.getRuntime().maxMemory() - usedMemory()) / 4 * 3;
+
+    long n = numChunks;
+    while (ChunkIndex.memoryFor(n) > room)
+      n /= 2;
+
+    if (n < numChunks)
+      System.out.println("Heap too small for " + numChunks +
+                         " chunks, measuring " + n + ".");
+
+    long before = usedMemory();
+    long start  = System.nanoTime();
+
+    ChunkIndex index = new ChunkIndex(n);
+    fill(index, n);
+
+    double secs = (System.nanoTime() - start) / 1e9;
+    long used = usedMemory() - before;
+
+    System.out.printf("Chunk index: %d chunks, %.1f MB, %.1f bytes/chunk, " +
+                      "%.0f inserts/sec%n", n, used/1e6,
+                      (double)used/n, n*holdersPer()/secs);
+
+    // random lookups
+    int numLookups = (int)Math.min(n, 1000*1000);
+    long seed = 1;
+    long found = 0;
+
+    start = System.nanoTime();
+    for (int i = 0; i < numLookups; ++i)
+    {
+      seed = next(seed);
+      long c = (seed >>> 1) % n;
+
+      if (index.getHolders(c / chunksPerFile, c % chunksPerFile) != null)
+        ++found;
+    }
+    secs = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("Chunk index: %d of %d lookups found, " +
+                      "%.0f lookups/sec%n", found, numLookups,
+                      numLookups/secs);
+
+    index = null;
+
+    // string keyed table of holder lists for comparison
+    int m = (int)Math.min(n, maxLegacyChunks);
+
+    HostID[] hosts = new HostID[numNodes];
+    for (int i = 0; i < numNodes; ++i)
+      hosts[i] = new HostID("chunkserver-" + i, 8000);
+
+    before = usedMemory();
+
+    Hashtable<String, ArrayList<HostID>> table =
+      new Hashtable<String, ArrayList<HostID>>();
+
+    seed = 1;
+    for (int i = 0; i < m; ++i)
+    {
+      File f = new File("/data/file" + (i / chunksPerFile));
+
+      ArrayList<HostID> holders = new ArrayList<HostID>();
+      for (int j = 0; j < holdersPer(); ++j)
+      {
+        seed = next(seed);
+        holders.add(hosts[(int)((seed >>> 1) % numNodes)]);
+      }
+
+      table.put(f + ":" + (i % chunksPerFile), holders);
+    }
+
+    used = usedMemory() - before;
+
+    System.out.printf("String keyed table: %d chunks, %.1f MB, " +
+                      "%.1f bytes/chunk%n", m, used/1e6,
+                      (double)used/table.size());
+  }
+
+  /**
+   * Measure how GetHolders lookups scale with the number
+   * of threads doing them while a heartbeat is taken in
+   * at the same time, both for the chunk index behind a
+   * single lock, as the controller used to keep it, and
+   * for the striped index it keeps now.
+   *
+   * @param maxThreads Most lookup threads, runs are made
+   *   with 1, 2, 4 and so on up to maxThreads.
+   */
+  public static void holdersScaling(int maxThreads)
+    throws Exception
+  {
+    System.out.println("Lookup scaling over " + scalingChunks +
+                       " chunks, " + Runtime.getRuntime().availableProcessors() +
+                       " processors, heartbeats of " + heartbeatChunks +
+                       " chunks running throughout.");
+
+    final ChunkIndex single = new ChunkIndex(scalingChunks);
+    fill(single, scalingChunks);
+
+    scaling("Single lock", maxThreads, new Holders()
+    {
+      public int[] get(long fileId, long seq)
+      {
+        synchronized (single) {
+          return single.getHolders(fileId, seq);
+        }
+      }
+
+      public void add(ChunkHandle[] handles, int node)
+      {
+        for (int i = 0; i < handles.length; ++i)
+          synchronized (single) {
+            single.addHolder(handles[i].getFileId(),
+                             handles[i].getSequence(), node);
+          }
+      }
+    });
+
+    final StripedChunkIndex striped = new StripedChunkIndex(scalingChunks);
+    fill(striped, scalingChunks);
+
+    scaling("Striped", maxThreads, new Holders()
+    {
+      public int[] get(long fileId, long seq)
+      {
+        return striped.getHolders(fileId, seq);
+      }
+
+      public void add(ChunkHandle[] handles, int node)
+      {
+        striped.addHolders(handles, node);
+      }
+    });
+  }
+
+  /**
+   * Measure how many chunk allocations per second
+   * the controller can place, picking the least loaded
+   * chunkservers from the server heap and, as before,
+   * by sorting every chunkserver for each allocation.
+   * Major heartbeats resetting a chunkserver's count
+   * are mixed in.
+   *
+   * @param numServers Chunkservers to place among.
+   */
+  public static void placement(int numServers)
+    throws Exception
+  {
+    ControllerSEntry[] entries = servers(numServers);
+
+    ServerHeap heap = new ServerHeap();
+    for (int i = 0; i < numServers; ++i)
+      heap.add(entries[i]);
+
+    long seed = 1;
+    long start = System.nanoTime();
+
+    for (int i = 0; i < numAllocations; ++i)
+    {
+      ControllerSEntry[] free = heap.least(Controller.replicationLevel);
+
+      for (int j = 0; j < free.length; ++j)
+      {
+        free[j].incrementNumChunks();
+        heap.update(free[j]);
+      }
+
+      // heartbeat corrects some chunkserver's count
+      if (i % allocationsPerHeartbeat == 0)
+      {
+        seed = next(seed);
+        ControllerSEntry e = entries[(int)((seed >>> 1) % numServers)];
+
+        e.setNumChunks((int)((seed >>> 33) % 100000));
+        heap.update(e);
+      }
+    }
+
+    double secs = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("Server heap: %d chunkservers, %.0f allocations/sec%n",
+                      numServers, numAllocations/secs);
+
+    // sort whole list each allocation as getFree used to
+    ArrayList<ControllerSEntry> list = new ArrayList<ControllerSEntry>();
+    entries = servers(numServers);
+    for (int i = 0; i < numServers; ++i)
+      list.add(entries[i]);
+
+    seed = 1;
+    start = System.nanoTime();
+
+    for (int i = 0; i < numSortAllocations; ++i)
+    {
+      Collections.sort(list);
+
+      for (int j = 0; j < Controller.replicationLevel; ++j)
+        list.get(j).incrementNumChunks();
+
+      if (i % allocationsPerHeartbeat == 0)
+      {
+        seed = next(seed);
+        entries[(int)((seed >>> 1) % numServers)].setNumChunks(
+          (int)((seed >>> 33) % 100000));
+      }
+    }
+
+    secs = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("Sorted list: %d chunkservers, %.0f allocations/sec%n",
+                      numServers, numSortAllocations/secs);
+  }
+
+  /**
+   * Measure how long the controller takes to index every
+   * chunk when all chunkservers send their chunk lists at
+   * once, as after a restart, each list taken into the
+   * striped index by its own heartbeat as before, and
+   * combined into bulk loads by the heartbeat ingester.
+   *
+   * @param numServers Chunkservers reporting.
+   */
+  public static void ingest(int numServers)
+    throws Exception
+  {
+    // each chunk on holdersPer chunkservers in turn
+    final ChunkHandle[][] lists = new ChunkHandle[numServers][chunksPerServer];
+
+    long numChunks = (long)numServers * chunksPerServer / holdersPer();
+    for (long c = 0; c < (long)numServers * chunksPerServer; ++c)
+    {
+      long chunk = c % numChunks;
+      lists[(int)(c / chunksPerServer)][(int)(c % chunksPerServer)] =
+        new ChunkHandle(chunk / chunksPerFile, chunk % chunksPerFile);
+    }
+
+    System.out.println("Restart of " + numServers + " chunkservers, " +
+                       chunksPerServer + " chunks each, " +
+                       Runtime.getRuntime().availableProcessors() +
+                       " processors.");
+
+    final StripedChunkIndex direct = new StripedChunkIndex(numChunks);
+
+    report("Per heartbeat", numServers, reportAll(lists, new Holders()
+    {
+      public int[] get(long fileId, long seq)
+      {
+        return null;
+      }
+
+      public void add(ChunkHandle[] handles, int node)
+      {
+        direct.addHolders(handles, node);
+      }
+    }));
+
+    final HeartbeatIngester ingester =
+      new HeartbeatIngester(new StripedChunkIndex(numChunks));
+
+    report("Bulk loads", numServers, reportAll(lists, new Holders()
+    {
+      public int[] get(long fileId, long seq)
+      {
+        return null;
+      }
+
+      public void add(ChunkHandle[] handles, int node)
+      {
+        ingester.addHolders(handles, node);
+      }
+    }));
+
+    System.out.println(ingester);
+  }
+
+  // send every chunk list at once, a thread
+  // each, return seconds until all are in
+  private static double reportAll(final ChunkHandle[][] lists,
+                                  final Holders table)
+    throws Exception
+  {
+    Thread[] threads = new Thread[lists.length];
+
+    for (int i = 0; i < lists.length; ++i)
+    {
+      final int node = i+1;
+
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          table.add(lists[node-1], node);
+        }
+      };
+    }
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < threads.length; ++i)
+      threads[i].start();
+
+    for (int i = 0; i < threads.length; ++i)
+      threads[i].join();
+
+    return (System.nanoTime() - start) / 1e9;
+  }
+
+  // print time taken to report chunk lists
+  private static void report(String name, int numServers, double secs)
+  {
+    System.out.printf("%s: %.2f sec, %.0f chunks/sec%n", name, secs,
+                      (double)numServers*chunksPerServer/secs);
+  }
+
+  // chunkservers with random numbers of chunks
+  private static ControllerSEntry[] servers(int numServers)
+    throws Exception
+  {
+    ControllerSEntry[] entries = new ControllerSEntry[numServers];
+
+    long seed = 1;
+    for (int i = 0; i < numServers; ++i)
+    {
+      entries[i] = new ControllerSEntry(
+        new HostID("chunkserver-" + i, 8000), new ChunkHandle[0]);
+
+      seed = next(seed);
+      entries[i].setNumChunks((int)((seed >>> 33) % 100000));
+    }
+
+    return entries;
+  }
+
+  // run lookups with 1, 2, 4... threads and a heartbeat
+  // thread against a table and report rates for each
+  private static void scaling(String name, int maxThreads, Holders table)
+    throws Exception
+  {
+    double base = 0;
+
+    for (int n = 1; n <= maxThreads; n *= 2)
+    {
+      Lookup[] lookups = new Lookup[n];
+      for (int i = 0; i < n; ++i)
+        lookups[i] = new Lookup(table, i+1);
+
+      Heartbeat heartbeat = new Heartbeat(table);
+
+      heartbeat.start();
+      for (int i = 0; i < n; ++i)
+        lookups[i].start();
+
+      Thread.sleep(scalingSecs*1000);
+
+      heartbeat.halt();
+      for (int i = 0; i < n; ++i)
+        lookups[i].halt();
+
+      long count = 0;
+      for (int i = 0; i < n; ++i)
+        count += lookups[i].count;
+
+      double rate = (double)count / scalingSecs;
+      if (n == 1)
+        base = rate;
+
+      System.out.printf("%s: %d threads, %.0f lookups/sec, %.2fx, " +
+                        "%.0f heartbeat chunks/sec%n", name, n, rate,
+                        rate/base, (double)heartbeat.count/scalingSecs);
+    }
+  }
+
+  // chunk table under test
+  private static abstract class Holders
+  {
+    // get holders of a chunk
+    public abstract int[] get(long fileId, long seq);
+
+    // record a node as holder of chunks
+    public abstract void add(ChunkHandle[] handles, int node);
+  }
+
+  // thread looking up random chunks until halted
+  private static class Lookup
+    extends Thread
+  {
+    // table looked up
+    Holders table;
+
+    // state of generator
+    long seed;
+
+    // set to stop thread
+    volatile boolean halted = false;
+
+    // lookups done, read once halted
+    public long count = 0;
+
+    public Lookup(Holders table, long seed)
+    {
+      this.table = table;
+      this.seed  = seed;
+    }
+
+    public void run()
+    {
+      long n = 0;
+
+      while (!halted)
+      {
+        seed = next(seed);
+        long c = (seed >>> 1) % scalingChunks;
+
+        table.get(c / chunksPerFile, c % chunksPerFile);
+        ++n;
+      }
+
+      count = n;
+    }
+
+    // stop thread and wait for it
+    public void halt()
+      throws InterruptedException
+    {
+      halted = true;
+      join();
+    }
+  }
+
+  // thread feeding heartbeats of random chunks until halted
+  private static class Heartbeat
+    extends Lookup
+  {
+    public Heartbeat(Holders table)
+    {
+      super(table, 0);
+    }
+
+    public void run()
+    {
+      long n = 0;
+
+      ChunkHandle[] handles = new ChunkHandle[heartbeatChunks];
+
+      while (!halted)
+      {
+        for (int i = 0; i < handles.length; ++i)
+        {
+          seed = next(seed);
+          long c = (seed >>> 1) % scalingChunks;
+
+          handles[i] = new ChunkHandle(c / chunksPerFile, c % chunksPerFile);
+        }
+
+        table.add(handles, 1 + (int)(n % numNodes));
+        n += handles.length;
+      }
+
+      count = n;
+    }
+  }
+
+  // index n chunks of simulated files, each
+  // with holdersPer holders drawn at random
+  private static void fill(ChunkIndex index, long n)
+  {
+    long seed = 1;
+
+    for (long c = 0; c < n; ++c)
+      for (int j = 0; j < holdersPer(); ++j)
+      {
+        seed = next(seed);
+        index.addHolder(c / chunksPerFile, c % chunksPerFile,
+                        1 + (int)((seed >>> 1) % numNodes));
+      }
+  }
+
+  // fill a striped index as above
+  private static void fill(StripedChunkIndex index, long n)
+  {
+    long seed = 1;
+
+    for (long c = 0; c < n; ++c)
+      for (int j = 0; j < holdersPer(); ++j)
+      {
+        seed = next(seed);
+        index.addHolder(c / chunksPerFile, c % chunksPerFile,
+                        1 + (int)((seed >>> 1) % numNodes));
+      }
+  }
+
+  // replicas of each simulated chunk
+  private static int holdersPer()
+  {
+    return Controller.replicationLevel;
+  }
+
+  // step a simple linear congruential generator, cheaper
+  // than Random so it doesn't dominate the timings
+  private static long next(long seed)
+  {
+    return seed*6364136223846793005l + 1442695040888963407l;
+  }
+
+  // heap in use after collecting garbage
+  private static long usedMemory()
+  {
+    Runtime rt = Runtime.getRuntime();
+
+    for (int i = 0; i < 3; ++i)
+      System.gc();
+
+    return rt.totalMemory() - rt.freeMemory();
+  }
+}
@@ -0,0 +1,117 @@
+package goofs;
+
+import java.io.*;
+import java.util.Date;
+
+/**
+ * Entry in controller map describing a whole
+ * file: the id chunks of the file are known
+ * by and its length, chunk size and version.
+ *
+ * @author Elliott Forney
+ */
+public class ControllerFEntry
+{
+  // id chunk handles refer to the file by
+  private long fileId;
+
+  // abstract pathname of the file
+  private File f;
+
+  // length of file in bytes
+  private long length = 0;
+
+  // bytes in each chunk except the last
+  private int chunkSize = Chunk.maxSize;
+
+  // incremented each time file is submitted
+  private int version = 0;
+
+  // last-modified time in milliseconds since epoch
+  private long timeStamp;
+
+  /**
+   * Create a new file entry, it has no metadata
+   * until the file is first submitted.
+   *
+   * @param fileId Id chunk handles refer to the file by.
+   * @param f Abstract pathname of the file.
+   */
+  public ControllerFEntry(long fileId, File f)
+  {
+    this.fileId = fileId;
+    this.f = f;
+    this.timeStamp = (new Date()).getTime();
+  }
+
+  /**
+   * Record a new submission of this file.
+   * Version is incremented and last-modified
+   * time set to now.
+   *
+   * @param length New length of the file in bytes.
+   * @param chunkSize Bytes in each chunk except the last.
+   */
+  public synchronized void update(long length, int chunkSize)
+  {
+    this.length    = length;
+    this.chunkSize = chunkSize;
+    this.timeStamp = (new Date()).getTime();
+    ++version;
+  }
+
+  /**
+   * Set metadata back to that of a past submission,
+   * as when the controller restarts.
+   */
+  public synchronized void restore(FileInfo info)
+  {
+    this.length    = info.getLength();
+    this.chunkSize = info.getChunkSize();
+    this.version   = info.getVersion();
+    this.timeStamp = info.getTimeStamp();
+  }
+
+  /**
+   * Get id chunk handles refer to the file by.
+   */
+  public long getFileId()
+  {
+    return fileId;
+  }
+
+  /**
+   * Get abstract pathname of the file.
+   */
+  public File getFile()
+  {
+    return f;
+  }
+
+  /**
+   * Get a snapshot of the metadata for this file.
+   *
+   * @return Metadata or null if the file
+   *   has never been submitted.
+   */
+  public synchronized FileInfo getInfo()
+  {
+    if (version == 0)
+      return null;
+
+    return new FileInfo(f, fileId, length, chunkSize, version, timeStamp);
+  }
+
+  /**
+   * Generate human readable string describing this file entry.
+   */
+  public String toString()
+  {
+    FileInfo info = getInfo();
+
+    if (info == null)
+      return f + " id " + fileId + ", not yet submitted";
+    else
+      return info + ", id " + fileId;
+  }
+}
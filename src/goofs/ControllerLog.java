@@ -0,0 +1,807 @@
+package goofs;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Operation log and checkpoints of controller metadata, so a
+ * restarted controller answers lookups from what it knew
+ * rather than waiting for every chunkserver to report.  Each
+ * change to node ids, locations, files and chunk holders is
+ * appended to a log as a small binary record.  Now and then
+ * the log is rolled over and the whole state is written out
+ * as a compact binary checkpoint, after which older logs are
+ * deleted.  On startup the last checkpoint is loaded and the
+ * logs since replayed in order.
+ *
+ * Records set rather than adjust state, so replaying one the
+ * checkpoint already holds does no harm.  Records are flushed
+ * to the operating system as they are written and synced to
+ * disk once a second.  Holders are only a hint, heartbeats
+ * correct whatever the log missed or got out of order.
+ *
+ * @author Elliott Forney
+ */
+public class ControllerLog
+{
+  /** seconds between checkpoints */
+  public static final int checkpointSecs = 300;
+
+  /** log bytes written before a checkpoint is taken early */
+  public static final int maxLogBytes = 64 << 20;
+
+  // seconds before trying again once logging has failed
+  private static final int retrySecs = 10;
+
+  // marks start of a checkpoint and a log file
+  private static final int checkpointMagic = 0x676f6643; // "gofC"
+  private static final int logMagic        = 0x676f664c; // "gofL"
+
+  // format of files written, bumped when it changes
+  private static final int formatVersion = 1;
+
+  // kinds of records
+  private static final byte nodeRecord    = 1;
+  private static final byte locateRecord  = 2;
+  private static final byte createRecord  = 3;
+  private static final byte updateRecord  = 4;
+  private static final byte addRecord     = 5;
+  private static final byte removeRecord  = 6;
+  private static final byte indexRecord   = 7;
+  private static final byte endRecord     = 8;
+
+  // file names in directory
+  private static final String checkpointName = "checkpoint";
+  private static final String logPrefix      = "log.";
+
+  /**
+   * Controller state kept by the log, changes are
+   * called back to while loading, one at a time.
+   */
+  public interface State
+  {
+    /**
+     * Set chunkserver known by a node id.
+     */
+    public void nodeAssigned(int node, HostID cs);
+
+    /**
+     * Set where a chunkserver said it is.
+     */
+    public void located(HostID cs, String rack, String zone);
+
+    /**
+     * Add a file with an id if neither is known.
+     */
+    public void fileCreated(long fileId, File f);
+
+    /**
+     * Set metadata of a file from its last submission.
+     */
+    public void fileUpdated(FileInfo info);
+
+    /**
+     * Write every node, location and file to a
+     * checkpoint, chunk holders are written after.
+     */
+    public void snapshot(ControllerLog log)
+      throws IOException;
+  }
+
+  // directory checkpoint and logs are in
+  private File dir;
+
+  // holders of chunks, written to and loaded
+  // from checkpoints directly
+  private StripedChunkIndex index;
+
+  // called back with everything loaded
+  private State state;
+
+  // log being appended to, null if none is open
+  private DataOutputStream log = null;
+  private FileOutputStream logFile = null;
+
+  // number of log being appended to
+  private long logNumber = 0;
+
+  // true if records were written since last sync
+  private boolean dirty = false;
+
+  // records written to the log being appended to
+  private long logRecords = 0;
+
+  // checkpoint being written, only while snapshot is
+  // called, guarded by checkpointLock
+  private DataOutputStream checkpoint = null;
+
+  // one checkpoint at a time, taken before this
+  private Object checkpointLock = new Object();
+
+  // when last checkpoint finished, in milliseconds
+  private long lastCheckpoint = 0;
+
+  // counts kept for status
+  private long records = 0;
+  private long checkpoints = 0;
+  private long checkpointBytes = 0;
+  private long failures = 0;
+
+  /**
+   * Create a log kept in a directory, nothing is
+   * read or written until recover is called.
+   *
+   * @param dir Directory for checkpoint and logs,
+   *   null to keep nothing.
+   * @param index Chunk holders written to checkpoints.
+   * @param state Rest of controller state.
+   */
+  public ControllerLog(File dir, StripedChunkIndex index, State state)
+  {
+    this.dir   = dir;
+    this.index = index;
+    this.state = state;
+  }
+
+  /**
+   * Load last checkpoint and replay logs since, then take
+   * a checkpoint of the result and start a new log.
+   */
+  public void recover()
+    throws IOException
+  {
+    // nothing kept
+    if (dir == null)
+      return;
+
+    dir.mkdirs();
+
+    long start = System.currentTimeMillis();
+    long first = 0;
+
+    File cp = new File(dir, checkpointName);
+
+    if (cp.exists())
+      first = load(cp);
+
+    // logs from the checkpoint on, in order
+    ArrayList<Long> numbers = logNumbers();
+    int replayed = 0;
+
+    for (int i = 0; i < numbers.size(); ++i)
+    {
+      long n = numbers.get(i);
+
+      if (n >= first)
+      {
+        replay(logFor(n));
+        ++replayed;
+      }
+
+      logNumber = Math.max(logNumber, n);
+    }
+
+    if (cp.exists() || (replayed > 0))
+      System.out.println(String.format(
+        "Recovered metadata from %s and %d logs in %.2f seconds.",
+        cp.exists() ? "checkpoint" : "no checkpoint", replayed,
+        (System.currentTimeMillis() - start) / 1000.0));
+
+    // later logs start after any found
+    ++logNumber;
+
+    checkpoint();
+  }
+
+  /**
+   * Start a thread syncing the log to disk and taking
+   * checkpoints as time passes and the log grows.
+   */
+  public void start()
+  {
+    if (dir == null)
+      return;
+
+    Thread syncer = new Thread("metadata log")
+    {
+      public void run()
+      {
+        while (true)
+        {
+          try {
+            Thread.sleep(1000);
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+
+          sync();
+
+          boolean due;
+
+          synchronized (ControllerLog.this)
+          {
+            long age = System.currentTimeMillis() - lastCheckpoint;
+
+            if (log == null)
+              due = (age >= retrySecs*1000l);
+            else
+              due = (log.size() >= maxLogBytes) ||
+                    ((age >= checkpointSecs*1000l) && (logRecords > 0));
+          }
+
+          if (due)
+          {
+            try {
+              checkpoint();
+            }
+            catch (IOException e) {
+              checkpointFailed(e);
+            }
+          }
+        }
+      }
+    };
+
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /**
+   * Record a chunkserver being given a node id.
+   */
+  public synchronized void nodeAssigned(int node, HostID cs)
+  {
+    try
+    {
+      if (log == null)
+        return;
+
+      writeNode(log, node, cs);
+      logged();
+    }
+    catch (IOException e) {
+      logFailed(e);
+    }
+  }
+
+  /**
+   * Record where a chunkserver says it is.
+   */
+  public synchronized void located(HostID cs, String rack, String zone)
+  {
+    try
+    {
+      if (log == null)
+        return;
+
+      writeLocated(log, cs, rack, zone);
+      logged();
+    }
+    catch (IOException e) {
+      logFailed(e);
+    }
+  }
+
+  /**
+   * Record a file being given an id.
+   */
+  public synchronized void fileCreated(long fileId, File f)
+  {
+    try
+    {
+      if (log == null)
+        return;
+
+      writeCreated(log, fileId, f);
+      logged();
+    }
+    catch (IOException e) {
+      logFailed(e);
+    }
+  }
+
+  /**
+   * Record metadata of a file after a submission.
+   */
+  public synchronized void fileUpdated(FileInfo info)
+  {
+    try
+    {
+      if (log == null)
+        return;
+
+      writeUpdated(log, info);
+      logged();
+    }
+    catch (IOException e) {
+      logFailed(e);
+    }
+  }
+
+  /**
+   * Record a chunkserver holding a list of chunks.
+   */
+  public void holdersAdded(ChunkHandle[] handles, int node)
+  {
+    holders(addRecord, handles, node);
+  }
+
+  /**
+   * Record a chunkserver no longer holding a list of chunks.
+   */
+  public void holdersRemoved(ChunkHandle[] handles, int node)
+  {
+    holders(removeRecord, handles, node);
+  }
+
+  /**
+   * Write a node to the checkpoint being taken,
+   * only to be called from State.snapshot.
+   */
+  public void checkpointNode(int node, HostID cs)
+    throws IOException
+  {
+    writeNode(checkpoint, node, cs);
+  }
+
+  /**
+   * Write a location to the checkpoint being taken,
+   * only to be called from State.snapshot.
+   */
+  public void checkpointLocated(HostID cs, String rack, String zone)
+    throws IOException
+  {
+    writeLocated(checkpoint, cs, rack, zone);
+  }
+
+  /**
+   * Write a file to the checkpoint being taken,
+   * only to be called from State.snapshot.
+   *
+   * @param info Metadata of file, null if never submitted.
+   */
+  public void checkpointFile(long fileId, File f, FileInfo info)
+    throws IOException
+  {
+    writeCreated(checkpoint, fileId, f);
+
+    if (info != null)
+      writeUpdated(checkpoint, info);
+  }
+
+  /**
+   * Roll over to a new log and write a checkpoint of
+   * everything up to it, then delete older logs.  Until
+   * the checkpoint is safely on disk the last one and
+   * the logs since are kept.
+   */
+  public void checkpoint()
+    throws IOException
+  {
+    if (dir == null)
+      return;
+
+    synchronized (checkpointLock)
+    {
+      long first;
+
+      // changes from here on go in the new log
+      synchronized (this)
+      {
+        closeLog();
+
+        first = logNumber++;
+        openLog(first);
+      }
+
+      File tmp = new File(dir, checkpointName + ".tmp");
+      FileOutputStream out = new FileOutputStream(tmp);
+
+      try
+      {
+        checkpoint = new DataOutputStream(
+          new BufferedOutputStream(out, 1 << 16));
+
+        checkpoint.writeInt(checkpointMagic);
+        checkpoint.writeInt(formatVersion);
+        checkpoint.writeLong(first);
+
+        state.snapshot(this);
+
+        checkpoint.writeByte(indexRecord);
+        index.write(checkpoint);
+
+        checkpoint.writeByte(endRecord);
+        checkpoint.flush();
+
+        out.getFD().sync();
+      }
+      finally
+      {
+        checkpoint = null;
+        out.close();
+      }
+
+      if (!tmp.renameTo(new File(dir, checkpointName)))
+        throw new IOException("Failed to rename " + tmp + ".");
+
+      // everything in older logs is in the checkpoint
+      ArrayList<Long> numbers = logNumbers();
+
+      for (int i = 0; i < numbers.size(); ++i)
+        if (numbers.get(i) < first)
+          logFor(numbers.get(i)).delete();
+
+      synchronized (this)
+      {
+        lastCheckpoint = System.currentTimeMillis();
+        checkpointBytes = new File(dir, checkpointName).length();
+        ++checkpoints;
+      }
+    }
+  }
+
+  /**
+   * Generate human readable string describing the log.
+   */
+  public synchronized String toString()
+  {
+    if (dir == null)
+      return "metadata not kept";
+
+    return String.format("%s, log %d at %.1f KB, %d records, " +
+                         "%d checkpoints, last %.1f KB, %d failures",
+                         dir, logNumber-1,
+                         (log == null) ? 0.0 : log.size() / 1e3,
+                         records, checkpoints, checkpointBytes / 1e3,
+                         failures);
+  }
+
+  // Append a list of chunks held or dropped by a node.
+  private synchronized void holders(byte kind, ChunkHandle[] handles,
+                                    int node)
+  {
+    if ((log == null) || (handles.length == 0))
+      return;
+
+    try
+    {
+      log.writeByte(kind);
+      log.writeInt(node);
+      log.writeInt(handles.length);
+
+      for (int i = 0; i < handles.length; ++i)
+      {
+        log.writeLong(handles[i].getFileId());
+        log.writeLong(handles[i].getSequence());
+      }
+
+      logged();
+    }
+    catch (IOException e) {
+      logFailed(e);
+    }
+  }
+
+  // Hand a record to the operating system.
+  // Must be synchronized by caller!
+  private void logged()
+    throws IOException
+  {
+    log.flush();
+
+    dirty = true;
+    ++logRecords;
+    ++records;
+  }
+
+  // Sync records written so far to disk.
+  private synchronized void sync()
+  {
+    if ((log == null) || !dirty)
+      return;
+
+    try
+    {
+      logFile.getFD().sync();
+      dirty = false;
+    }
+    catch (IOException e) {
+      logFailed(e);
+    }
+  }
+
+  // Stop logging after a failed write, the next
+  // checkpoint starts over with a new log.
+  // Must be synchronized by caller!
+  private void logFailed(IOException e)
+  {
+    System.out.println("Metadata log failed, logging stopped " +
+                       "until next checkpoint: " + e.getMessage());
+
+    ++failures;
+
+    try {
+      closeLog();
+    }
+    catch (IOException f) {
+      // already reported
+    }
+  }
+
+  // Report a checkpoint that didn't finish.
+  private synchronized void checkpointFailed(IOException e)
+  {
+    System.out.println("Metadata checkpoint failed: " + e.getMessage());
+
+    ++failures;
+
+    // don't try again every second
+    lastCheckpoint = System.currentTimeMillis();
+  }
+
+  // Start appending to a new log file.
+  // Must be synchronized by caller!
+  private void openLog(long n)
+    throws IOException
+  {
+    logFile = new FileOutputStream(logFor(n));
+    log = new DataOutputStream(new BufferedOutputStream(logFile, 1 << 16));
+
+    log.writeInt(logMagic);
+    log.writeInt(formatVersion);
+    log.flush();
+
+    logRecords = 0;
+  }
+
+  // Sync and close log being appended to, if any.
+  // Must be synchronized by caller!
+  private void closeLog()
+    throws IOException
+  {
+    if (log == null)
+      return;
+
+    try
+    {
+      log.flush();
+      logFile.getFD().sync();
+    }
+    finally
+    {
+      log = null;
+      dirty = false;
+      logFile.close();
+    }
+  }
+
+  // Load a checkpoint, returns number of first log after it.
+  private long load(File f)
+    throws IOException
+  {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(f), 1 << 16));
+
+    try
+    {
+      if ((in.readInt() != checkpointMagic) ||
+          (in.readInt() != formatVersion))
+        throw new IOException(f + " is not a checkpoint.");
+
+      long first = in.readLong();
+
+      // replays every record up to the end marker
+      if (!records(in))
+        throw new IOException(f + " ends early.");
+
+      return first;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // Replay a log, up to a record cut short if the
+  // controller stopped while writing it.
+  private void replay(File f)
+    throws IOException
+  {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(f), 1 << 16));
+
+    try
+    {
+      if ((in.readInt() != logMagic) || (in.readInt() != formatVersion))
+        throw new IOException(f + " is not a metadata log.");
+
+      records(in);
+    }
+    catch (EOFException e) {
+      // stopped before the header was written
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // Apply records until an end marker, returning true, or
+  // the end of the stream, returning false.  A record cut
+  // short at the end of the stream is passed over.
+  private boolean records(DataInputStream in)
+    throws IOException
+  {
+    try
+    {
+      while (true)
+      {
+        byte kind = in.readByte();
+
+        if (kind == endRecord)
+          return true;
+
+        else if (kind == nodeRecord)
+        {
+          int node = in.readInt();
+          HostID cs = readHost(in);
+
+          state.nodeAssigned(node, cs);
+        }
+
+        else if (kind == locateRecord)
+        {
+          HostID cs = readHost(in);
+          String rack = in.readUTF();
+          String zone = in.readUTF();
+
+          state.located(cs, rack, zone);
+        }
+
+        else if (kind == createRecord)
+        {
+          long fileId = in.readLong();
+          File file = new File(in.readUTF());
+
+          state.fileCreated(fileId, file);
+        }
+
+        else if (kind == updateRecord)
+        {
+          long fileId = in.readLong();
+          File file = new File(in.readUTF());
+          long length = in.readLong();
+          int chunkSize = in.readInt();
+          int version = in.readInt();
+          long timeStamp = in.readLong();
+
+          state.fileUpdated(new FileInfo(file, fileId, length, chunkSize,
+                                         version, timeStamp));
+        }
+
+        else if ((kind == addRecord) || (kind == removeRecord))
+        {
+          int node = in.readInt();
+          ChunkHandle[] handles = new ChunkHandle[in.readInt()];
+
+          for (int i = 0; i < handles.length; ++i)
+            handles[i] = new ChunkHandle(in.readLong(), in.readLong());
+
+          if (kind == addRecord)
+            index.addHolders(handles, node);
+          else
+            index.removeHolders(handles, node);
+        }
+
+        else if (kind == indexRecord)
+          index.read(in);
+
+        else
+          throw new IOException("Unknown metadata record " + kind + ".");
+      }
+    }
+    catch (EOFException e) {
+      return false;
+    }
+  }
+
+  // Write a node id record.
+  private static void writeNode(DataOutputStream out, int node, HostID cs)
+    throws IOException
+  {
+    out.writeByte(nodeRecord);
+    out.writeInt(node);
+    writeHost(out, cs);
+  }
+
+  // Write a location record.
+  private static void writeLocated(DataOutputStream out, HostID cs,
+                                   String rack, String zone)
+    throws IOException
+  {
+    out.writeByte(locateRecord);
+    writeHost(out, cs);
+    out.writeUTF(rack);
+    out.writeUTF((zone == null) ? Topology.defaultZone : zone);
+  }
+
+  // Write a file id record.
+  private static void writeCreated(DataOutputStream out, long fileId, File f)
+    throws IOException
+  {
+    out.writeByte(createRecord);
+    out.writeLong(fileId);
+    out.writeUTF(f.toString());
+  }
+
+  // Write a file metadata record.
+  private static void writeUpdated(DataOutputStream out, FileInfo info)
+    throws IOException
+  {
+    out.writeByte(updateRecord);
+    out.writeLong(info.getFileId());
+    out.writeUTF(info.getFile().toString());
+    out.writeLong(info.getLength());
+    out.writeInt(info.getChunkSize());
+    out.writeInt(info.getVersion());
+    out.writeLong(info.getTimeStamp());
+  }
+
+  // Write a chunkserver id.
+  private static void writeHost(DataOutputStream out, HostID cs)
+    throws IOException
+  {
+    out.writeUTF(cs.getHost());
+    out.writeInt(cs.getPort());
+  }
+
+  // Read a chunkserver id.
+  private static HostID readHost(DataInputStream in)
+    throws IOException
+  {
+    String host = in.readUTF();
+    int port = in.readInt();
+
+    try {
+      return new HostID(host, port);
+    }
+    catch (Exception e) {
+      throw new IOException("Bad host " + host + ": " + e.getMessage());
+    }
+  }
+
+  // Numbers of logs in directory, in order.
+  private ArrayList<Long> logNumbers()
+  {
+    ArrayList<Long> numbers = new ArrayList<Long>();
+
+    String[] names = dir.list();
+
+    if (names == null)
+      return numbers;
+
+    for (int i = 0; i < names.length; ++i)
+    {
+      if (!names[i].startsWith(logPrefix))
+        continue;
+
+      try {
+        numbers.add(Long.parseLong(names[i].substring(logPrefix.length())));
+      }
+      catch (NumberFormatException e) {
+        // not one of ours
+      }
+    }
+
+    Collections.sort(numbers);
+
+    return numbers;
+  }
+
+  // Log file with a given number.
+  private File logFor(long n)
+  {
+    return new File(dir, logPrefix + n);
+  }
+}
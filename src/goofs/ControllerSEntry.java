@@ -1,9 +1,11 @@
 package goofs;
 
 import java.lang.Comparable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 
 /**
@@ -16,34 +18,81 @@ public class ControllerSEntry
   /** */
   public static final long expirationSecs = 2*ChunkServer.minorHeartbeatSecs;
 
-  // chunks replicated at chunkserver
-  // by chunk descriptor string
-  private Hashtable<String, ChunkDescriptor> chunks =
-    new Hashtable<String, ChunkDescriptor>();
+  /** chunkservers with less free disk than this are full */
+  public static final long minFreeBytes = 1024l*Chunk.maxSize;
+
+  // weights of each kind of load in the load score,
+  // each term is about one when that resource is busy
+  private static final double diskWeight  = 4.0;  // all disk used
+  private static final double queueWeight = 0.25; // per pending I/O
+  private static final double ioWeight    = 1.0;  // per ioScale
+  private static final double cpuWeight   = 2.0;  // all processors busy
+
+  // bytes per second of reads and writes counted as busy
+  private static final double ioScale = 50e6;
+
+  // added to score of full chunkservers so they sort last
+  private static final double fullPenalty = 1e9;
+
+  // chunks replicated at chunkserver by digest bucket,
+  // null for empty buckets, so a heartbeat listing a
+  // few buckets is checked without the rest, handles
+  // hash and compare without building strings
+  private ArrayList<HashSet<ChunkHandle>> chunks =
+    new ArrayList<HashSet<ChunkHandle>>(
+      Collections.nCopies(ChunkDigest.numBuckets, (HashSet<ChunkHandle>)null));
+
+  // summary of chunks, guarded by chunks
+  private ChunkDigest digest = new ChunkDigest();
 
   // identification for chunkserver
   private HostID id;
 
   // time that this entry was last acknowledged
-  private long timeStamp;
+  private volatile long timeStamp;
 
   // approximate number of chunks currently stored
   private int numChunks = 0;
 
+  // number of chunks last reported by chunkserver, the
+  // rest of numChunks were placed here since then
+  private int reportedChunks = 0;
+
+  // load last reported by chunkserver, null if none yet
+  private NodeLoad load = null;
+
+  // load score, lower is a better place for new
+  // chunks, kept up to date as counts and load change
+  private double score = 1.0;
+
+  // positions in the controller's ServerHeaps over all
+  // chunkservers and over its rack, -1 if not in one,
+  // kept up to date by the heaps themselves
+  int heapSlot = -1;
+  int rackSlot = -1;
+
+  // position in the controller's list of
+  // chunkservers, -1 if not in it
+  int listSlot = -1;
+
+  // deadline for next heartbeat in the controller's
+  // deadline wheel, set once entry is added
+  TimingWheel.Timeout<ControllerSEntry> timeout = null;
+
   /**
    * Create new entry for list of chunk servers.
    * Number of chunks sored is set to zero.
    *
    * @param id Identification for chunkserver we are describing.
-   * @param chunkDesc Chunks initially on chunkserver.
+   * @param handles Chunks initially on chunkserver.
    */
-  public ControllerSEntry(HostID id, ChunkDescriptor[] chunkDesc)
+  public ControllerSEntry(HostID id, ChunkHandle[] handles)
   {
     this.id = id;
-    this.timeStamp = (new Date()).getTime();
+    this.timeStamp = System.currentTimeMillis();
 
-    for (int i = 0; i < chunkDesc.length; ++i)
-      chunks.put(chunkDesc[i].toSeqString(), chunkDesc[i]);
+    for (int i = 0; i < handles.length; ++i)
+      add(handles[i]);
   }
 
   /**
@@ -63,7 +112,9 @@ public class ControllerSEntry
    */
   public synchronized void setNumChunks(int n)
   {
-    numChunks = n;
+    numChunks      = n;
+    reportedChunks = n;
+    rescore();
   }
 
   /**
@@ -72,27 +123,208 @@ public class ControllerSEntry
   public synchronized void incrementNumChunks()
   {
     ++numChunks;
+    rescore();
+  }
+
+  /**
+   * Take back a chunk counted by incrementNumChunks
+   * that was never stored.
+   */
+  public synchronized void decrementNumChunks()
+  {
+    --numChunks;
+    rescore();
+  }
+
+  /**
+   * Set load last reported by chunkserver.
+   */
+  public synchronized void setLoad(NodeLoad load)
+  {
+    this.load = load;
+    rescore();
+  }
+
+  /**
+   * Check if chunkserver is too full for new chunks,
+   * counting chunks placed since it last reported.
+   */
+  public synchronized boolean isFull()
+  {
+    return (load != null) && (freeBytes() < minFreeBytes);
+  }
+
+  /**
+   * Get load score, lower is a better place for new chunks.
+   * Score is the number of chunks scaled up by a weighted
+   * sum of disk fullness, pending I/O, throughput and CPU
+   * load, so a busy chunkserver takes new chunks only once
+   * idle ones hold several times as many.
+   */
+  public synchronized double getScore()
+  {
+    return score;
+  }
+
+  // free bytes less chunks placed since last report
+  private long freeBytes()
+  {
+    long placed = Math.max(0, numChunks - reportedChunks);
+    return load.getFreeBytes() - placed*Chunk.maxSize;
+  }
+
+  // recompute load score
+  private void rescore()
+  {
+    double penalty = 0.0;
+
+    if (load != null)
+    {
+      if (load.getTotalBytes() > 0)
+        penalty += diskWeight *
+          (1.0 - (double)Math.max(0, freeBytes()) / load.getTotalBytes());
+
+      penalty += queueWeight * load.getQueueDepth();
+
+      penalty += ioWeight *
+        (load.getReadRate() + load.getWriteRate()) / ioScale;
+
+      // unknown on some platforms
+      if (load.getCpuLoad() > 0)
+        penalty += cpuWeight * load.getCpuLoad();
+
+      if (freeBytes() < minFreeBytes)
+        penalty += fullPenalty;
+    }
+
+    score = (numChunks+1) * (1.0 + penalty);
   }
 
   /**
    *
    */
-  public synchronized void touch(ChunkDescriptor[] chunkDesc)
+  public synchronized void touch(ChunkHandle[] handles)
   {
     // update timestamp to current time
-    timeStamp = (new Date()).getTime();
+    timeStamp = System.currentTimeMillis();
+
+    synchronized (chunks)
+    {
+      for (int i = 0; i < handles.length; ++i)
+        add(handles[i]);
+    }
+  }
+
+  /**
+   * Record a chunk copied to chunkserver, without
+   * taking it as a sign the chunkserver is alive.
+   */
+  public void addChunk(ChunkHandle handle)
+  {
+    synchronized (chunks) {
+      add(handle);
+    }
+  }
+
+  /**
+   * Forget a chunk moved off chunkserver.
+   */
+  public void removeChunk(ChunkHandle handle)
+  {
+    synchronized (chunks)
+    {
+      HashSet<ChunkHandle> bucket =
+        chunks.get(ChunkDigest.bucketOf(handle));
+
+      if ((bucket != null) && bucket.remove(handle))
+        digest.remove(handle);
+    }
+  }
+
+  /**
+   * Find buckets where what a chunkserver sums up
+   * disagrees with the chunks we have for it.
+   *
+   * @param reported Summary sent by chunkserver.
+   * @return Bucket numbers, in order.
+   */
+  public int[] staleBuckets(ChunkDigest reported)
+  {
+    synchronized (chunks) {
+      return digest.differing(reported);
+    }
+  }
+
+  /**
+   * Replace chunks we have in some buckets with
+   * those the chunkserver listed for them.
+   *
+   * @param buckets Buckets listed.
+   * @param listed Every chunk chunkserver has in them.
+   * @return Chunks we had in those buckets that
+   *   chunkserver doesn't have.
+   */
+  public ChunkHandle[] reconcile(int[] buckets, ChunkHandle[] listed)
+  {
+    HashSet<ChunkHandle> keep =
+      new HashSet<ChunkHandle>(Arrays.asList(listed));
+
+    ArrayList<ChunkHandle> gone = new ArrayList<ChunkHandle>();
 
     synchronized (chunks)
     {
-      for (int i = 0; i < chunkDesc.length; ++i)
+      for (int i = 0; i < buckets.length; ++i)
       {
-        ChunkDescriptor curDesc =
-          chunks.get(chunkDesc[i].toSeqString());
+        HashSet<ChunkHandle> bucket = chunks.get(buckets[i]);
 
-        if (curDesc == null)
-          chunks.put(chunkDesc[i].toSeqString(), chunkDesc[i]);
+        if (bucket == null)
+          continue;
+
+        Iterator<ChunkHandle> itr = bucket.iterator();
+        while (itr.hasNext())
+        {
+          ChunkHandle h = itr.next();
+
+          if (!keep.contains(h))
+          {
+            itr.remove();
+            digest.remove(h);
+            gone.add(h);
+          }
+        }
       }
+
+      for (int i = 0; i < listed.length; ++i)
+        add(listed[i]);
+    }
+
+    return gone.toArray(new ChunkHandle[gone.size()]);
+  }
+
+  // add chunk to its bucket and summary
+  // Must be synchronized on chunks by caller!
+  private void add(ChunkHandle handle)
+  {
+    int b = ChunkDigest.bucketOf(handle);
+
+    HashSet<ChunkHandle> bucket = chunks.get(b);
+
+    if (bucket == null)
+    {
+      bucket = new HashSet<ChunkHandle>();
+      chunks.set(b, bucket);
     }
+
+    if (bucket.add(handle))
+      digest.add(handle);
+  }
+
+  /**
+   * Get load last reported by chunkserver, null if none yet.
+   */
+  public synchronized NodeLoad getLoad()
+  {
+    return load;
   }
 
   /**
@@ -100,23 +332,31 @@ public class ControllerSEntry
    */
   public boolean hasExpired()
   {
-    long curTime = (new Date()).getTime();
+    return millisToExpiry() < 0;
+  }
 
-    if ((curTime - timeStamp) > (expirationSecs*1000))
-      return true;
-    else
-      return false;
+  /**
+   * Get milliseconds left until this entry expires
+   * without a heartbeat, negative once it has.
+   */
+  public long millisToExpiry()
+  {
+    return timeStamp + expirationSecs*1000 - System.currentTimeMillis();
   }
 
   /**
    *
    */
-  public boolean holdsChunk(ChunkDescriptor cd)
+  public boolean holdsChunk(ChunkHandle handle)
   {
     boolean found;
 
-    synchronized (chunks) {
-      found = chunks.containsKey(cd.toString());
+    synchronized (chunks)
+    {
+      HashSet<ChunkHandle> bucket =
+        chunks.get(ChunkDigest.bucketOf(handle));
+
+      found = (bucket != null) && bucket.contains(handle);
     }
 
     return found;
@@ -125,28 +365,36 @@ public class ControllerSEntry
   /**
    *
    */
-  public ChunkDescriptor[] getChunks()
+  public ChunkHandle[] getChunks()
   {
-    ChunkDescriptor[] chunkDesc;
+    ChunkHandle[] handles;
 
     synchronized (chunks)
     {
       //
-      chunkDesc =
-        new ChunkDescriptor[chunks.size()];
-
-      //
-      Iterator<ChunkDescriptor> itr =
-        chunks.values().iterator();
+      handles =
+        new ChunkHandle[digest.size()];
 
       //
       int i = 0;
-      while (itr.hasNext())
+      for (int b = 0; b < ChunkDigest.numBuckets; ++b)
+      {
+        HashSet<ChunkHandle> bucket = chunks.get(b);
+
+        if (bucket == null)
+          continue;
+
         //
-        chunkDesc[i++] = itr.next();
+        Iterator<ChunkHandle> itr =
+          bucket.iterator();
+
+        while (itr.hasNext())
+          //
+          handles[i++] = itr.next();
+      }
     }
 
-    return chunkDesc;
+    return handles;
   }
 
   /**
@@ -156,7 +404,9 @@ public class ControllerSEntry
    */
   public String toString()
   {
-    return id + " " + numChunks + " " + timeStamp;
+    return id + " " + numChunks + " " + timeStamp +
+      String.format(" score %.1f", score) +
+      ((load == null) ? "" : " " + load);
   }
 
   /**
@@ -182,20 +432,14 @@ public class ControllerSEntry
   }
 
   /**
-   * Compare this entry to another by number of chunks stored.
+   * Compare this entry to another by load score.
    *
-   * @return -1 if number of chunks stored in this entry
-   *   is less than in csle.  0 if they are the same.
-   *   1 if if number of chunks stored in this entry is
-   *   greater than in csle.
+   * @return -1 if score of this entry is less than
+   *   of csle.  0 if they are the same.  1 if score
+   *   of this entry is greater than of csle.
    */
   public int compareTo(ControllerSEntry csle)
   {
-    if (numChunks < csle.numChunks)
-      return -1;
-    else if (numChunks == csle.numChunks)
-      return 0;
-    else
-      return 1;
+    return Double.compare(score, csle.score);
   }
 }
@@ -0,0 +1,68 @@
+package goofs;
+
+/**
+ * Request that a chunkserver drop a chunk that has
+ * been copied elsewhere, replied to once it is gone.
+ *
+ * @author Elliott Forney
+ */
+public class DeleteChunkMessage
+  extends Message
+{
+  private static final long serialVersionUID = 1l;
+
+  private ChunkHandle handle;
+
+  // true if chunkserver held the chunk and dropped it
+  private boolean deleted = false;
+
+  /**
+   *
+   */
+  public DeleteChunkMessage(HostID src, HostID dst, ChunkHandle handle)
+  {
+    super(src, dst, Message.Kind.DeleteChunk);
+    this.handle = handle;
+  }
+
+  /**
+   *
+   */
+  public ChunkHandle getHandle()
+  {
+    return handle;
+  }
+
+  /**
+   * Controller waits to forget the holder until it is done.
+   */
+  public boolean expectsReply()
+  {
+    return true;
+  }
+
+  /**
+   * Record whether the chunk was dropped.
+   */
+  public void setDeleted(boolean deleted)
+  {
+    this.deleted = deleted;
+  }
+
+  /**
+   * Check if chunkserver held the chunk and dropped it.
+   */
+  public boolean isDeleted()
+  {
+    return deleted;
+  }
+
+  /**
+   *
+   */
+  public DeleteChunkMessage send()
+    throws Exception
+  {
+    return (DeleteChunkMessage)super.send();
+  }
+}
@@ -0,0 +1,136 @@
+package goofs;
+
+import java.io.*;
+
+/**
+ * Metadata describing a whole file stored
+ * in goofs, as tracked by the controller.
+ *
+ * @author Elliott Forney
+ */
+public class FileInfo
+  implements Serializable
+{
+  private static final long serialVersionUID = 1l;
+
+  // abstract pathname of the file
+  private File f;
+
+  // id chunk handles refer to the file by
+  private long fileId;
+
+  // length of file in bytes
+  private long length;
+
+  // bytes in each chunk except the last
+  private int chunkSize;
+
+  // number of chunks in file
+  private long numChunks;
+
+  // incremented each time file is submitted
+  private int version;
+
+  // last-modified time in milliseconds since epoch
+  private long timeStamp;
+
+  /**
+   * Create new file metadata.
+   *
+   * @param f Abstract pathname of the file.
+   * @param fileId Id chunk handles refer to the file by.
+   * @param length Length of the file in bytes.
+   * @param chunkSize Bytes in each chunk except the last.
+   * @param version File version.
+   * @param timeStamp Last-modified time in milliseconds.
+   */
+  public FileInfo(File f, long fileId, long length, int chunkSize,
+                  int version, long timeStamp)
+  {
+    this.f         = f;
+    this.fileId    = fileId;
+    this.length    = length;
+    this.chunkSize = chunkSize;
+    this.version   = version;
+    this.timeStamp = timeStamp;
+
+    // number of chunks rounded up
+    this.numChunks = (length + chunkSize - 1) / chunkSize;
+  }
+
+  /**
+   * Get abstract pathname of the file.
+   */
+  public File getFile()
+  {
+    return f;
+  }
+
+  /**
+   * Get id chunk handles refer to the file by.
+   */
+  public long getFileId()
+  {
+    return fileId;
+  }
+
+  /**
+   * Get length of the file in bytes.
+   */
+  public long getLength()
+  {
+    return length;
+  }
+
+  /**
+   * Get bytes in each chunk except the last.
+   */
+  public int getChunkSize()
+  {
+    return chunkSize;
+  }
+
+  /**
+   * Get number of chunks in the file.
+   */
+  public long getNumChunks()
+  {
+    return numChunks;
+  }
+
+  /**
+   * Get size of a given chunk in the file.
+   *
+   * @param seq Chunk sequence number.
+   * @return Bytes in the chunk.
+   */
+  public int getChunkLength(long seq)
+  {
+    return (int)Math.min(chunkSize, length - seq*chunkSize);
+  }
+
+  /**
+   * Get file version, incremented on each submission.
+   */
+  public int getVersion()
+  {
+    return version;
+  }
+
+  /**
+   * Get last-modified time in milliseconds since epoch.
+   */
+  public long getTimeStamp()
+  {
+    return timeStamp;
+  }
+
+  /**
+   * Generate human readable string describing this file.
+   */
+  public String toString()
+  {
+    return f + " " + length + " bytes, " + numChunks + " chunks of " +
+           chunkSize + ", version " + version + ", " + timeStamp;
+  }
+}
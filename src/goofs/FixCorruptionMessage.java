@@ -26,8 +26,8 @@ public class FixCorruptionMessage
   // array of chunkservers holding data
   private HostID[] chunkServers;
 
-  // chunk descriptor to associate with data
-  private ChunkDescriptor chunkDesc;
+  // chunk handle to associate with data
+  private ChunkHandle handle;
 
   // data for chunk to contain
   private Chunk chunk = null;
@@ -36,13 +36,13 @@ public class FixCorruptionMessage
    *
    */
   public FixCorruptionMessage(HostID src, HostID[] chunkServers,
-                              ChunkDescriptor chunkDesc)
+                              ChunkHandle handle)
   {
     // setup parent class, destination will be set below
     super(src, null, Message.Kind.FixCorruption);
 
     this.chunkServers = chunkServers;
-    this.chunkDesc    = chunkDesc;
+    this.handle       = handle;
 
     // generate random starting index base
     dstBase = Math.abs(rand.nextInt()) % chunkServers.length;
@@ -88,9 +88,9 @@ public class FixCorruptionMessage
   /**
    *
    */ 
-  public ChunkDescriptor getChunkDescriptor()
+  public ChunkHandle getHandle()
   {
-    return chunkDesc;
+    return handle;
   }
 
   /**
@@ -121,7 +121,7 @@ public class FixCorruptionMessage
     while (!success && (dst != null))
     {
       try {
-        System.out.println("Retrieving data " + chunkDesc + " from " + dst);
+        System.out.println("Retrieving data " + handle + " from " + dst);
         reply = (FixCorruptionMessage)super.send();
         success = true;
       }
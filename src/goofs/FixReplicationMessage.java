@@ -11,27 +11,33 @@ public class FixReplicationMessage
 {
   private static final long serialVersionUID = 1l;
 
-  private ChunkDescriptor chunkDesc;
+  private ChunkHandle handle;
 
   private HostID newHolder;
 
+  // true once new holder has persisted the chunk
+  private boolean replicated = false;
+
+  // bytes copied to new holder
+  private int bytes = 0;
+
   /**
    *
    */
   public FixReplicationMessage(HostID src, HostID dst, HostID newHolder,
-                               ChunkDescriptor chunkDesc)
+                               ChunkHandle handle)
   {
     super(src, dst, Message.Kind.FixReplication);
     this.newHolder = newHolder;
-    this.chunkDesc = chunkDesc;
+    this.handle = handle;
   }
 
   /**
    *
    */ 
-  public ChunkDescriptor getChunkDescriptor()
+  public ChunkHandle getHandle()
   {
-    return chunkDesc;
+    return handle;
   }
 
   public HostID getNewHolder()
@@ -39,6 +45,43 @@ public class FixReplicationMessage
     return newHolder;
   }
 
+  /**
+   * Holder replies once the copy has been persisted
+   * or has failed, so the controller can track it.
+   */
+  public boolean expectsReply()
+  {
+    return true;
+  }
+
+  /**
+   * Turn this message into a reply reporting the copy.
+   *
+   * @param replicated True if new holder persisted the chunk.
+   * @param bytes Bytes copied.
+   */
+  public void setReplicated(boolean replicated, int bytes)
+  {
+    this.replicated = replicated;
+    this.bytes      = bytes;
+  }
+
+  /**
+   * Check if new holder persisted the chunk.
+   */
+  public boolean isReplicated()
+  {
+    return replicated;
+  }
+
+  /**
+   * Get bytes copied to new holder.
+   */
+  public int getBytes()
+  {
+    return bytes;
+  }
+
   /**
    *
    */
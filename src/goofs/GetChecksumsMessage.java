@@ -0,0 +1,111 @@
+package goofs;
+
+import java.io.*;
+
+/**
+ * Message requesting the slice checksums a
+ * chunkserver holds for several chunks of a
+ * file.  No chunk data is sent, so a client
+ * can cheaply find which chunks have changed.
+ *
+ * @author Elliott Forney
+ */
+public class GetChecksumsMessage
+  extends Message
+{
+  private static final long serialVersionUID = 1l;
+
+  // id of file we are concerned with
+  private long fileId;
+
+  // sequence numbers of chunks we are interested in
+  private long[] seqs;
+
+  // slice checksums for each chunk, set in reply,
+  // null for chunks the chunkserver does not hold
+  private Hash[][] checkSums = null;
+
+  /**
+   * Create a message requesting slice checksums.
+   *
+   * @param src Message source, client.
+   * @param dst Message destination, chunkserver.
+   * @param fileId Id of file we are interested in.
+   * @param seqs Sequence numbers of chunks.
+   */
+  public GetChecksumsMessage(HostID src, HostID dst,
+                             long fileId, long[] seqs)
+  {
+    super(src, dst, Message.Kind.GetChecksums);
+
+    this.fileId = fileId;
+    this.seqs   = seqs;
+  }
+
+  /**
+   *
+   */
+  public boolean expectsReply()
+  {
+    return true;
+  }
+
+  /**
+   * Only looks things up, safe to send again.
+   */
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  /**
+   * Get id of the file sent in this message.
+   */
+  public long getFileId()
+  {
+    return fileId;
+  }
+
+  /**
+   * Get the sequence numbers of the
+   * chunks sent in this message.
+   */
+  public long[] getSeqs()
+  {
+    return seqs;
+  }
+
+  /**
+   * Set the slice checksums sent in this message.
+   *
+   * @param checkSums Checksums for each chunk,
+   *   null for chunks not held.
+   */
+  public void setCheckSums(Hash[][] checkSums)
+  {
+    this.checkSums = checkSums;
+  }
+
+  /**
+   * Get the slice checksums sent in this message.
+   *
+   * @return Checksums for each chunk in the order
+   *   requested, null for chunks not held.
+   */
+  public Hash[][] getCheckSums()
+  {
+    return checkSums;
+  }
+
+  /**
+   * Send this message to its
+   * current destination.
+   *
+   * @return Reply message.
+   */
+  public GetChecksumsMessage send()
+    throws Exception
+  {
+    return (GetChecksumsMessage)super.send();
+  }
+}
@@ -0,0 +1,91 @@
+package goofs;
+
+import java.io.*;
+
+/**
+ * Message requesting the metadata the
+ * controller holds for a whole file.
+ *
+ * @author Elliott Forney
+ */
+public class GetFileInfoMessage
+  extends Message
+{
+  private static final long serialVersionUID = 1l;
+
+  // file we are concerned with
+  private File f;
+
+  // metadata for file, null if unknown
+  private FileInfo info = null;
+
+  /**
+   * Create a message requesting file metadata.
+   *
+   * @param src Message source, client.
+   * @param dst Message destination, controller.
+   * @param f File we are interested in.
+   */
+  public GetFileInfoMessage(HostID src, HostID dst, File f)
+  {
+    super(src, dst, Message.Kind.GetFileInfo);
+    this.f = f;
+  }
+
+  /**
+   *
+   */
+  public boolean expectsReply()
+  {
+    return true;
+  }
+
+  /**
+   * Only looks things up, safe to send again.
+   */
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  /**
+   * Get the file sent in this message.
+   */
+  public File getFile()
+  {
+    return f;
+  }
+
+  /**
+   * Set the file metadata sent in this message.
+   *
+   * @param info Metadata for file or null if unknown.
+   */
+  public void setFileInfo(FileInfo info)
+  {
+    this.info = info;
+  }
+
+  /**
+   * Get the file metadata sent in this message.
+   *
+   * @return Metadata for file or null if
+   *   the controller does not know the file.
+   */
+  public FileInfo getFileInfo()
+  {
+    return info;
+  }
+
+  /**
+   * Send this message to its
+   * current destination.
+   *
+   * @return Reply message.
+   */
+  public GetFileInfoMessage send()
+    throws Exception
+  {
+    return (GetFileInfoMessage)super.send();
+  }
+}
@@ -4,7 +4,7 @@ package goofs;
  * Message requesting chunkservers
  * that are currently holding replicas
  * associated with a given chunk
- * descriptor.
+ * handle.
  *
  * @author Elliott Forney
  */
@@ -13,8 +13,8 @@ public class GetHoldersMessage
 {
   private static final long serialVersionUID = 1l;
 
-  // descriptor for chunk we are concerned with
-  private ChunkDescriptor chunkDesc;
+  // handle for chunk we are concerned with
+  private ChunkHandle handle;
 
   // chunkservers holding chunk we are concerned with
   private HostID[] chunkServers = null;
@@ -22,17 +22,17 @@ public class GetHoldersMessage
   /**
    * Send message requesting chunkservers
    * holding a chunk associated with a
-   * given chunk descriptor.
+   * given chunk handle.
    *
    * @param src Message source, client or chunkserver.
    * @param dst Message destination, controller.
-   * @param chunkDesc Chunk descriptor associated with
+   * @param handle Chunk handle associated with
    *   the chunk we are interested in.
    */
-  public GetHoldersMessage(HostID src, HostID dst, ChunkDescriptor chunkDesc)
+  public GetHoldersMessage(HostID src, HostID dst, ChunkHandle handle)
   {
     super(src, dst, Message.Kind.GetHolders);
-    this.chunkDesc = chunkDesc;
+    this.handle = handle;
   }
 
   /**
@@ -44,14 +44,22 @@ public class GetHoldersMessage
   }
 
   /**
-   * Get the chunk descriptor sent in this message.
+   * Only looks things up, safe to send again.
+   */
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  /**
+   * Get the chunk handle sent in this message.
    *
-   * @return The chunk descriptor currently
+   * @return The chunk handle currently
    *   stored in this message.
    */ 
-  public ChunkDescriptor getChunkDescriptor()
+  public ChunkHandle getHandle()
   {
-    return chunkDesc;
+    return handle;
   }
 
   /**
@@ -0,0 +1,254 @@
+package goofs;
+
+import java.io.*;
+
+/**
+ * Message requesting the chunkservers holding
+ * each chunk in a range of chunks belonging to
+ * a file.  Replaces one GetHoldersMessage per
+ * chunk with a single round trip.  The file is
+ * named either by pathname, which the controller
+ * resolves to a file id returned in the reply,
+ * or by a file id already resolved.
+ *
+ * @author Elliott Forney
+ */
+public class GetRangeHoldersMessage
+  extends Message
+{
+  private static final long serialVersionUID = 1l;
+
+  /** number of chunks that requests the whole file */
+  public static final int wholeFile = -1;
+
+  // file we are concerned with, null
+  // if it is named by fileId instead
+  private File f;
+
+  // id of file, set in reply when named by pathname
+  private long fileId = ChunkHandle.noFile;
+
+  // if true, controller assigns an id to
+  // a file named by pathname it doesn't know
+  private boolean create = false;
+
+  // sequence number of first chunk in range
+  private long firstSeq;
+
+  // number of chunks in range or wholeFile
+  private int numChunks;
+
+  // chunkservers holding each chunk in range
+  private HostID[][] chunkServers = null;
+
+  // metadata for file, null if unknown
+  private FileInfo info = null;
+
+  /**
+   * Create a message requesting chunkservers
+   * holding a range of chunks in a file.
+   *
+   * @param src Message source, client or chunkserver.
+   * @param dst Message destination, controller.
+   * @param f File the chunks belong to.
+   * @param firstSeq Sequence number of first chunk.
+   * @param numChunks Number of chunks to look up or wholeFile
+   *   to look up every chunk from firstSeq until the first
+   *   chunk the controller does not know about.
+   * @param create If true, the controller assigns
+   *   an id to the file if it has none.
+   */
+  public GetRangeHoldersMessage(HostID src, HostID dst, File f,
+                                long firstSeq, int numChunks,
+                                boolean create)
+  {
+    super(src, dst, Message.Kind.GetRangeHolders);
+    this.f         = f;
+    this.firstSeq  = firstSeq;
+    this.numChunks = numChunks;
+    this.create    = create;
+  }
+
+  /**
+   * Create a message requesting chunkservers holding a
+   * range of chunks in a file that must already exist.
+   *
+   * @param src Message source, client or chunkserver.
+   * @param dst Message destination, controller.
+   * @param f File the chunks belong to.
+   * @param firstSeq Sequence number of first chunk.
+   * @param numChunks Number of chunks to look up or wholeFile.
+   */
+  public GetRangeHoldersMessage(HostID src, HostID dst, File f,
+                                long firstSeq, int numChunks)
+  {
+    this(src, dst, f, firstSeq, numChunks, false);
+  }
+
+  /**
+   * Create a message requesting chunkservers holding
+   * a range of chunks in a file with a known id.
+   *
+   * @param src Message source, client or chunkserver.
+   * @param dst Message destination, controller.
+   * @param fileId Id of file the chunks belong to.
+   * @param firstSeq Sequence number of first chunk.
+   * @param numChunks Number of chunks to look up or wholeFile.
+   */
+  public GetRangeHoldersMessage(HostID src, HostID dst, long fileId,
+                                long firstSeq, int numChunks)
+  {
+    this(src, dst, null, firstSeq, numChunks, false);
+    this.fileId = fileId;
+  }
+
+  /**
+   * Create a message requesting chunkservers
+   * holding every chunk in a file.
+   *
+   * @param src Message source, client or chunkserver.
+   * @param dst Message destination, controller.
+   * @param f File the chunks belong to.
+   */
+  public GetRangeHoldersMessage(HostID src, HostID dst, File f)
+  {
+    this(src, dst, f, 0, wholeFile);
+  }
+
+  /**
+   *
+   */
+  public boolean expectsReply()
+  {
+    return true;
+  }
+
+  /**
+   * Safe to send again, a pathname given an
+   * id keeps it when asked a second time.
+   */
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  /**
+   * Get the file sent in this message.
+   *
+   * @return Pathname of file or null
+   *   if it is named by id.
+   */
+  public File getFile()
+  {
+    return f;
+  }
+
+  /**
+   * Check if the controller should assign
+   * an id to a file it doesn't know.
+   */
+  public boolean getCreate()
+  {
+    return create;
+  }
+
+  /**
+   * Set id of the file sent in this message.
+   *
+   * @param fileId Id of file or ChunkHandle.noFile.
+   */
+  public void setFileId(long fileId)
+  {
+    this.fileId = fileId;
+  }
+
+  /**
+   * Get id of the file sent in this message.
+   *
+   * @return Id of file or ChunkHandle.noFile
+   *   if the controller does not know the file.
+   */
+  public long getFileId()
+  {
+    return fileId;
+  }
+
+  /**
+   * Get sequence number of first chunk in range.
+   */
+  public long getFirstSequence()
+  {
+    return firstSeq;
+  }
+
+  /**
+   * Get number of chunks in range.
+   *
+   * @return Number of chunks or wholeFile.
+   */
+  public int getNumChunks()
+  {
+    return numChunks;
+  }
+
+  /**
+   * Set the chunkservers holding each chunk.
+   *
+   * @param chunkServers Array indexed by chunk
+   *   sequence relative to first chunk in range.
+   */
+  public void setChunkServers(HostID[][] chunkServers)
+  {
+    this.chunkServers = chunkServers;
+  }
+
+  /**
+   * Get the chunkservers holding each chunk.
+   *
+   * @return Array indexed by chunk sequence relative
+   *   to first chunk in range.  Chunks the controller
+   *   does not know of have no holders.  For whole
+   *   file requests the array ends at the last chunk
+   *   in the file metadata or, if there is none,
+   *   before the first unknown chunk.
+   */
+  public HostID[][] getChunkServers()
+  {
+    return chunkServers;
+  }
+
+  /**
+   * Set the file metadata sent in this message.
+   *
+   * @param info Metadata for file or null if unknown.
+   */
+  public void setFileInfo(FileInfo info)
+  {
+    this.info = info;
+  }
+
+  /**
+   * Get the file metadata sent in this message,
+   * returned along with the holders so a single
+   * lookup tells where the file ends.
+   *
+   * @return Metadata for file or null if
+   *   the controller does not know the file.
+   */
+  public FileInfo getFileInfo()
+  {
+    return info;
+  }
+
+  /**
+   * Send this message to its
+   * current destination.
+   *
+   * @return Reply message.
+   */
+  public GetRangeHoldersMessage send()
+    throws Exception
+  {
+    return (GetRangeHoldersMessage)super.send();
+  }
+}
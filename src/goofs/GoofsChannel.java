@@ -0,0 +1,428 @@
+package goofs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Seekable byte channel over a file stored in goofs.
+ * One chunk is held in memory at a time.  Writes are
+ * buffered in that chunk and submitted when another
+ * chunk is loaded or the channel is closed, at which
+ * point the new file length is recorded with the
+ * controller.  While reading sequentially upcoming
+ * chunks are prefetched by a ReadAhead.
+ *
+ * @author Elliott Forney
+ */
+public class GoofsChannel
+  implements SeekableByteChannel
+{
+  // recently written chunks kept so we read back our
+  // own writes before chunkservers have applied them
+  private static final int maxWritten = 4;
+
+  // client used to reach goofs
+  private Client client;
+
+  // file this channel is open on
+  private File f;
+
+  // id chunks of file are known by
+  private long fileId;
+
+  // true if channel may be written
+  private boolean writable;
+
+  // current position in bytes
+  private long position = 0;
+
+  // current length of file in bytes
+  private long size;
+
+  // false once channel is closed
+  private boolean open = true;
+
+  // true if file has been written or truncated
+  private boolean modified = false;
+
+  // sequence number of chunk currently loaded
+  private long curSeq = -1;
+
+  // full sized buffer holding loaded chunk
+  private byte[] curData = new byte[Chunk.maxSize];
+
+  // bytes of loaded chunk that hold data
+  private int curLength = 0;
+
+  // true if loaded chunk has unsubmitted writes
+  private boolean curDirty = false;
+
+  // prefetches chunks ahead of sequential reads
+  private ReadAhead readAhead;
+
+  // chunks written through this channel by sequence
+  private LinkedHashMap<Long, byte[]> written =
+    new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1l;
+
+      protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest)
+      {
+        return size() > maxWritten;
+      }
+    };
+
+  /**
+   * Open a channel on a file.  Use Client.openChannel.
+   *
+   * @param client Client used to reach goofs.
+   * @param f File to open.
+   * @param writable True if channel may be written,
+   *   in which case the file need not exist yet.
+   */
+  GoofsChannel(Client client, File f, boolean writable)
+    throws IOException
+  {
+    this.client   = client;
+    this.f        = f;
+    this.writable = writable;
+
+    try
+    {
+      // a writable channel may create the file
+      fileId = client.resolve(f, writable);
+
+      FileInfo info = client.getFileInfo(f);
+
+      if (fileId == ChunkHandle.noFile)
+        size = 0;
+
+      else if (info != null)
+        size = info.getLength();
+
+      else
+      {
+        // no metadata, find where file ends by looking
+        // up every chunk and reading the last one
+        HostID[][] holders =
+          client.lookupRange(fileId, 0, GetRangeHoldersMessage.wholeFile);
+
+        if (holders.length == 0)
+          size = 0;
+
+        else
+        {
+          long lastSeq = holders.length-1;
+
+          byte[] last = client.readChunk(
+            new ChunkHandle(fileId, lastSeq), holders[holders.length-1]);
+
+          size = lastSeq*Chunk.maxSize + last.length;
+        }
+      }
+    }
+    catch (Exception e) {
+      throw ioException(e);
+    }
+
+    if ((size == 0) && !writable)
+      throw new FileNotFoundException("File " + f +
+                                      " not found in filesystem.");
+
+    readAhead = new ReadAhead(client, f, fileId, size, client.getReadAhead());
+  }
+
+  /**
+   * Read bytes from current position.
+   *
+   * @param dst Buffer to read into.
+   * @return Bytes read or -1 at end of file.
+   */
+  public synchronized int read(ByteBuffer dst)
+    throws IOException
+  {
+    checkOpen();
+
+    if (position >= size)
+      return -1;
+
+    int total = 0;
+
+    while (dst.hasRemaining() && (position < size))
+    {
+      long seq = position / Chunk.maxSize;
+      int  off = (int)(position % Chunk.maxSize);
+
+      load(seq, true);
+
+      int n = Math.min(dst.remaining(), chunkLength(seq) - off);
+
+      dst.put(curData, off, n);
+
+      position += n;
+      total    += n;
+    }
+
+    return total;
+  }
+
+  /**
+   * Write bytes at current position, growing
+   * the file if needed.  Writes that would leave
+   * a whole chunk unwritten are refused.
+   *
+   * @param src Buffer to write from.
+   * @return Bytes written.
+   */
+  public synchronized int write(ByteBuffer src)
+    throws IOException
+  {
+    checkOpen();
+
+    if (!writable)
+      throw new NonWritableChannelException();
+
+    int total = 0;
+
+    while (src.hasRemaining())
+    {
+      long seq = position / Chunk.maxSize;
+      int  off = (int)(position % Chunk.maxSize);
+
+      // chunks are only created in order
+      if (seq > (size / Chunk.maxSize))
+        throw new IOException("Cannot write at " + position +
+                              ", past end of " + f + " at " + size + ".");
+
+      load(seq, false);
+
+      int n = Math.min(src.remaining(), Chunk.maxSize - off);
+
+      src.get(curData, off, n);
+
+      curLength = Math.max(curLength, off+n);
+      curDirty  = true;
+      modified  = true;
+
+      position += n;
+      total    += n;
+
+      size = Math.max(size, position);
+    }
+
+    readAhead.setSize(size);
+
+    return total;
+  }
+
+  /**
+   * Get current position.
+   */
+  public synchronized long position()
+    throws IOException
+  {
+    checkOpen();
+    return position;
+  }
+
+  /**
+   * Set current position.
+   *
+   * @param newPosition New position in bytes.
+   */
+  public synchronized SeekableByteChannel position(long newPosition)
+    throws IOException
+  {
+    checkOpen();
+
+    if (newPosition < 0)
+      throw new IllegalArgumentException("Negative position.");
+
+    position = newPosition;
+    return this;
+  }
+
+  /**
+   * Get current length of the file.
+   */
+  public synchronized long size()
+    throws IOException
+  {
+    checkOpen();
+    return size;
+  }
+
+  /**
+   * Truncate the file.  Chunks past the new end
+   * are left on chunkservers but are never read.
+   *
+   * @param newSize New length in bytes.
+   */
+  public synchronized SeekableByteChannel truncate(long newSize)
+    throws IOException
+  {
+    checkOpen();
+
+    if (!writable)
+      throw new NonWritableChannelException();
+
+    if (newSize < 0)
+      throw new IllegalArgumentException("Negative size.");
+
+    if (newSize < size)
+    {
+      size     = newSize;
+      modified = true;
+    }
+
+    if (position > size)
+      position = size;
+
+    readAhead.setSize(size);
+
+    return this;
+  }
+
+  /**
+   * Submit buffered writes and record the
+   * new file length with the controller.
+   */
+  public synchronized void flush()
+    throws IOException
+  {
+    checkOpen();
+
+    flushChunk();
+
+    if (modified)
+    {
+      try {
+        client.putFileInfo(f, size);
+      }
+      catch (Exception e) {
+        throw ioException(e);
+      }
+
+      modified = false;
+    }
+  }
+
+  /**
+   * Check if channel is open.
+   */
+  public synchronized boolean isOpen()
+  {
+    return open;
+  }
+
+  /**
+   * Submit buffered writes and close channel.
+   */
+  public synchronized void close()
+    throws IOException
+  {
+    if (!open)
+      return;
+
+    try {
+      flush();
+    }
+    finally {
+      readAhead.close();
+      open = false;
+    }
+  }
+
+  // throw if channel has been closed
+  private void checkOpen()
+    throws IOException
+  {
+    if (!open)
+      throw new ClosedChannelException();
+  }
+
+  // bytes of a given chunk that lie within the file
+  private int chunkLength(long seq)
+  {
+    return (int)Math.min(Chunk.maxSize, size - seq*Chunk.maxSize);
+  }
+
+  // Make a given chunk the loaded chunk, submitting
+  // the one currently loaded if it has been written.
+  private void load(long seq, boolean reading)
+    throws IOException
+  {
+    if (seq != curSeq)
+    {
+      flushChunk();
+
+      // our own writes come first
+      byte[] data = written.get(seq);
+
+      // otherwise go get it if it exists, only
+      // reads move the read-ahead window along
+      if ((data == null) && (seq*Chunk.maxSize < size))
+        data = reading ? readAhead.get(seq) : readAhead.fetch(seq);
+
+      curSeq    = seq;
+      curDirty  = false;
+      curLength = (data == null) ? 0 : Math.min(data.length, Chunk.maxSize);
+
+      if (data != null)
+        System.arraycopy(data, 0, curData, 0, curLength);
+
+      // zero the rest, chunks that grow read as zero
+      Arrays.fill(curData, curLength, Chunk.maxSize, (byte)0);
+
+      if (curLength < Math.max(0, chunkLength(seq)))
+        throw new IOException("Chunk " + seq + " of " + f + " is short, " +
+                              curLength + " of " + chunkLength(seq) + " bytes.");
+    }
+  }
+
+  // submit loaded chunk if it has been written
+  private void flushChunk()
+    throws IOException
+  {
+    if (!curDirty)
+      return;
+
+    // drop anything past a truncated end
+    int length = (int)Math.min(curLength, size - curSeq*Chunk.maxSize);
+
+    byte[] data = Arrays.copyOf(curData, length);
+
+    try
+    {
+      // ask controller for current holders so
+      // we never miss an existing replica
+      HostID[] holders = client.lookupRange(fileId, curSeq, 1)[0];
+
+      client.submitChunk(new ChunkHandle(fileId, curSeq), f,
+                         holders, data, null);
+    }
+    catch (Exception e) {
+      throw ioException(e);
+    }
+
+    // anything prefetched for this chunk is now stale
+    readAhead.invalidate(curSeq);
+
+    written.put(curSeq, data);
+    curDirty = false;
+  }
+
+  // wrap an exception in an IOException
+  static IOException ioException(Exception e)
+  {
+    if (e instanceof IOException)
+      return (IOException)e;
+    else
+      return new IOException(e.getMessage(), e);
+  }
+}
@@ -0,0 +1,87 @@
+package goofs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream reading a file stored in goofs.
+ * Reads go through a read-only GoofsChannel, so
+ * the next chunk is fetched in the background
+ * while the current one is consumed.
+ *
+ * @author Elliott Forney
+ */
+public class GoofsInputStream
+  extends InputStream
+{
+  // channel doing the actual reads
+  private GoofsChannel channel;
+
+  /**
+   * Open a stream on a channel.  Use Client.openInputStream.
+   *
+   * @param channel Channel to read from.
+   */
+  GoofsInputStream(GoofsChannel channel)
+  {
+    this.channel = channel;
+  }
+
+  /**
+   * Read a single byte.
+   *
+   * @return Byte read or -1 at end of file.
+   */
+  public int read()
+    throws IOException
+  {
+    byte[] b = new byte[1];
+
+    if (read(b, 0, 1) <= 0)
+      return -1;
+
+    return b[0] & 0xff;
+  }
+
+  /**
+   * Read into part of a byte array.
+   *
+   * @return Bytes read or -1 at end of file.
+   */
+  public int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    if (len == 0)
+      return 0;
+
+    return channel.read(ByteBuffer.wrap(b, off, len));
+  }
+
+  /**
+   * Skip forward without fetching skipped chunks.
+   *
+   * @return Bytes skipped.
+   */
+  public long skip(long n)
+    throws IOException
+  {
+    synchronized (channel)
+    {
+      long pos  = channel.position();
+      long skip = Math.max(0, Math.min(n, channel.size() - pos));
+
+      channel.position(pos + skip);
+
+      return skip;
+    }
+  }
+
+  /**
+   * Close the underlying channel.
+   */
+  public void close()
+    throws IOException
+  {
+    channel.close();
+  }
+}
@@ -0,0 +1,253 @@
+package goofs;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Output stream writing a file into goofs from its
+ * start.  Data is gathered into chunk buffers drawn
+ * from a pool and each full chunk is handed to the
+ * client's upload workers, so chunks are submitted
+ * in parallel while the caller keeps writing.  The
+ * new file length is recorded when the stream closes.
+ *
+ * @author Elliott Forney
+ */
+public class GoofsOutputStream
+  extends OutputStream
+{
+  // client used to reach goofs
+  private Client client;
+
+  // file being written
+  private File f;
+
+  // id chunks of file are known by, resolved
+  // with the first batch of holders
+  private long fileId = ChunkHandle.noFile;
+
+  // reusable buffers for chunks in flight
+  private ChunkBufferPool pool;
+
+  // chunks not yet picked up by a worker
+  private ArrayBlockingQueue<Client.UploadTask> queue;
+
+  // workers submitting chunks
+  private Client.UploadWorker[] workers;
+
+  // tracks chunks sent and first failure
+  private TransferProgress progress;
+
+  // chunk currently being filled
+  private byte[] buffer = null;
+
+  // bytes in current chunk
+  private int count = 0;
+
+  // sequence number of current chunk
+  private long seq = 0;
+
+  // bytes handed to workers so far
+  private long length = 0;
+
+  // holders of upcoming chunks, looked up in
+  // batches starting at sequence holdersFirst
+  private HostID[][] holders = null;
+  private long holdersFirst = 0;
+
+  // true once stream is closed
+  private boolean closed = false;
+
+  /**
+   * Open a stream on a file.  Use Client.openOutputStream.
+   *
+   * @param client Client used to reach goofs.
+   * @param f File to write.
+   */
+  GoofsOutputStream(Client client, File f)
+  {
+    this.client = client;
+    this.f      = f;
+
+    int parallelism = client.getParallelism();
+
+    pool     = new ChunkBufferPool(2*parallelism, Chunk.maxSize);
+    queue    = new ArrayBlockingQueue<Client.UploadTask>(parallelism);
+    progress = new TransferProgress("Wrote", 0, 0);
+    workers  = client.startUploadWorkers(queue, pool, progress);
+  }
+
+  /**
+   * Write a single byte.
+   */
+  public synchronized void write(int b)
+    throws IOException
+  {
+    checkOpen();
+
+    if (buffer == null)
+      buffer = acquire();
+
+    buffer[count++] = (byte)b;
+
+    if (count == buffer.length)
+      sendChunk();
+  }
+
+  /**
+   * Write part of a byte array.
+   */
+  public synchronized void write(byte[] b, int off, int len)
+    throws IOException
+  {
+    checkOpen();
+
+    if ((off < 0) || (len < 0) || (off+len > b.length))
+      throw new IndexOutOfBoundsException();
+
+    while (len > 0)
+    {
+      if (buffer == null)
+        buffer = acquire();
+
+      int n = Math.min(len, buffer.length - count);
+
+      System.arraycopy(b, off, buffer, count, n);
+
+      count += n;
+      off   += n;
+      len   -= n;
+
+      if (count == buffer.length)
+        sendChunk();
+    }
+  }
+
+  /**
+   * Report any failure so far.  Partial chunks
+   * are only submitted when the stream closes.
+   */
+  public synchronized void flush()
+    throws IOException
+  {
+    checkOpen();
+  }
+
+  /**
+   * Submit the trailing chunk, wait for all chunks
+   * to be persisted and record the new file length.
+   */
+  public synchronized void close()
+    throws IOException
+  {
+    if (closed)
+      return;
+
+    closed = true;
+
+    try
+    {
+      if (count > 0)
+        sendChunk();
+    }
+    finally
+    {
+      try {
+        client.stopUploadWorkers(workers, queue);
+      }
+      catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted closing " + f + ".");
+      }
+    }
+
+    if (progress.hasFailed())
+      throw GoofsChannel.ioException(progress.getFailure());
+
+    try {
+      client.putFileInfo(f, length);
+    }
+    catch (Exception e) {
+      throw GoofsChannel.ioException(e);
+    }
+  }
+
+  // throw if closed or a worker has failed
+  private void checkOpen()
+    throws IOException
+  {
+    if (closed)
+      throw new IOException("Stream closed.");
+
+    if (progress.hasFailed())
+      throw GoofsChannel.ioException(progress.getFailure());
+  }
+
+  // wait for a free chunk buffer
+  private byte[] acquire()
+    throws IOException
+  {
+    try {
+      return pool.acquire();
+    }
+    catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted writing " + f + ".");
+    }
+  }
+
+  // hand current chunk to the upload workers
+  private void sendChunk()
+    throws IOException
+  {
+    byte[] data = buffer;
+
+    // trailing chunk is sent at its exact size
+    if (count < buffer.length)
+    {
+      data = Arrays.copyOf(buffer, count);
+      pool.release(buffer);
+    }
+
+    try
+    {
+      HostID[] chunkHolders = holdersFor(seq);
+
+      queue.put(new Client.UploadTask(
+        new ChunkHandle(fileId, seq), f, chunkHolders, data));
+    }
+    catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted writing " + f + ".");
+    }
+
+    length += count;
+    ++seq;
+
+    buffer = null;
+    count  = 0;
+  }
+
+  // Get chunkservers already holding a chunk, asking
+  // the controller for the next batch when needed.
+  private HostID[] holdersFor(long seq)
+    throws IOException
+  {
+    if ((holders == null) || (seq >= holdersFirst + holders.length))
+    {
+      try
+      {
+        // controller assigns an id if file is new
+        if (fileId == ChunkHandle.noFile)
+          fileId = client.resolve(f, true);
+
+        holders = client.lookupRange(fileId, seq, Client.prefetchChunks);
+      }
+      catch (Exception e) {
+        throw GoofsChannel.ioException(e);
+      }
+
+      holdersFirst = seq;
+    }
+
+    return holders[(int)(seq - holdersFirst)];
+  }
+}
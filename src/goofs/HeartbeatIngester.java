@@ -0,0 +1,323 @@
+package goofs;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Takes chunk lists from heartbeats into the chunk index in
+ * bulk.  Heartbeats arriving while a bulk load is under way
+ * wait and go in together with the next, so when every
+ * chunkserver reports at once, as after a controller restart,
+ * chunks are grouped by stripe once for the lot and each
+ * stripe is locked once per batch rather than once per
+ * heartbeat.  Stripes are shared out over a thread per
+ * processor, each working alone on its own stripes.  Small
+ * lists, like those of most minor heartbeats, are taken in
+ * directly since there is little to gain, as is everything
+ * on a single processor where there is nothing to share.
+ *
+ * @author Elliott Forney
+ */
+public class HeartbeatIngester
+{
+  /** fewest chunks in a list worth waiting to combine */
+  public static final int minBulk = 256;
+
+  // fewest chunks in a bulk load worth splitting over threads
+  private static final int minParallel = 4096;
+
+  // chunk list from one heartbeat
+  private static class Batch
+  {
+    ChunkHandle[] handles;
+    int node;
+
+    // set once taken in
+    boolean done = false;
+
+    // chunks not recorded, or why none were
+    ChunkHandle[] rejected = null;
+    RuntimeException failure = null;
+
+    Batch(ChunkHandle[] handles, int node)
+    {
+      this.handles = handles;
+      this.node    = node;
+    }
+  }
+
+  // index chunks are taken into
+  private StripedChunkIndex index;
+
+  // threads sharing out stripes, null if only one
+  private ExecutorService workers = null;
+  private int numWorkers;
+
+  // lists waiting for the next bulk load
+  private ArrayList<Batch> pending = new ArrayList<Batch>();
+
+  // true while a bulk load is under way
+  private boolean loading = false;
+
+  // counts kept for status
+  private long loads = 0;
+  private long lists = 0;
+  private long chunks = 0;
+
+  /**
+   * Create an ingester with a thread per processor.
+   *
+   * @param index Index chunks are taken into.
+   */
+  public HeartbeatIngester(StripedChunkIndex index)
+  {
+    this(index, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create an ingester.
+   *
+   * @param index Index chunks are taken into.
+   * @param numWorkers Threads sharing out stripes.
+   */
+  public HeartbeatIngester(StripedChunkIndex index, int numWorkers)
+  {
+    this.index = index;
+    this.numWorkers = Math.max(1, Math.min(numWorkers,
+                                           StripedChunkIndex.numStripes));
+
+    if (this.numWorkers > 1)
+      workers = Executors.newFixedThreadPool(this.numWorkers,
+        new ThreadFactory()
+        {
+          public Thread newThread(Runnable r)
+          {
+            Thread t = new Thread(r, "heartbeat ingester");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Record a chunkserver as holding each of a list of chunks,
+   * returning once they are in the index.
+   *
+   * @param handles Chunks held.
+   * @param node Node id of chunkserver, 1 to ChunkIndex.maxNode.
+   * @return Chunks not recorded because they already
+   *   had ChunkIndex.holdersPerChunk other holders.
+   */
+  public ChunkHandle[] addHolders(ChunkHandle[] handles, int node)
+  {
+    // nothing to share out, bulk loads only cost a copy
+    if ((handles.length < minBulk) || (workers == null))
+      return index.addHolders(handles, node);
+
+    Batch b = new Batch(handles, node);
+    ArrayList<Batch> load;
+
+    synchronized (this)
+    {
+      pending.add(b);
+
+      // wait for a load under way, ours may go in the next
+      boolean interrupted = false;
+      while (loading && !b.done)
+      {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      if (interrupted)
+        Thread.currentThread().interrupt();
+
+      // another thread took ours in with its own
+      if (b.done)
+        return result(b);
+
+      // take in everything waiting, ours included
+      loading = true;
+      load    = pending;
+      pending = new ArrayList<Batch>();
+    }
+
+    RuntimeException failure = null;
+
+    try {
+      load(load);
+    }
+    catch (RuntimeException e) {
+      failure = e;
+    }
+
+    synchronized (this)
+    {
+      for (int i = 0; i < load.size(); ++i)
+      {
+        load.get(i).failure = failure;
+        load.get(i).done    = true;
+      }
+
+      ++loads;
+      lists += load.size();
+
+      loading = false;
+      notifyAll();
+    }
+
+    return result(b);
+  }
+
+  /**
+   * Generate human readable string describing loads so far.
+   */
+  public synchronized String toString()
+  {
+    return String.format("%d bulk loads of %.1f lists, %d chunks, " +
+                         "%d threads", loads,
+                         (loads == 0) ? 0.0 : (double)lists / loads,
+                         chunks, numWorkers);
+  }
+
+  // Chunks not recorded from a list taken in.
+  private static ChunkHandle[] result(Batch b)
+  {
+    if (b.failure != null)
+      throw b.failure;
+
+    return b.rejected;
+  }
+
+  // Take in a bulk load of lists, grouped by stripe once
+  // and split over threads by stripe.
+  private void load(ArrayList<Batch> load)
+  {
+    int total = 0;
+    for (int i = 0; i < load.size(); ++i)
+      total += load.get(i).handles.length;
+
+    // all chunks of all lists, with their holders
+    final ChunkHandle[] handles = new ChunkHandle[total];
+    final int[] nodes = new int[total];
+
+    int k = 0;
+    for (int i = 0; i < load.size(); ++i)
+    {
+      Batch b = load.get(i);
+
+      System.arraycopy(b.handles, 0, handles, k, b.handles.length);
+      for (int j = 0; j < b.handles.length; ++j)
+        nodes[k+j] = b.node;
+
+      k += b.handles.length;
+    }
+
+    final int[] start = new int[StripedChunkIndex.numStripes+1];
+    final int[] order = StripedChunkIndex.byStripe(handles, start);
+
+    final boolean[] rejected = new boolean[total];
+
+    if (total < minParallel)
+      addStripes(0, StripedChunkIndex.numStripes,
+                 handles, nodes, order, start, rejected);
+
+    else
+    {
+      ArrayList<Future<?>> parts = new ArrayList<Future<?>>();
+
+      // each thread alone on a range of stripes
+      for (int w = 0; w < numWorkers; ++w)
+      {
+        final int firstStripe = w * StripedChunkIndex.numStripes / numWorkers;
+        final int lastStripe  = (w+1) * StripedChunkIndex.numStripes / numWorkers;
+
+        parts.add(workers.submit(new Runnable()
+        {
+          public void run()
+          {
+            addStripes(firstStripe, lastStripe,
+                       handles, nodes, order, start, rejected);
+          }
+        }));
+      }
+
+      waitFor(parts);
+    }
+
+    // hand back what each list had rejected
+    k = 0;
+    for (int i = 0; i < load.size(); ++i)
+    {
+      Batch b = load.get(i);
+      ArrayList<ChunkHandle> r = new ArrayList<ChunkHandle>();
+
+      for (int j = 0; j < b.handles.length; ++j)
+        if (rejected[k+j])
+          r.add(b.handles[j]);
+
+      b.rejected = r.toArray(new ChunkHandle[r.size()]);
+      k += b.handles.length;
+    }
+
+    synchronized (this) {
+      chunks += total;
+    }
+  }
+
+  // Take in chunks falling in a range of stripes.
+  private void addStripes(int firstStripe, int lastStripe,
+                          ChunkHandle[] handles, int[] nodes,
+                          int[] order, int[] start, boolean[] rejected)
+  {
+    for (int s = firstStripe; s < lastStripe; ++s)
+      index.addHolders(s, handles, nodes, order, start[s], start[s+1],
+                       rejected);
+  }
+
+  // Wait for every part of a bulk load, passing on
+  // the first thing to go wrong in any of them.
+  private static void waitFor(ArrayList<Future<?>> parts)
+  {
+    RuntimeException failure = null;
+    boolean interrupted = false;
+
+    for (int i = 0; i < parts.size(); ++i)
+    {
+      while (true)
+      {
+        try
+        {
+          parts.get(i).get();
+          break;
+        }
+        catch (InterruptedException e) {
+          // stripes are half written until it finishes
+          interrupted = true;
+        }
+        catch (ExecutionException e)
+        {
+          if (failure == null)
+            failure = (e.getCause() instanceof RuntimeException) ?
+              (RuntimeException)e.getCause() :
+              new IllegalStateException(e.getCause());
+          break;
+        }
+      }
+    }
+
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    if (failure != null)
+      throw failure;
+  }
+}
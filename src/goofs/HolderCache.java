@@ -0,0 +1,302 @@
+package goofs;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client-side cache mapping chunk handles to
+ * the chunkservers holding them, along with the
+ * file id and metadata of each file.  Entries expire
+ * after a fixed time and the least recently used
+ * entries are dropped once the cache is full.
+ *
+ * @author Elliott Forney
+ */
+public class HolderCache
+{
+  // maximum number of entries held
+  private int maxEntries;
+
+  // milliseconds an entry stays valid
+  private long ttlMillis;
+
+  // cached entries by chunk handle,
+  // kept in least recently used order
+  private LinkedHashMap<ChunkHandle, HolderCacheEntry> entries;
+
+  // cached file ids and metadata by file name,
+  // also kept in least recently used order
+  private LinkedHashMap<String, HolderCacheFile> files;
+
+  // same file entries by file id
+  private HashMap<Long, HolderCacheFile> filesById =
+    new HashMap<Long, HolderCacheFile>();
+
+  // hits and misses for reporting
+  private long numHits   = 0;
+  private long numMisses = 0;
+
+  /**
+   * Create a new holder cache.
+   *
+   * @param maxEntries Maximum number of chunks to cache.
+   * @param ttlMillis Milliseconds before an entry expires.
+   */
+  public HolderCache(final int maxEntries, long ttlMillis)
+  {
+    this.maxEntries = maxEntries;
+    this.ttlMillis  = ttlMillis;
+
+    // access ordered so eldest entry is least recently used
+    entries = new LinkedHashMap<ChunkHandle, HolderCacheEntry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1l;
+
+      protected boolean removeEldestEntry(
+        Map.Entry<ChunkHandle, HolderCacheEntry> eldest)
+      {
+        return size() > maxEntries;
+      }
+    };
+
+    files = new LinkedHashMap<String, HolderCacheFile>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1l;
+
+      protected boolean removeEldestEntry(
+        Map.Entry<String, HolderCacheFile> eldest)
+      {
+        if (size() <= maxEntries)
+          return false;
+
+        filesById.remove(eldest.getValue().fileId);
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Get cached holders for a chunk.
+   *
+   * @param handle Handle of chunk to look up.
+   * @return Holders of chunk or null if not
+   *   cached or entry has expired.
+   */
+  public synchronized HostID[] get(ChunkHandle handle)
+  {
+    HolderCacheEntry entry = entries.get(handle);
+
+    if ((entry == null) ||
+        (entry.expires < System.currentTimeMillis()))
+    {
+      if (entry != null)
+        entries.remove(handle);
+
+      ++numMisses;
+      return null;
+    }
+
+    ++numHits;
+    return entry.holders;
+  }
+
+  /**
+   * Cache holders for a chunk.  Chunks with no
+   * holders are not cached since they may be
+   * created at any time.
+   *
+   * @param handle Handle of chunk.
+   * @param holders Chunkservers holding chunk.
+   */
+  public synchronized void put(ChunkHandle handle, HostID[] holders)
+  {
+    if (holders.length == 0)
+      return;
+
+    entries.put(handle,
+      new HolderCacheEntry(holders, System.currentTimeMillis() + ttlMillis));
+  }
+
+  /**
+   * Drop a cached chunk, used when a holder
+   * no longer has the chunk.
+   *
+   * @param handle Handle of chunk to drop.
+   */
+  public synchronized void invalidate(ChunkHandle handle)
+  {
+    entries.remove(handle);
+  }
+
+  /**
+   * Get cached metadata for a file.
+   *
+   * @param f File to look up.
+   * @return File metadata or null if not
+   *   cached or entry has expired.
+   */
+  public synchronized FileInfo getFileInfo(File f)
+  {
+    HolderCacheFile entry = live(files.get(f.toString()));
+
+    if (entry == null)
+      return null;
+
+    return entry.info;
+  }
+
+  /**
+   * Get cached metadata for a file by id.
+   *
+   * @param fileId Id of file to look up.
+   * @return File metadata or null if not
+   *   cached or entry has expired.
+   */
+  public synchronized FileInfo getFileInfo(long fileId)
+  {
+    HolderCacheFile entry = live(filesById.get(fileId));
+
+    if (entry == null)
+      return null;
+
+    return entry.info;
+  }
+
+  /**
+   * Get cached id of a file.
+   *
+   * @param f File to look up.
+   * @return Id of file, ChunkHandle.noFile if the
+   *   controller did not know the file, or null
+   *   if not cached or entry has expired.
+   */
+  public synchronized Long getFileId(File f)
+  {
+    HolderCacheFile entry = live(files.get(f.toString()));
+
+    if (entry == null)
+      return null;
+
+    return entry.fileId;
+  }
+
+  /**
+   * Cache metadata for a file.
+   *
+   * @param info File metadata, ignored if null.
+   */
+  public synchronized void putFileInfo(FileInfo info)
+  {
+    if (info == null)
+      return;
+
+    putFile(info.getFile(), info.getFileId(), info);
+  }
+
+  /**
+   * Cache id and metadata for a file.  If the id or
+   * version has changed since it was last cached,
+   * holders cached for its chunks are dropped.
+   *
+   * @param f File to cache.
+   * @param fileId Id of file or ChunkHandle.noFile.
+   * @param info File metadata or null if it has none.
+   */
+  public synchronized void putFile(File f, long fileId, FileInfo info)
+  {
+    HolderCacheFile old = files.get(f.toString());
+
+    // id or version mismatch, chunks may have moved
+    if ((old != null) &&
+        ((old.fileId != fileId) ||
+         ((old.info != null) && (info != null) &&
+          (old.info.getVersion() != info.getVersion()))))
+      invalidateFile(f);
+
+    HolderCacheFile entry = new HolderCacheFile(fileId, info,
+      System.currentTimeMillis() + ttlMillis);
+
+    files.put(f.toString(), entry);
+
+    if (fileId != ChunkHandle.noFile)
+      filesById.put(fileId, entry);
+  }
+
+  /**
+   * Drop all cached holders and metadata for a file.
+   *
+   * @param f File to drop.
+   */
+  public synchronized void invalidateFile(File f)
+  {
+    HolderCacheFile old = files.remove(f.toString());
+
+    if (old == null)
+      return;
+
+    filesById.remove(old.fileId);
+
+    // drop chunk entries belonging to file
+    Iterator<ChunkHandle> itr = entries.keySet().iterator();
+    while (itr.hasNext())
+      if (itr.next().getFileId() == old.fileId)
+        itr.remove();
+  }
+
+  // entry if it has not yet expired, otherwise null
+  private HolderCacheFile live(HolderCacheFile entry)
+  {
+    if ((entry == null) ||
+        (entry.expires < System.currentTimeMillis()))
+      return null;
+
+    return entry;
+  }
+
+  /**
+   * Get number of chunks currently cached.
+   */
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  /**
+   * Generate human readable string describing
+   * cache size and hit rate.
+   */
+  public synchronized String toString()
+  {
+    return "Holder cache: " + entries.size() + "/" + maxEntries +
+           " entries, " + numHits + " hits, " + numMisses + " misses.";
+  }
+
+  // id and metadata of a file and time they expire
+  private static class HolderCacheFile
+  {
+    public long fileId;
+    public FileInfo info;
+    public long expires;
+
+    public HolderCacheFile(long fileId, FileInfo info, long expires)
+    {
+      this.fileId  = fileId;
+      this.info    = info;
+      this.expires = expires;
+    }
+  }
+
+  // holders of a chunk and time they expire
+  private static class HolderCacheEntry
+  {
+    public HostID[] holders;
+    public long expires;
+
+    public HolderCacheEntry(HostID[] holders, long expires)
+    {
+      this.holders = holders;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package goofs;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * Tracks response latency of chunkservers as seen
+ * by a client.  Keeps an exponentially weighted
+ * moving average per chunkserver, used to route
+ * requests to the fastest holder, and a window of
+ * recent samples, used to decide when to send
+ * a hedged request.
+ *
+ * @author Elliott Forney
+ */
+public class LatencyTracker
+{
+  /** weight given to newest sample in moving averages */
+  public static final double alpha = 0.2;
+
+  /** percentile of recent latencies to wait before hedging */
+  public static final double hedgePercentile = 0.95;
+
+  /** hedge delay used until enough samples are collected */
+  public static final long defaultHedgeMillis = 100;
+
+  /** smallest hedge delay we will use */
+  public static final long minHedgeMillis = 2;
+
+  /** latency charged to a chunkserver when a request fails */
+  public static final long failurePenaltyMillis = 1000;
+
+  // number of recent samples kept for percentiles
+  private static final int windowSize = 256;
+
+  // samples needed before percentiles are trusted
+  private static final int minSamples = 16;
+
+  // moving average latency by chunkserver id string
+  private Hashtable<String, Double> averages =
+    new Hashtable<String, Double>();
+
+  // ring buffer of recent latencies
+  private long[] window = new long[windowSize];
+
+  // total samples recorded, mod windowSize is next slot
+  private long numSamples = 0;
+
+  /**
+   * Record a successful request.
+   *
+   * @param cs Chunkserver that answered.
+   * @param millis Milliseconds taken to answer.
+   */
+  public synchronized void record(HostID cs, long millis)
+  {
+    update(cs, millis);
+
+    window[(int)(numSamples % windowSize)] = millis;
+    ++numSamples;
+  }
+
+  /**
+   * Record a failed request, pushing the
+   * chunkserver to the back of the line.
+   *
+   * @param cs Chunkserver that failed.
+   */
+  public synchronized void recordFailure(HostID cs)
+  {
+    Double avg = averages.get(cs.toString());
+
+    if ((avg == null) || (avg.doubleValue() < failurePenaltyMillis))
+      averages.put(cs.toString(), Double.valueOf(failurePenaltyMillis));
+    else
+      update(cs, 2*avg.longValue());
+  }
+
+  /**
+   * Get moving average latency for a chunkserver.
+   *
+   * @return Average latency in milliseconds or
+   *   zero if chunkserver has not been seen yet.
+   */
+  public synchronized double getAverage(HostID cs)
+  {
+    Double avg = averages.get(cs.toString());
+
+    if (avg == null)
+      return 0.0;
+    else
+      return avg.doubleValue();
+  }
+
+  /**
+   * Order chunkservers for a read.  The controller gives
+   * holders nearest first and shuffled within each rack,
+   * so that order is kept unless another holder has been
+   * seen to answer in under half the average of the first.
+   * The fastest such holder is then moved to the front,
+   * so reads only leave the rack when it is much slower.
+   *
+   * @param chunkServers Chunkservers to order.
+   * @return A new array with chunkservers in the order
+   *   they should be tried.
+   */
+  public synchronized HostID[] order(HostID[] chunkServers)
+  {
+    HostID[] ordered = chunkServers.clone();
+
+    if (ordered.length < 2)
+      return ordered;
+
+    double firstAvg = getAverage(ordered[0]);
+
+    // fastest holder seen at under half the first's average
+    int best = 0;
+    double bestAvg = firstAvg / 2.0;
+
+    for (int i = 1; i < ordered.length; ++i)
+    {
+      double avg = getAverage(ordered[i]);
+
+      // never seen is not known to be faster
+      if ((avg > 0.0) && (avg < bestAvg))
+      {
+        best = i;
+        bestAvg = avg;
+      }
+    }
+
+    // move it to the front, others keep given order
+    if (best > 0)
+    {
+      HostID fastest = ordered[best];
+      System.arraycopy(ordered, 0, ordered, 1, best);
+      ordered[0] = fastest;
+    }
+
+    return ordered;
+  }
+
+  /**
+   * Get milliseconds to wait for a reply before
+   * sending a hedged request to another holder.
+   *
+   * @return The hedgePercentile of recent latencies,
+   *   or defaultHedgeMillis if too few have been seen.
+   */
+  public synchronized long getHedgeDelay()
+  {
+    int n = (int)Math.min(numSamples, windowSize);
+
+    if (n < minSamples)
+      return defaultHedgeMillis;
+
+    long[] sorted = new long[n];
+    System.arraycopy(window, 0, sorted, 0, n);
+    Arrays.sort(sorted);
+
+    long delay = sorted[(int)Math.min(n-1, (long)(hedgePercentile*n))];
+
+    return Math.max(delay, minHedgeMillis);
+  }
+
+  // fold a new sample into a chunkserver's average
+  private void update(HostID cs, long millis)
+  {
+    Double avg = averages.get(cs.toString());
+
+    if (avg == null)
+      averages.put(cs.toString(), Double.valueOf(millis));
+    else
+      averages.put(cs.toString(),
+        Double.valueOf(alpha*millis + (1.0-alpha)*avg.doubleValue()));
+  }
+}
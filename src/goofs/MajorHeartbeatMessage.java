@@ -1,7 +1,12 @@
 package goofs;
 
+import java.io.File;
+
 /**
- * Major heartbeat from chunkserver to controller.
+ * Major heartbeat from chunkserver to controller.  Sent first
+ * as a summary of every chunk on the chunkserver, which the
+ * controller answers with the buckets of chunks it disagrees
+ * on, then as a list of the chunks in just those buckets.
  *
  * @author Elliott Forney
  */
@@ -10,43 +15,221 @@ public class MajorHeartbeatMessage
 {
   private static final long serialVersionUID = 1l;
 
-  // descriptors for all chunks
-  private ChunkDescriptor[] allChunks;
+  // true if sent as a summary rather than a list of buckets
+  private boolean summary = false;
+
+  // summary of all chunks, null in a list of buckets
+  // and in the controller's reply to a summary
+  private ChunkDigest digest = null;
+
+  // buckets listed and handles for all chunks in them
+  private int[] buckets = new int[0];
+  private ChunkHandle[] chunks = new ChunkHandle[0];
+
+  // buckets controller disagrees on, set in reply to a summary
+  private int[] staleBuckets = new int[0];
 
   //
-  private ChunkDescriptor[] corruptChunks;
+  private ChunkHandle[] corruptChunks;
+
+  // load on the chunkserver, null if not reported
+  private NodeLoad load = null;
+
+  // rack and zone chunkserver says it is in, null if unknown
+  private String rack = null;
+  private String zone = null;
+
+  // ids and pathnames of files with chunks on the
+  // chunkserver, lets a controller rebuild its namespace
+  private long[] fileIds = new long[0];
+  private File[] files   = new File[0];
 
   /**
-   *  Create new major heartbeat message
+   *  Create new major heartbeat message summing up all chunks.
    *
    * @param src Message source.
    * @param dst Message destination.
+   * @param digest Summary of all chunks on chunkserver.
    */
   public MajorHeartbeatMessage(HostID src, HostID dst,
-                               ChunkDescriptor[] allChunks,
-                               ChunkDescriptor[] corruptChunks)
+                               ChunkDigest digest,
+                               ChunkHandle[] corruptChunks)
   {
     super(src, dst, Message.Kind.MajorHeartbeat);
-    this.allChunks      = allChunks;
+    this.summary        = true;
+    this.digest         = digest;
     this.corruptChunks  = corruptChunks;
   }
 
   /**
+   *  Create new major heartbeat message listing
+   *  all chunks in some buckets.
    *
+   * @param src Message source.
+   * @param dst Message destination.
+   * @param buckets Buckets listed.
+   * @param chunks Every chunk on chunkserver in those buckets.
+   */
+  public MajorHeartbeatMessage(HostID src, HostID dst,
+                               int[] buckets, ChunkHandle[] chunks)
+  {
+    super(src, dst, Message.Kind.MajorHeartbeat);
+    this.buckets        = buckets;
+    this.chunks         = chunks;
+    this.corruptChunks  = new ChunkHandle[0];
+  }
+
+  /**
+   * Check if this heartbeat sums up all chunks
+   * rather than listing some buckets.
+   */
+  public boolean isSummary()
+  {
+    return summary;
+  }
+
+  /**
+   * Controller answers a summary with the buckets
+   * it wants listed, a list needs no answer.
+   */
+  public boolean expectsReply()
+  {
+    return isSummary();
+  }
+
+  /**
+   * Get summary of all chunks, null in a list or reply.
+   */
+  public ChunkDigest getDigest()
+  {
+    return digest;
+  }
+
+  /**
+   * Get buckets listed.
+   */
+  public int[] getBuckets()
+  {
+    return buckets;
+  }
+
+  /**
+   * Get every chunk on chunkserver in buckets listed.
+   */
+  public ChunkHandle[] getChunks()
+  {
+    return chunks;
+  }
+
+  /**
+   * Set buckets controller disagrees on, in reply.
+   */
+  public void setStaleBuckets(int[] staleBuckets)
+  {
+    this.staleBuckets = staleBuckets;
+  }
+
+  /**
+   * Drop the digest and everything else the chunkserver
+   * sent, so a reply carries only the stale buckets.
+   * Still a summary, so the reply is sent.
    */
-  public ChunkDescriptor[] getAllChunks()
+  public void clearSummary()
   {
-    return allChunks;
+    digest        = null;
+    corruptChunks = new ChunkHandle[0];
+    load          = null;
+    rack          = null;
+    zone          = null;
+    fileIds       = new long[0];
+    files         = new File[0];
+  }
+
+  /**
+   * Get buckets controller disagrees on.
+   */
+  public int[] getStaleBuckets()
+  {
+    return staleBuckets;
   }
 
   /**
    *
    */
-  public ChunkDescriptor[] getCorruptChunks()
+  public ChunkHandle[] getCorruptChunks()
   {
     return corruptChunks;
   }
 
+  /**
+   * Set pathnames of files with chunks on the chunkserver.
+   *
+   * @param fileIds Id of each file.
+   * @param files Pathname of each file.
+   */
+  public void setFiles(long[] fileIds, File[] files)
+  {
+    this.fileIds = fileIds;
+    this.files   = files;
+  }
+
+  /**
+   * Get ids of files with chunks on the chunkserver.
+   */
+  public long[] getFileIds()
+  {
+    return fileIds;
+  }
+
+  /**
+   * Get pathnames of files, in the same order as getFileIds.
+   */
+  public File[] getFiles()
+  {
+    return files;
+  }
+
+  /**
+   * Set load on the chunkserver sending this heartbeat.
+   */
+  public void setLoad(NodeLoad load)
+  {
+    this.load = load;
+  }
+
+  /**
+   * Get load on the chunkserver, null if not reported.
+   */
+  public NodeLoad getLoad()
+  {
+    return load;
+  }
+
+  /**
+   * Set rack and zone of the chunkserver sending this heartbeat.
+   */
+  public void setLocation(String rack, String zone)
+  {
+    this.rack = rack;
+    this.zone = zone;
+  }
+
+  /**
+   * Get rack of the chunkserver, null if unknown.
+   */
+  public String getRack()
+  {
+    return rack;
+  }
+
+  /**
+   * Get zone of the chunkserver, null if unknown.
+   */
+  public String getZone()
+  {
+    return zone;
+  }
+
   /**
    *
    */
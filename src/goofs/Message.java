@@ -23,7 +23,11 @@ public class Message
     RequestMinor,   RequestMajor,
     GetFree,        GetHolders,
     SubmitData,     RetrieveData,
-    FixReplication, FixCorruption
+    FixReplication, FixCorruption,
+    GetRangeHolders,
+    GetFileInfo,    PutFileInfo,
+    GetChecksums,
+    DeleteChunk
   }
 
   /** This message's kind */
@@ -32,6 +36,16 @@ public class Message
   protected HostID src; // message source id
   protected HostID dst; // message destination id
 
+  // idle connections shared by all messages
+  private static ConnectionPool pool = new ConnectionPool();
+
+  // socket currently used to send this message,
+  // kept so that a pending send can be cancelled
+  private transient volatile Socket sock = null;
+
+  // set once this message has been cancelled
+  private transient volatile boolean cancelled = false;
+
   /**
    *  Create a new goofs message.
    *
@@ -105,80 +119,127 @@ public class Message
     return false;
   }
 
+  /**
+   * Determine whether this message may be sent again
+   * after it went out but no reply came back.  The
+   * other side may have acted on it already, so only
+   * lookups that change nothing are repeatable.
+   *
+   * @return True if acting on this message twice
+   *   is no different from acting on it once.
+   */
+  public boolean isRepeatable()
+  {
+    return false;
+  }
+
   /**
    * Send this message to its destination and get reply.
+   * Messages that expect a reply reuse pooled connections,
+   * others are sent over a connection of their own.
    *
    * @return Message reply.
    */
   public Message send()
     throws Exception
   {
-    // object stream for sending message
-    ObjectOutputStream output = null;
-
-    // outgoing socket
-    Socket s = null;
-
     // message reply received
     Message reply = null;
 
-    // try and send message
-    try
+    boolean pooled = expectsReply();
+
+    for (int attempt = 0; ; ++attempt)
     {
-      // open socket to destination
-      s = new Socket(dst.getHost(), dst.getPort());
+      // outgoing connection
+      Connection conn = null;
 
-      // open output stream on socket
-      output =
-        new ObjectOutputStream(s.getOutputStream());
+      // try and send message
+      try
+      {
+        // only reuse a connection on first attempt,
+        // a second attempt means the pooled one was stale
+        if (pooled && (attempt == 0))
+          conn = pool.acquire(dst);
 
-      // send the message
-      output.writeObject(this);
+        if (conn == null)
+          conn = new Connection(dst);
 
-      // flush and close output stream
-      output.flush();
-    }
-    catch (Exception e) {
-      throw new Exception("Error sending message " + this +
-                          ": " + e.getMessage());
-    }
+        sock = conn.getSocket();
 
-    if (expectsReply())
-    {
-      // object stream for receiving reply
-      ObjectInputStream input = null;
+        // send the message
+        conn.write(this);
+      }
+      catch (Exception e)
+      {
+        if (conn != null)
+          conn.close();
 
-      // try and get reply
-      try
+        sock = null;
+
+        if ((conn != null) && conn.isReused() && !cancelled)
+          continue;
+
+        throw new Exception("Error sending message " + this +
+                            ": " + e.getMessage());
+      }
+
+      // no reply, we're done with this connection
+      if (!pooled)
       {
-        // open input stream on socket
-        input =
-          new ObjectInputStream(s.getInputStream());
+        conn.close();
+        sock = null;
+        return null;
+      }
 
+      // try and get reply
+      try {
         // get message reply
-        reply = (Message)input.readObject();
-
-        // close input stream
-        input.close();
+        reply = conn.read();
       }
-      catch(Exception e) {
+      catch (Exception e)
+      {
+        conn.close();
+        sock = null;
+
+        // request went out, the other side may have acted
+        // on it, so only lookups are sent again
+        if (conn.isReused() && !cancelled && isRepeatable())
+          continue;
+
         throw new Exception("Error getting message reply " + this +
                             ": " + e.getMessage());
       }
+
+      sock = null;
+
+      // keep connection for next message
+      if (cancelled)
+        conn.close();
+      else
+        pool.release(conn);
+
+      return reply;
     }
+  }
 
-    try {
-      // close output stream
-      output.close();
+  /**
+   * Cancel a send that is currently in progress
+   * by closing its socket.  The pending call to
+   * send will throw an exception.
+   */
+  public void cancel()
+  {
+    cancelled = true;
+
+    Socket s = sock;
 
-      // close socket
-      s.close();
+    try {
+      if (s != null)
+        s.close();
     }
     catch (Exception e) {
       // do nothing
     }
-
-    return reply;
   }
 
   /**
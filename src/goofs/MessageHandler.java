@@ -14,6 +14,9 @@ import java.net.*;
 public abstract class MessageHandler
   extends Thread
 {
+  /** seconds a connection may sit idle before we hang up */
+  public static final int idleSecs = 4*ConnectionPool.idleSecs;
+
   private Socket s; // socket handling the request
 
   /**
@@ -28,8 +31,10 @@ public abstract class MessageHandler
   /**
    * Start a new message handler thread.
    * Sets up object streams on socket,
-   * gets message, calls handle and 
-   * sends reply.
+   * gets messages, calls handle and
+   * sends replies.  Senders reuse connections
+   * for messages that expect a reply so we keep
+   * handling messages until the sender hangs up.
    */
   public void run()
   {
@@ -38,32 +43,58 @@ public abstract class MessageHandler
 
     try
     {
+      // hang up on connections left idle
+      s.setSoTimeout(idleSecs*1000);
+
       // open new object input stream on socket
       input =
-        new ObjectInputStream(s.getInputStream());
+        new ObjectInputStream(
+          new BufferedInputStream(s.getInputStream()));
 
-      // get message from input
-      Message got = (Message)input.readObject();
+      while (true)
+      {
+        Message got;
 
-      // System.out.println("recv: " + got);
+        // get message from input
+        try {
+          got = (Message)input.readObject();
+        }
+        catch (EOFException e) {
+          break; // sender hung up
+        }
+        catch (SocketTimeoutException e) {
+          break; // connection sat idle
+        }
 
-      // call handler to process message
-      Message put = handle(got);
+        // System.out.println("recv: " + got);
+
+        // call handler to process message
+        Message put = handle(got);
+
+        // messages without replies get
+        // a connection of their own
+        if (!got.expectsReply())
+          break;
+
+        // nothing to send, hang up so
+        // the sender doesn't wait for us
+        if (put == null)
+          break;
 
-      if ((put != null) && (got.expectsReply()))
-      {
         // open new object output stream on socket
-        output =
-          new ObjectOutputStream(s.getOutputStream());
+        if (output == null)
+          output =
+            new ObjectOutputStream(
+              new BufferedOutputStream(s.getOutputStream()));
 
         // System.out.println("send: " + put);
 
         // send reply message
+        output.reset();
         output.writeObject(put);
 
-        // flush and close output stream
+        // flush output stream
         output.flush();
-        output.close();
       }
     }
     catch (Exception e) {
@@ -71,11 +102,16 @@ public abstract class MessageHandler
     }
 
     try {
-    // close input stream
-    input.close();
+      // close output stream
+      if (output != null)
+        output.close();
+
+      // close input stream
+      if (input != null)
+        input.close();
 
-    // close socket
-    s.close();
+      // close socket
+      s.close();
     }
     catch (Exception e) {
       // do nothing
@@ -10,11 +10,18 @@ public class MinorHeartbeatMessage
 {
   private static final long serialVersionUID = 1l;
 
-  // descriptors for chunks added since last heartbeat
-  private ChunkDescriptor[] newChunks;
+  // handles for chunks added since last heartbeat
+  private ChunkHandle[] newChunks;
 
   //
-  private ChunkDescriptor[] corruptChunks;
+  private ChunkHandle[] corruptChunks;
+
+  // load on the chunkserver, null if not reported
+  private NodeLoad load = null;
+
+  // rack and zone chunkserver says it is in, null if unknown
+  private String rack = null;
+  private String zone = null;
 
   /**
    *  Create new minor heartbeat message
@@ -24,8 +31,8 @@ public class MinorHeartbeatMessage
    * @param newChunks Chunks added since last heartbeat
    */
   public MinorHeartbeatMessage(HostID src, HostID dst,
-                               ChunkDescriptor[] newChunks,
-                               ChunkDescriptor[] corruptChunks)
+                               ChunkHandle[] newChunks,
+                               ChunkHandle[] corruptChunks)
   {
     super(src, dst, Message.Kind.MinorHeartbeat);
     this.newChunks     = newChunks;
@@ -35,7 +42,7 @@ public class MinorHeartbeatMessage
   /**
    *
    */
-  public ChunkDescriptor[] getNewChunks()
+  public ChunkHandle[] getNewChunks()
   {
     return newChunks;
   }
@@ -43,11 +50,52 @@ public class MinorHeartbeatMessage
   /**
    *
    */
-  public ChunkDescriptor[] getCorruptChunks()
+  public ChunkHandle[] getCorruptChunks()
   {
     return corruptChunks;
   }
 
+  /**
+   * Set load on the chunkserver sending this heartbeat.
+   */
+  public void setLoad(NodeLoad load)
+  {
+    this.load = load;
+  }
+
+  /**
+   * Get load on the chunkserver, null if not reported.
+   */
+  public NodeLoad getLoad()
+  {
+    return load;
+  }
+
+  /**
+   * Set rack and zone of the chunkserver sending this heartbeat.
+   */
+  public void setLocation(String rack, String zone)
+  {
+    this.rack = rack;
+    this.zone = zone;
+  }
+
+  /**
+   * Get rack of the chunkserver, null if unknown.
+   */
+  public String getRack()
+  {
+    return rack;
+  }
+
+  /**
+   * Get zone of the chunkserver, null if unknown.
+   */
+  public String getZone()
+  {
+    return zone;
+  }
+
   /**
    *
    */
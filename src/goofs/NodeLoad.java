@@ -0,0 +1,139 @@
+package goofs;
+
+import java.io.*;
+
+/**
+ * Load on a chunkserver as reported with each heartbeat:
+ * free disk, pending I/O, recent throughput and CPU load.
+ * The controller uses it to keep new chunks off full or
+ * busy chunkservers.
+ *
+ * @author Elliott Forney
+ */
+public class NodeLoad
+  implements Serializable
+{
+  private static final long serialVersionUID = 1l;
+
+  // bytes free on disk holding chunks
+  private long freeBytes;
+
+  // bytes on disk holding chunks
+  private long totalBytes;
+
+  // bytes of chunks stored by this chunkserver
+  private long storedBytes;
+
+  // chunk reads and writes in progress or waiting
+  private int queueDepth;
+
+  // bytes of chunks read and written per second
+  // since the last heartbeat
+  private long readRate;
+  private long writeRate;
+
+  // system load average divided by number of processors,
+  // about 1.0 when every processor is busy
+  private double cpuLoad;
+
+  /**
+   * Create a new load report.
+   *
+   * @param freeBytes Bytes free on disk holding chunks.
+   * @param totalBytes Bytes on disk holding chunks.
+   * @param storedBytes Bytes of chunks stored.
+   * @param queueDepth Chunk reads and writes pending.
+   * @param readRate Bytes read per second.
+   * @param writeRate Bytes written per second.
+   * @param cpuLoad Load average per processor, negative if unknown.
+   */
+  public NodeLoad(long freeBytes, long totalBytes, long storedBytes,
+                  int queueDepth, long readRate, long writeRate,
+                  double cpuLoad)
+  {
+    this.freeBytes   = freeBytes;
+    this.totalBytes  = totalBytes;
+    this.storedBytes = storedBytes;
+    this.queueDepth  = queueDepth;
+    this.readRate    = readRate;
+    this.writeRate   = writeRate;
+    this.cpuLoad     = cpuLoad;
+  }
+
+  /**
+   * Get bytes free on disk holding chunks.
+   */
+  public long getFreeBytes()
+  {
+    return freeBytes;
+  }
+
+  /**
+   * Get bytes on disk holding chunks.
+   */
+  public long getTotalBytes()
+  {
+    return totalBytes;
+  }
+
+  /**
+   * Get bytes of chunks stored by this chunkserver.
+   */
+  public long getStoredBytes()
+  {
+    return storedBytes;
+  }
+
+  /**
+   * Get bytes of chunks stored plus bytes free, the most
+   * this chunkserver could hold if it had the disk alone.
+   */
+  public long getCapacity()
+  {
+    return storedBytes + freeBytes;
+  }
+
+  /**
+   * Get number of chunk reads and writes pending.
+   */
+  public int getQueueDepth()
+  {
+    return queueDepth;
+  }
+
+  /**
+   * Get bytes of chunks read per second.
+   */
+  public long getReadRate()
+  {
+    return readRate;
+  }
+
+  /**
+   * Get bytes of chunks written per second.
+   */
+  public long getWriteRate()
+  {
+    return writeRate;
+  }
+
+  /**
+   * Get load average per processor, negative if unknown.
+   */
+  public double getCpuLoad()
+  {
+    return cpuLoad;
+  }
+
+  /**
+   * Generate human readable string describing this load.
+   */
+  public String toString()
+  {
+    return String.format("stored %.1f MB, free %.1f/%.1f GB, queue %d, " +
+                         "read %.1f MB/s, write %.1f MB/s, cpu %.2f",
+                         storedBytes/1e6, freeBytes/1e9, totalBytes/1e9,
+                         queueDepth,
+                         readRate/1e6, writeRate/1e6, cpuLoad);
+  }
+}
@@ -0,0 +1,329 @@
+package goofs;
+
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * Rack-aware choice of chunkservers to hold new chunks.
+ * A writer in a rack with chunkservers gets the first
+ * replica in its rack, the second in another rack, in
+ * another zone if there is one, and the third next to
+ * the second.  A writer outside the cluster gets the
+ * first two in the least loaded rack and the third
+ * in another, so the pair lands where there is room.
+ * Replicas so survive the loss of a rack or zone while
+ * the replication pipeline, which runs through holders
+ * in the order given, crosses racks only once inside
+ * the cluster.  Where the cluster has too few racks
+ * the rule is relaxed rather than placing fewer
+ * replicas, and full chunkservers are never chosen.
+ * Not synchronized, callers must lock around it.
+ *
+ * @author Elliott Forney
+ */
+public class Placement
+{
+  // where chunkservers are
+  private Topology topology;
+
+  // every chunkserver, least loaded first
+  private ServerHeap all = new ServerHeap();
+
+  // chunkservers of each rack by rack key
+  private Hashtable<String, ServerHeap> byRack =
+    new Hashtable<String, ServerHeap>();
+
+  // location of each rack by rack key
+  private Hashtable<String, Topology.Location> rackLocation =
+    new Hashtable<String, Topology.Location>();
+
+  // rack key each chunkserver was placed in by host id string
+  private Hashtable<String, String> rackOf =
+    new Hashtable<String, String>();
+
+  /**
+   * Create a new placement over no chunkservers.
+   *
+   * @param topology Where chunkservers are.
+   */
+  public Placement(Topology topology)
+  {
+    this.topology = topology;
+  }
+
+  /**
+   * Get number of chunkservers placed among.
+   */
+  public int size()
+  {
+    return all.size();
+  }
+
+  /**
+   * Add a chunkserver.
+   */
+  public void add(ControllerSEntry e)
+  {
+    Topology.Location loc = topology.locate(e.getID());
+    String rack = loc.getRackKey();
+
+    ServerHeap heap = byRack.get(rack);
+    if (heap == null)
+    {
+      heap = new ServerHeap(true);
+      byRack.put(rack, heap);
+      rackLocation.put(rack, loc);
+    }
+
+    all.add(e);
+    heap.add(e);
+    rackOf.put(e.getID().toString(), rack);
+  }
+
+  /**
+   * Remove a chunkserver.
+   */
+  public void remove(ControllerSEntry e)
+  {
+    String rack = rackOf.remove(e.getID().toString());
+
+    if (rack == null)
+      return;
+
+    all.remove(e);
+
+    ServerHeap heap = byRack.get(rack);
+    heap.remove(e);
+
+    if (heap.size() == 0)
+    {
+      byRack.remove(rack);
+      rackLocation.remove(rack);
+    }
+  }
+
+  /**
+   * Move a chunkserver into place after its load changed.
+   */
+  public void update(ControllerSEntry e)
+  {
+    String rack = rackOf.get(e.getID().toString());
+
+    if (rack == null)
+      return;
+
+    all.update(e);
+    byRack.get(rack).update(e);
+  }
+
+  /**
+   * Move a chunkserver to the rack the
+   * topology now says it is in.
+   */
+  public void relocate(ControllerSEntry e)
+  {
+    String rack = rackOf.get(e.getID().toString());
+
+    if ((rack != null) &&
+        !rack.equals(topology.locate(e.getID()).getRackKey()))
+    {
+      remove(e);
+      add(e);
+    }
+  }
+
+  /**
+   * Choose chunkservers to hold a new chunk.
+   *
+   * @param writer Host writing the chunk.
+   * @param n Number of replicas wanted.
+   * @return Up to n chunkservers in pipeline order,
+   *   fewer only if there are too few not full.
+   */
+  public ControllerSEntry[] choose(HostID writer, int n)
+  {
+    ControllerSEntry[] chosen = new ControllerSEntry[n];
+    int k = 0;
+
+    // first replica near the writer, if its rack has room
+    ControllerSEntry local =
+      first(byRack.get(topology.locate(writer).getRackKey()), chosen, 0);
+
+    // replica whose rack the pair is placed in,
+    // and the replica placed apart from the first
+    int pair  = (local != null) ? 1 : 0;
+    int apart = (local != null) ? 1 : 2;
+
+    while (k < n)
+    {
+      ControllerSEntry next = null;
+
+      if (k == 0)
+        next = (local != null) ? local : first(all, chosen, k);
+
+      // next to the replica starting the pair
+      else if (k == pair+1)
+        next = first(byRack.get(rackOf.get(chosen[pair].getID().toString())),
+                     chosen, k);
+
+      // away from the first replica, another
+      // zone if we can, otherwise another rack
+      else if (k == apart)
+      {
+        next = away(topology.locate(chosen[0].getID()),
+                    Topology.otherZone, chosen, k);
+
+        if (next == null)
+          next = away(topology.locate(chosen[0].getID()),
+                      Topology.sameZone, chosen, k);
+      }
+
+      // rest off the first's rack if we can
+      if ((next == null) && (k > 0))
+        next = away(topology.locate(chosen[0].getID()),
+                    Topology.sameZone, chosen, k);
+
+      if (next == null)
+        next = first(all, chosen, k);
+
+      // everything left is full
+      if (next == null)
+        break;
+
+      chosen[k++] = next;
+    }
+
+    ControllerSEntry[] result = new ControllerSEntry[k];
+    System.arraycopy(chosen, 0, result, 0, k);
+
+    return result;
+  }
+
+  /**
+   * Choose a chunkserver to hold another replica of a
+   * chunk, in a rack holding none of it if one has room.
+   *
+   * @param holders Chunkservers holding the chunk.
+   * @param filter Test chunkserver must also pass, null for none.
+   * @return Chunkserver or null if none not full passes.
+   */
+  public ControllerSEntry another(HostID[] holders,
+                                  final ServerHeap.Filter filter)
+  {
+    final HashSet<String> holding = new HashSet<String>();
+    HashSet<String> holdingRacks  = new HashSet<String>();
+
+    for (int i = 0; i < holders.length; ++i)
+    {
+      holding.add(holders[i].toString());
+      holdingRacks.add(topology.locate(holders[i]).getRackKey());
+    }
+
+    ServerHeap.Filter accept = new ServerHeap.Filter()
+    {
+      public boolean accept(ControllerSEntry e)
+      {
+        return !e.isFull() &&
+               !holding.contains(e.getID().toString()) &&
+               ((filter == null) || filter.accept(e));
+      }
+    };
+
+    // best of racks without a replica
+    ControllerSEntry best = null;
+
+    Iterator<String> itr = byRack.keySet().iterator();
+    while (itr.hasNext())
+    {
+      String rack = itr.next();
+
+      if (holdingRacks.contains(rack))
+        continue;
+
+      ControllerSEntry cur = byRack.get(rack).first(accept);
+
+      if ((cur != null) && ((best == null) || (cur.compareTo(best) < 0)))
+        best = cur;
+    }
+
+    if (best == null)
+      best = all.first(accept);
+
+    return best;
+  }
+
+  // Least loaded chunkserver at least minDistance from a
+  // location, null if there is none.  Looks at the best of
+  // each rack rather than searching every chunkserver, so
+  // a rack holding most of the cluster costs no more.
+  private ControllerSEntry away(Topology.Location from, int minDistance,
+                                ControllerSEntry[] chosen, int numChosen)
+  {
+    ControllerSEntry best = null;
+
+    Iterator<String> itr = byRack.keySet().iterator();
+    while (itr.hasNext())
+    {
+      String rack = itr.next();
+
+      if (from.distance(rackLocation.get(rack)) < minDistance)
+        continue;
+
+      ControllerSEntry cur = first(byRack.get(rack), chosen, numChosen);
+
+      if ((cur != null) && ((best == null) || (cur.compareTo(best) < 0)))
+        best = cur;
+    }
+
+    return best;
+  }
+
+  // least loaded chunkserver in heap that is not full
+  // and not yet chosen, null if there is none
+  private ControllerSEntry first(ServerHeap heap,
+                                 final ControllerSEntry[] chosen,
+                                 final int numChosen)
+  {
+    if (heap == null)
+      return null;
+
+    return heap.first(new ServerHeap.Filter()
+    {
+      public boolean accept(ControllerSEntry e)
+      {
+        if (e.isFull())
+          return false;
+
+        for (int i = 0; i < numChosen; ++i)
+          if (chosen[i] == e)
+            return false;
+
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Generate human readable string listing
+   * how many chunkservers are in each rack.
+   */
+  public String toString()
+  {
+    String s = "";
+
+    // sorted by rack key
+    TreeMap<String, ServerHeap> sorted =
+      new TreeMap<String, ServerHeap>(byRack);
+
+    Iterator<String> itr = sorted.keySet().iterator();
+    while (itr.hasNext())
+    {
+      String rack = itr.next();
+      s += rack + ": " + sorted.get(rack).size() + " chunkservers\n";
+    }
+
+    return s;
+  }
+}
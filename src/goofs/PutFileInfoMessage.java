@@ -0,0 +1,107 @@
+package goofs;
+
+import java.io.*;
+
+/**
+ * Message sent once all chunks of a file have
+ * been submitted, recording the new length of
+ * the file with the controller.  The reply
+ * carries the updated metadata.
+ *
+ * @author Elliott Forney
+ */
+public class PutFileInfoMessage
+  extends Message
+{
+  private static final long serialVersionUID = 1l;
+
+  // file we are concerned with
+  private File f;
+
+  // new length of file in bytes
+  private long length;
+
+  // bytes in each chunk except the last
+  private int chunkSize;
+
+  // updated metadata for file
+  private FileInfo info = null;
+
+  /**
+   * Create a message recording a file submission.
+   *
+   * @param src Message source, client.
+   * @param dst Message destination, controller.
+   * @param f File that was submitted.
+   * @param length New length of the file in bytes.
+   * @param chunkSize Bytes in each chunk except the last.
+   */
+  public PutFileInfoMessage(HostID src, HostID dst, File f,
+                            long length, int chunkSize)
+  {
+    super(src, dst, Message.Kind.PutFileInfo);
+    this.f         = f;
+    this.length    = length;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   *
+   */
+  public boolean expectsReply()
+  {
+    return true;
+  }
+
+  /**
+   * Get the file sent in this message.
+   */
+  public File getFile()
+  {
+    return f;
+  }
+
+  /**
+   * Get the new length of the file.
+   */
+  public long getLength()
+  {
+    return length;
+  }
+
+  /**
+   * Get bytes in each chunk except the last.
+   */
+  public int getChunkSize()
+  {
+    return chunkSize;
+  }
+
+  /**
+   * Set the updated file metadata.
+   */
+  public void setFileInfo(FileInfo info)
+  {
+    this.info = info;
+  }
+
+  /**
+   * Get the updated file metadata.
+   */
+  public FileInfo getFileInfo()
+  {
+    return info;
+  }
+
+  /**
+   * Send this message to its
+   * current destination.
+   *
+   * @return Reply message.
+   */
+  public PutFileInfoMessage send()
+    throws Exception
+  {
+    return (PutFileInfoMessage)super.send();
+  }
+}
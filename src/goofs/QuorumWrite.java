@@ -0,0 +1,230 @@
+package goofs;
+
+import java.io.File;
+
+/**
+ * Write of a single chunk that is sent to
+ * all chunkservers in parallel rather than
+ * forwarded along a chain.  The write is
+ * acknowledged once a quorum of chunkservers
+ * have persisted the chunk, remaining
+ * replicas finish in the background.
+ *
+ * @author Elliott Forney
+ */
+public class QuorumWrite
+{
+  // source of submit messages
+  private HostID src;
+
+  // chunkservers to hold chunk
+  private HostID[] chunkServers;
+
+  // chunk handle to associate with data
+  private ChunkHandle handle;
+
+  // pathname of file containing chunk
+  private File f;
+
+  // data for chunk to contain
+  private byte[] data;
+
+  // number of acknowledgements needed
+  private int quorum;
+
+  // chunkservers that have persisted the chunk
+  private int numAcks = 0;
+
+  // chunkservers that failed to persist the chunk
+  private int numFailed = 0;
+
+  // run once every chunkserver has finished
+  private Runnable onComplete = null;
+
+  // byte within chunk where data starts
+  private int chunkOffset = 0;
+
+  /**
+   * Create a new quorum write.
+   *
+   * @param src Message source, client or chunkserver.
+   * @param chunkServers Chunkservers to hold data.
+   * @param handle Chunk handle describing data.
+   * @param f Pathname of file containing chunk.
+   * @param data Data to be held in destination chunks.
+   * @param quorum Number of chunkservers that must persist
+   *   the data before the write is acknowledged.
+   */
+  public QuorumWrite(HostID src, HostID[] chunkServers,
+                     ChunkHandle handle, File f, byte[] data, int quorum)
+    throws Exception
+  {
+    if ((quorum < 1) || (quorum > chunkServers.length))
+      throw new Exception("Cannot reach write quorum of " + quorum +
+                          " with " + chunkServers.length + " chunkservers.");
+
+    this.src          = src;
+    this.chunkServers = chunkServers;
+    this.handle       = handle;
+    this.f            = f;
+    this.data         = data;
+    this.quorum       = quorum;
+  }
+
+  /**
+   * Set an action to run once every chunkserver has
+   * either acknowledged or failed, for instance to
+   * reuse the data buffer.  Must be set before start.
+   *
+   * @param onComplete Action to run.
+   */
+  public void setOnComplete(Runnable onComplete)
+  {
+    this.onComplete = onComplete;
+  }
+
+  /**
+   * Set the byte within the chunk where data starts,
+   * used to send only changed slices.  Must be set
+   * before start.
+   *
+   * @param chunkOffset Byte within chunk.
+   */
+  public void setChunkOffset(int chunkOffset)
+  {
+    this.chunkOffset = chunkOffset;
+  }
+
+  /**
+   * Start sending the chunk to each
+   * chunkserver in parallel.
+   */
+  public void start()
+  {
+    for (int i = 0; i < chunkServers.length; ++i)
+      (new ReplicaWriter(chunkServers[i])).start();
+  }
+
+  /**
+   * Block until a quorum of chunkservers have
+   * persisted the chunk.
+   *
+   * @param timeoutMillis Maximum milliseconds to wait.
+   * @return Number of chunkservers that have
+   *   acknowledged the write so far.
+   */
+  public synchronized int waitForQuorum(long timeoutMillis)
+    throws Exception
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    while (numAcks < quorum)
+    {
+      // quorum can no longer be reached
+      if ((chunkServers.length - numFailed) < quorum)
+        throw new Exception("Write quorum lost for " + handle +
+                            ": " + numAcks + " of " + quorum +
+                            " acknowledged, " + numFailed + " failed.");
+
+      long remaining = deadline - System.currentTimeMillis();
+
+      if (remaining <= 0)
+        throw new Exception("Timed out waiting for write quorum for " +
+                            handle + ": " + numAcks + " of " +
+                            quorum + " acknowledged.");
+
+      wait(remaining);
+    }
+
+    return numAcks;
+  }
+
+  /**
+   * Block until every chunkserver has
+   * either acknowledged or failed.
+   */
+  public synchronized void waitForAll()
+    throws InterruptedException
+  {
+    while ((numAcks + numFailed) < chunkServers.length)
+      wait();
+  }
+
+  /**
+   * Get the number of chunkservers that have
+   * acknowledged the write so far.
+   */
+  public synchronized int getNumAcks()
+  {
+    return numAcks;
+  }
+
+  /**
+   * Get the number of chunkservers that have
+   * failed to persist the write so far.
+   */
+  public synchronized int getNumFailed()
+  {
+    return numFailed;
+  }
+
+  // record the outcome of a single replica
+  private void finish(boolean persisted)
+  {
+    boolean done;
+
+    synchronized (this)
+    {
+      if (persisted)
+        ++numAcks;
+      else
+        ++numFailed;
+
+      done = ((numAcks + numFailed) == chunkServers.length);
+
+      notifyAll();
+    }
+
+    if (done && (onComplete != null))
+      onComplete.run();
+  }
+
+  // thread sending the chunk to a single chunkserver
+  private class ReplicaWriter
+    extends Thread
+  {
+    // chunkserver to send to
+    private HostID cs;
+
+    // create new writer for a given chunkserver
+    public ReplicaWriter(HostID cs)
+    {
+      this.cs = cs;
+    }
+
+    // send chunk and wait for acknowledgement
+    public void run()
+    {
+      HostID[] dst = new HostID[1];
+      dst[0] = cs;
+
+      SubmitDataMessage sdm =
+        new SubmitDataMessage(src, dst, handle, f, data, true);
+
+      sdm.setChunkOffset(chunkOffset);
+
+      boolean persisted = false;
+
+      try {
+        SubmitDataMessage reply = sdm.send();
+        persisted = (reply != null) && reply.isPersisted();
+      }
+      catch (Exception e) {
+        System.out.println("Failed to submit data to " + cs +
+                           ": " + e.getMessage());
+      }
+
+      finish(persisted);
+    }
+  }
+}
@@ -0,0 +1,324 @@
+package goofs;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Prefetches chunks of a file ahead of a sequential
+ * reader.  The read-ahead window starts at a single
+ * chunk and doubles with each sequential read up to
+ * a maximum, a read anywhere else drops everything
+ * prefetched and closes the window.  Fetcher threads
+ * fill the window so that at most maxWindow chunks
+ * are ever held ahead of the reader.
+ *
+ * @author Elliott Forney
+ */
+public class ReadAhead
+{
+  // client used to reach goofs
+  private Client client;
+
+  // file being read
+  private File f;
+
+  // id chunks of file are known by
+  private long fileId;
+
+  // most chunks prefetched at once
+  private int maxWindow;
+
+  // chunks currently prefetched ahead of reader
+  private int window = 0;
+
+  // chunks in file, none are prefetched past this
+  private long numChunks;
+
+  // sequence number of last chunk read
+  private long lastSeq = -1;
+
+  // prefetched or in flight chunks by sequence
+  private HashMap<Long, Prefetch> pending =
+    new HashMap<Long, Prefetch>();
+
+  // prefetches waiting for a fetcher
+  private LinkedList<Prefetch> queue = new LinkedList<Prefetch>();
+
+  // true once closed, stops fetchers
+  private boolean closed = false;
+
+  // number of reads served from the window, for reporting
+  private long numHits   = 0;
+  private long numMisses = 0;
+
+  /**
+   * Create a new read-ahead over a file.
+   *
+   * @param client Client used to reach goofs.
+   * @param f File being read.
+   * @param fileId Id chunks of file are known by.
+   * @param size Length of file in bytes.
+   * @param maxWindow Most chunks to prefetch at once,
+   *   zero to never prefetch.
+   */
+  public ReadAhead(Client client, File f, long fileId,
+                   long size, int maxWindow)
+  {
+    this.client    = client;
+    this.f         = f;
+    this.fileId    = fileId;
+    this.maxWindow = maxWindow;
+
+    setSize(size);
+
+    // no point in more fetchers than chunks in window
+    int numFetchers = Math.min(maxWindow, client.getParallelism());
+
+    for (int i = 0; i < numFetchers; ++i)
+      (new Fetcher()).start();
+  }
+
+  /**
+   * Set length of file, chunks past the
+   * end are never prefetched.
+   *
+   * @param size Length of file in bytes.
+   */
+  public synchronized void setSize(long size)
+  {
+    numChunks = (size + Chunk.maxSize - 1) / Chunk.maxSize;
+  }
+
+  /**
+   * Get a chunk for the reader, from the window if it
+   * was prefetched, and move the window along.
+   *
+   * @param seq Sequence number of chunk.
+   * @return Chunk data.
+   */
+  public byte[] get(long seq)
+    throws IOException
+  {
+    Prefetch p;
+
+    synchronized (this)
+    {
+      if (seq == lastSeq+1)
+      {
+        // sequential, open window further
+        window = Math.min(Math.max(1, 2*window), maxWindow);
+      }
+      else if (seq != lastSeq)
+      {
+        // random access, back off
+        window = 0;
+      }
+
+      lastSeq = seq;
+
+      p = pending.remove(seq);
+
+      // drop anything outside the new window
+      Iterator<Prefetch> itr = pending.values().iterator();
+      while (itr.hasNext())
+      {
+        Prefetch cur = itr.next();
+
+        if ((cur.seq < seq) || (cur.seq > seq+window))
+        {
+          queue.remove(cur);
+          itr.remove();
+        }
+      }
+
+      // fill window ahead of reader
+      for (long i = seq+1; (i <= seq+window) && (i < numChunks); ++i)
+        if (!pending.containsKey(i))
+        {
+          Prefetch next = new Prefetch(i);
+
+          pending.put(i, next);
+          queue.add(next);
+        }
+
+      if (p != null)
+        ++numHits;
+      else
+        ++numMisses;
+
+      notifyAll();
+    }
+
+    if (p != null)
+    {
+      try {
+        return p.take();
+      }
+      catch (IOException e) {
+        // prefetch failed, try once more below
+      }
+    }
+
+    return fetch(seq);
+  }
+
+  /**
+   * Drop a prefetched chunk, used when
+   * the reader has written to it.
+   *
+   * @param seq Sequence number of chunk.
+   */
+  public synchronized void invalidate(long seq)
+  {
+    Prefetch p = pending.remove(seq);
+
+    if (p != null)
+      queue.remove(p);
+  }
+
+  /**
+   * Fetch a chunk from its holders without prefetching.
+   *
+   * @param seq Sequence number of chunk.
+   * @return Chunk data.
+   */
+  public byte[] fetch(long seq)
+    throws IOException
+  {
+    try
+    {
+      ChunkHandle handle = new ChunkHandle(fileId, seq);
+
+      HostID[] holders = client.getHolders(handle);
+
+      if (holders.length == 0)
+        throw new IOException("No chunkservers hold chunk " + seq +
+                              " of " + f + ".");
+
+      return client.readChunk(handle, holders);
+    }
+    catch (Exception e) {
+      throw GoofsChannel.ioException(e);
+    }
+  }
+
+  /**
+   * Stop prefetching and drop anything prefetched.
+   */
+  public synchronized void close()
+  {
+    closed = true;
+
+    pending.clear();
+    queue.clear();
+
+    notifyAll();
+  }
+
+  /**
+   * Generate human readable string describing
+   * window size and hit rate.
+   */
+  public synchronized String toString()
+  {
+    return "Read-ahead: window " + window + "/" + maxWindow + ", " +
+           numHits + " hits, " + numMisses + " misses.";
+  }
+
+  // wait for a prefetch to be queued, null once closed
+  private synchronized Prefetch nextPrefetch()
+  {
+    while (!closed && queue.isEmpty())
+    {
+      try {
+        wait();
+      }
+      catch (InterruptedException e) {
+        return null;
+      }
+    }
+
+    if (closed)
+      return null;
+
+    return queue.removeFirst();
+  }
+
+  // a single chunk being prefetched
+  private class Prefetch
+  {
+    // sequence number of chunk
+    public long seq;
+
+    // chunk data once fetched
+    private byte[] data = null;
+
+    // failure, if any
+    private IOException error = null;
+
+    // true once fetched or failed
+    private boolean done = false;
+
+    public Prefetch(long seq)
+    {
+      this.seq = seq;
+    }
+
+    // record outcome and wake reader
+    public synchronized void finish(byte[] data, IOException error)
+    {
+      this.data  = data;
+      this.error = error;
+      this.done  = true;
+
+      notifyAll();
+    }
+
+    // wait for chunk and get the data
+    public synchronized byte[] take()
+      throws IOException
+    {
+      while (!done)
+      {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted reading " + f + ".");
+        }
+      }
+
+      if (error != null)
+        throw error;
+
+      return data;
+    }
+  }
+
+  // thread fetching queued chunks
+  private class Fetcher
+    extends Thread
+  {
+    public Fetcher()
+    {
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      Prefetch p;
+
+      while ((p = nextPrefetch()) != null)
+      {
+        try {
+          p.finish(fetch(p.seq), null);
+        }
+        catch (IOException e) {
+          p.finish(null, e);
+        }
+      }
+    }
+  }
+}
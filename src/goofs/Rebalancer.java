@@ -0,0 +1,517 @@
+package goofs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Background thread moving chunks off chunkservers holding
+ * more than their share of the cluster's bytes and onto
+ * ones holding less, so chunkservers added to a running
+ * cluster take on old data and not just new chunks.  Each
+ * chunkserver's share is the bytes of chunks it stores over
+ * what it could store, and the cluster is balanced once
+ * every share is within a threshold of the cluster's.
+ *
+ * Work is done in passes, each planned from the loads last
+ * reported in heartbeats and corrected by its own moves.  A
+ * chunk is moved by copying it to the new holder and only
+ * then dropping it from the old one, never onto a holder it
+ * already has or so its replicas span fewer racks.  Copies
+ * draw on the bandwidth cap shared with re-replication, and
+ * no pass starts while chunks are waiting for replicas.
+ *
+ * @author Elliott Forney
+ */
+public class Rebalancer
+  extends Thread
+{
+  /** default spread of shares allowed, as a fraction */
+  public static final double defaultThreshold = 0.10;
+
+  /** most chunks moved in one pass */
+  public static final int maxMovesPerPass = 1000;
+
+  // chunks of a chunkserver looked at when
+  // searching for one to move to another
+  private static final int maxScan = 64;
+
+  // seconds between passes, long enough for every
+  // chunkserver to report its load since the last
+  private static final int passSecs = 2*ChunkServer.minorHeartbeatSecs;
+
+  /**
+   * View of the cluster the rebalancer moves chunks around.
+   */
+  public interface Cluster
+  {
+    /**
+     * Get every live chunkserver.
+     */
+    public ControllerSEntry[] servers();
+
+    /**
+     * Get chunkservers holding a chunk.
+     */
+    public HostID[] holders(ChunkHandle handle);
+
+    /**
+     * Count a chunk on its way to a chunkserver.
+     */
+    public void reserve(HostID target);
+
+    /**
+     * Give back a chunk counted by reserve that never arrived.
+     */
+    public void release(HostID target);
+
+    /**
+     * Record a chunkserver as holding a copied chunk.
+     *
+     * @return False if chunkserver is gone.
+     */
+    public boolean replicated(ChunkHandle handle, HostID target);
+
+    /**
+     * Forget a chunkserver as holding a chunk it dropped.
+     */
+    public void removed(ChunkHandle handle, HostID source);
+  }
+
+  // chunkserver as planned during a pass
+  private static class Node
+  {
+    ControllerSEntry entry;
+    HostID id;
+
+    // bytes stored, corrected for moves this pass
+    double used;
+
+    // bytes stored plus bytes free
+    double capacity;
+
+    // chunks to look through, moved ones before next,
+    // null until first looked at
+    ChunkHandle[] chunks = null;
+    int next = 0;
+
+    double share()
+    {
+      return used / capacity;
+    }
+  }
+
+  // orders nodes by share, least first
+  private static final Comparator<Node> byShare = new Comparator<Node>()
+    {
+      public int compare(Node a, Node b)
+      {
+        return Double.compare(a.share(), b.share());
+      }
+    };
+
+  // controller sending moves
+  private HostID id;
+
+  // where chunkservers are
+  private Topology topology;
+
+  // chunkservers and chunk holders
+  private Cluster cluster;
+
+  // copies chunks, and is waited on
+  private ReplicationScheduler replicator;
+
+  // true while passes are to be made
+  private volatile boolean enabled = true;
+
+  // spread of shares allowed
+  private volatile double threshold = defaultThreshold;
+
+  // progress, guarded by this
+  private String state = "starting";
+  private int passes = 0;
+  private long moved = 0;
+  private long failed = 0;
+  private long bytesMoved = 0;
+  private double spread = 0.0;
+
+  // bytes out of balance now and when balancing started
+  private double excess = 0.0;
+  private double startExcess = 0.0;
+
+  /**
+   * Create a new rebalancer, not yet started.
+   *
+   * @param id Controller sending moves.
+   * @param topology Where chunkservers are.
+   * @param cluster Chunkservers and chunk holders.
+   * @param replicator Copies chunks.
+   */
+  public Rebalancer(HostID id, Topology topology, Cluster cluster,
+                    ReplicationScheduler replicator)
+  {
+    this.id         = id;
+    this.topology   = topology;
+    this.cluster    = cluster;
+    this.replicator = replicator;
+
+    setName("rebalancer");
+    setDaemon(true);
+  }
+
+  /**
+   * Turn passes on or off, a pass under way
+   * stops after the chunk it is moving.
+   */
+  public void setEnabled(boolean enabled)
+  {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Set spread of shares allowed, as a fraction.
+   */
+  public void setThreshold(double threshold)
+  {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Make passes until the controller exits.
+   */
+  public void run()
+  {
+    while (true)
+    {
+      try {
+        Thread.sleep(passSecs*1000);
+      }
+      catch (InterruptedException e) {
+        return;
+      }
+
+      if (!enabled)
+        setState("off");
+
+      // lost replicas come first
+      else if (replicator.pending() > 0)
+        setState("waiting for re-replication");
+
+      else
+      {
+        try {
+          pass();
+        }
+        catch (Exception e) {
+          System.out.println("Rebalance pass failed: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  // Measure balance and move chunks until it is
+  // within threshold or the pass is used up.
+  private void pass()
+  {
+    ArrayList<Node> nodes = new ArrayList<Node>();
+
+    double totalUsed = 0.0;
+    double totalCapacity = 0.0;
+
+    ControllerSEntry[] servers = cluster.servers();
+
+    for (int i = 0; i < servers.length; ++i)
+    {
+      NodeLoad load = servers[i].getLoad();
+
+      // can't place a chunkserver we know nothing of
+      if ((load == null) || (load.getCapacity() <= 0))
+        continue;
+
+      Node n = new Node();
+      n.entry    = servers[i];
+      n.id       = servers[i].getID();
+      n.used     = load.getStoredBytes();
+      n.capacity = load.getCapacity();
+
+      totalUsed     += n.used;
+      totalCapacity += n.capacity;
+
+      nodes.add(n);
+    }
+
+    if ((nodes.size() < 2) || (totalUsed == 0.0))
+    {
+      setState("nothing to balance");
+      return;
+    }
+
+    double average = totalUsed / totalCapacity;
+
+    measure(nodes, average);
+
+    synchronized (this)
+    {
+      ++passes;
+
+      if (excess == 0.0)
+      {
+        state = "balanced";
+        startExcess = 0.0;
+        return;
+      }
+
+      // first pass out of balance, progress is from here
+      if (startExcess == 0.0)
+        startExcess = excess;
+
+      state = "balancing";
+    }
+
+    int numMoved = 0;
+    long numBytes = 0;
+
+    for (int tries = 0; (tries < maxMovesPerPass) && enabled; ++tries)
+    {
+      Collections.sort(nodes, byShare);
+
+      int bytes = moveOne(nodes, average);
+
+      // nothing left that may move
+      if (bytes < 0)
+        break;
+
+      if (bytes > 0)
+      {
+        ++numMoved;
+        numBytes += bytes;
+      }
+    }
+
+    measure(nodes, average);
+
+    System.out.println(String.format(
+      "Rebalance pass %d: moved %d chunks, %.1f MB. %s",
+      passes, numMoved, numBytes/1e6, this));
+  }
+
+  // Move one chunk from the fullest chunkserver that can
+  // give one to the emptiest that can take it, nodes are
+  // sorted by share.  Returns bytes moved, zero if the
+  // move failed, or -1 if no move is left to make.
+  private int moveOne(ArrayList<Node> nodes, double average)
+  {
+    for (int i = nodes.size()-1; i >= 0; --i)
+    {
+      Node source = nodes.get(i);
+
+      if (source.share() <= average)
+        break;
+
+      for (int j = 0; j < i; ++j)
+      {
+        Node target = nodes.get(j);
+
+        if (target.share() >= average)
+          break;
+
+        // only move where one side is out of balance
+        if ((source.share() - average <= threshold) &&
+            (average - target.share() <= threshold))
+          continue;
+
+        // chunkservers on one host share a disk
+        if (topology.distance(source.id, target.id) == Topology.sameHost)
+          continue;
+
+        ChunkHandle handle = choose(source, target);
+
+        if (handle == null)
+          continue;
+
+        int bytes = move(source.id, target.id, handle);
+
+        // best guess of chunk size if the move failed
+        double size = (bytes > 0) ? bytes : source.used / source.chunks.length;
+
+        source.used -= size;
+        target.used += size;
+
+        return bytes;
+      }
+    }
+
+    return -1;
+  }
+
+  // Find a chunk of source that target may take, and
+  // mark it as moved.  Null if none in the next few.
+  private ChunkHandle choose(Node source, Node target)
+  {
+    // in random order, so a pass doesn't
+    // move one file off a chunkserver
+    if (source.chunks == null)
+    {
+      ArrayList<ChunkHandle> chunks =
+        new ArrayList<ChunkHandle>(Arrays.asList(source.entry.getChunks()));
+      Collections.shuffle(chunks);
+
+      source.chunks = chunks.toArray(new ChunkHandle[chunks.size()]);
+    }
+
+    int last = Math.min(source.next + maxScan, source.chunks.length);
+
+    for (int i = source.next; i < last; ++i)
+    {
+      ChunkHandle handle = source.chunks[i];
+      HostID[] holders = cluster.holders(handle);
+
+      if (!movable(holders, source.id, target.id))
+        continue;
+
+      // swap to front of chunks not yet moved
+      source.chunks[i] = source.chunks[source.next];
+      source.chunks[source.next++] = handle;
+
+      return handle;
+    }
+
+    return null;
+  }
+
+  // Check a chunk may move from source to target, it is
+  // held by source and not target, and its replicas
+  // span at least as many racks afterwards.
+  private boolean movable(HostID[] holders, HostID source, HostID target)
+  {
+    boolean held = false;
+
+    HashSet<String> before = new HashSet<String>();
+    HashSet<String> after  = new HashSet<String>();
+
+    after.add(topology.locate(target).getRackKey());
+
+    for (int i = 0; i < holders.length; ++i)
+    {
+      if (holders[i].equals(target))
+        return false;
+
+      String rack = topology.locate(holders[i]).getRackKey();
+      before.add(rack);
+
+      if (holders[i].equals(source))
+        held = true;
+      else
+        after.add(rack);
+    }
+
+    return held && (after.size() >= before.size());
+  }
+
+  // Copy a chunk to target, then drop it from source.
+  // Returns bytes moved, zero if the move failed.
+  private int move(HostID source, HostID target, ChunkHandle handle)
+  {
+    int bytes;
+
+    cluster.reserve(target);
+
+    try {
+      bytes = replicator.transfer(source, target, handle);
+    }
+    catch (Exception e)
+    {
+      cluster.release(target);
+      moveFailed("copy of " + handle + " from " + source + " to " +
+                 target + " failed: " + e.getMessage());
+      return 0;
+    }
+
+    // keep the old replica if the new one is already gone
+    if (!cluster.replicated(handle, target))
+    {
+      moveFailed(target + " went away while taking " + handle);
+      return 0;
+    }
+
+    DeleteChunkMessage dcm = new DeleteChunkMessage(id, source, handle);
+
+    try
+    {
+      dcm = dcm.send();
+
+      if (dcm.isDeleted())
+        cluster.removed(handle, source);
+    }
+    catch (Exception e) {
+      // an extra replica does no harm
+      System.out.println("Failed to drop moved chunk " + handle +
+                         " from " + source + ": " + e.getMessage());
+    }
+
+    synchronized (this)
+    {
+      ++moved;
+      bytesMoved += bytes;
+    }
+
+    return bytes;
+  }
+
+  // Count and report a move that didn't happen.
+  private synchronized void moveFailed(String what)
+  {
+    ++failed;
+    System.out.println("Rebalance: " + what + ".");
+  }
+
+  // Find how far the cluster is out of balance.
+  private void measure(ArrayList<Node> nodes, double average)
+  {
+    double maxSpread = 0.0;
+    double outside = 0.0;
+
+    for (int i = 0; i < nodes.size(); ++i)
+    {
+      Node n = nodes.get(i);
+      double off = Math.abs(n.share() - average);
+
+      maxSpread = Math.max(maxSpread, off);
+
+      // bytes beyond threshold either way
+      outside += Math.max(0.0, (off - threshold) * n.capacity);
+    }
+
+    synchronized (this)
+    {
+      spread = maxSpread;
+      excess = outside;
+    }
+  }
+
+  // Note what the rebalancer is doing.
+  private synchronized void setState(String state)
+  {
+    this.state = state;
+  }
+
+  /**
+   * Generate human readable string describing progress.
+   */
+  public synchronized String toString()
+  {
+    // fraction of the way to balance since it started
+    double converged = (startExcess > 0.0) ?
+      Math.max(0.0, 1.0 - excess / startExcess) : 1.0;
+
+    return String.format("%s, spread %.2f%% (threshold %.2f%%), " +
+                         "%.1f MB out of balance, %.0f%% converged, " +
+                         "%d passes, moved %d chunks, %.1f MB, %d failed",
+                         state, 100*spread, 100*threshold, excess/1e6,
+                         100*converged, passes, moved, bytesMoved/1e6,
+                         failed);
+  }
+}
@@ -0,0 +1,656 @@
+package goofs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+
+/**
+ * Queue of chunks needing more replicas, drained by worker
+ * threads in the background so losing a chunkserver costs
+ * the controller only a pass over its chunks rather than a
+ * copy of each one while holding its locks.  Chunks with the
+ * fewest replicas left go first.  Each chunkserver sends and
+ * receives only a few copies at once and every copy draws on
+ * a shared bandwidth cap, so re-replication after a failure
+ * doesn't starve clients.  Each copy is followed until the
+ * new holder persists it, retried with backoff if it fails,
+ * and the chunk requeued while it still has too few replicas.
+ *
+ * @author Elliott Forney
+ */
+public class ReplicationScheduler
+{
+  /** default number of copies in flight */
+  public static final int defaultWorkers = 4;
+
+  /** most copies sent by one chunkserver at once */
+  public static final int maxPerSource = 2;
+
+  /** most copies received by one chunkserver at once */
+  public static final int maxPerTarget = 2;
+
+  /** tries at copying a chunk before giving up */
+  public static final int maxAttempts = 5;
+
+  /** seconds a copy may take before it is abandoned */
+  public static final int copyTimeoutSecs = 60;
+
+  // wait before first retry, doubled after each
+  private static final long retryMillis = 2000;
+
+  // wait before retrying when chunkservers are busy
+  private static final long busyMillis = 500;
+
+  // number of finished copies remembered for status
+  private static final int historySize = 10;
+
+  /**
+   * View of the cluster the scheduler copies chunks around.
+   * Calls are made without the scheduler locked.
+   */
+  public interface Cluster
+  {
+    /**
+     * Get chunkservers holding a chunk.
+     */
+    public HostID[] holders(ChunkHandle handle);
+
+    /**
+     * Choose and reserve room on a chunkserver to hold
+     * another replica of a chunk.
+     *
+     * @param holders Chunkservers already holding it.
+     * @param busy Host id strings of chunkservers that
+     *   may not be chosen.
+     * @return Chunkserver or null if none has room.
+     */
+    public HostID target(ChunkHandle handle, HostID[] holders,
+                         Set<String> busy);
+
+    /**
+     * Give back room reserved on a chunkserver
+     * for a copy that did not happen.
+     */
+    public void release(HostID target);
+
+    /**
+     * Record a chunkserver as holding a copied chunk.
+     *
+     * @return False if chunkserver is gone.
+     */
+    public boolean replicated(ChunkHandle handle, HostID target);
+  }
+
+  // state of a task
+  private enum State { WAITING, QUEUED, RUNNING }
+
+  // chunk needing more replicas
+  private static class Task
+  {
+    ChunkHandle handle;
+
+    // replicas the chunk had when last looked at
+    int remaining;
+
+    // tries at copying so far
+    int attempts = 0;
+
+    // order tasks were queued in, breaks ties
+    long seq;
+
+    // time before which a waiting task is not tried
+    long notBefore = 0;
+
+    State state = State.QUEUED;
+
+    // chunkservers of a running copy
+    HostID source = null;
+    HostID target = null;
+
+    // target counted by cluster.target, until given
+    // back or recorded as holding the chunk
+    HostID chosen = null;
+
+    Task(ChunkHandle handle, int remaining, long seq)
+    {
+      this.handle    = handle;
+      this.remaining = remaining;
+      this.seq       = seq;
+    }
+  }
+
+  // controller sending copy requests
+  private HostID id;
+
+  // where chunkservers are
+  private Topology topology;
+
+  // chunkservers and chunk holders
+  private Cluster cluster;
+
+  // cap on bytes copied per second
+  private Throttle throttle;
+
+  // tasks ready to run, most urgent first
+  private TreeSet<Task> queued = new TreeSet<Task>(new Comparator<Task>()
+    {
+      public int compare(Task a, Task b)
+      {
+        if (a.remaining != b.remaining)
+          return (a.remaining < b.remaining) ? -1 : 1;
+
+        return (a.seq < b.seq) ? -1 : ((a.seq > b.seq) ? 1 : 0);
+      }
+    });
+
+  // tasks backing off, soonest first
+  private PriorityQueue<Task> waiting = new PriorityQueue<Task>(16,
+    new Comparator<Task>()
+    {
+      public int compare(Task a, Task b)
+      {
+        return (a.notBefore < b.notBefore) ? -1 :
+               ((a.notBefore > b.notBefore) ? 1 : 0);
+      }
+    });
+
+  // every unfinished task by chunk
+  private HashMap<ChunkHandle, Task> tasks =
+    new HashMap<ChunkHandle, Task>();
+
+  // copies in flight from and to each chunkserver by host id string
+  private HashMap<String, Integer> sending   = new HashMap<String, Integer>();
+  private HashMap<String, Integer> receiving = new HashMap<String, Integer>();
+
+  // cancels copies that take too long
+  private Timer watchdog = new Timer("replication watchdog", true);
+
+  // next task sequence number
+  private long nextSeq = 0;
+
+  // counts kept for status
+  private int running      = 0;
+  private long completed   = 0;
+  private long failed      = 0;
+  private long retries     = 0;
+  private long bytesCopied = 0;
+
+  // last few finished tasks, oldest first
+  private ArrayList<String> history = new ArrayList<String>();
+
+  /**
+   * Create a new scheduler, workers are not started.
+   *
+   * @param id Controller sending copy requests.
+   * @param topology Where chunkservers are.
+   * @param cluster Chunkservers and chunk holders.
+   * @param throttle Cap on bytes copied per second.
+   */
+  public ReplicationScheduler(HostID id, Topology topology,
+                              Cluster cluster, Throttle throttle)
+  {
+    this.id       = id;
+    this.topology = topology;
+    this.cluster  = cluster;
+    this.throttle = throttle;
+  }
+
+  /**
+   * Start worker threads.
+   *
+   * @param numWorkers Number of copies in flight at most.
+   */
+  public void start(int numWorkers)
+  {
+    for (int i = 0; i < numWorkers; ++i)
+    {
+      Worker w = new Worker();
+      w.setName("replication worker " + i);
+      w.setDaemon(true);
+      w.start();
+    }
+  }
+
+  /**
+   * Queue a chunk for more replicas.  A chunk already
+   * queued is not queued twice, it just moves up if
+   * it has lost more replicas since.
+   *
+   * @param remaining Replicas chunk has left.
+   */
+  public synchronized void enqueue(ChunkHandle handle, int remaining)
+  {
+    if (add(handle, remaining))
+      notifyAll();
+  }
+
+  /**
+   * Queue a batch of chunks for more replicas, as lost
+   * with a chunkserver, waking workers once for the lot.
+   * Chunks with no replicas left have nowhere to be
+   * copied from and are passed over.
+   *
+   * @param remaining Replicas each chunk has left.
+   */
+  public synchronized void enqueue(ChunkHandle[] handles, int[] remaining)
+  {
+    boolean added = false;
+
+    for (int i = 0; i < handles.length; ++i)
+      if (remaining[i] > 0)
+        added |= add(handles[i], remaining[i]);
+
+    if (added)
+      notifyAll();
+  }
+
+  // Queue a chunk or move it up, returns true if newly queued.
+  // Must be synchronized by caller!
+  private boolean add(ChunkHandle handle, int remaining)
+  {
+    Task t = tasks.get(handle);
+
+    if (t == null)
+    {
+      t = new Task(handle, remaining, nextSeq++);
+      tasks.put(handle, t);
+      queued.add(t);
+      return true;
+    }
+    else if (remaining < t.remaining)
+    {
+      // reorder if it is sorted on remaining
+      if (t.state == State.QUEUED)
+      {
+        queued.remove(t);
+        t.remaining = remaining;
+        queued.add(t);
+      }
+      else
+        t.remaining = remaining;
+    }
+
+    return false;
+  }
+
+  /**
+   * Get number of chunks queued or being copied.
+   */
+  public synchronized int pending()
+  {
+    return tasks.size();
+  }
+
+  /**
+   * Generate human readable string describing queue and copies.
+   */
+  public synchronized String toString()
+  {
+    String s = String.format("queued %d, waiting %d, running %d, " +
+                             "done %d, failed %d, retries %d, " +
+                             "moved %.1f MB, cap %.1f MB/s\n",
+                             queued.size(), waiting.size(), running,
+                             completed, failed, retries,
+                             bytesCopied/1e6, throttle.getRate()/1e6);
+
+    Iterator<Task> itr = tasks.values().iterator();
+    while (itr.hasNext())
+    {
+      Task t = itr.next();
+
+      if (t.state == State.RUNNING)
+        s += "  copying " + t.handle + " from " + t.source +
+             " to " + t.target + "\n";
+    }
+
+    for (int i = 0; i < history.size(); ++i)
+      s += "  " + history.get(i) + "\n";
+
+    return s;
+  }
+
+  // thread copying chunks off the queue
+  private class Worker
+    extends Thread
+  {
+    public void run()
+    {
+      while (true)
+      {
+        try {
+          copy(take());
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+        catch (Exception e) {
+          System.out.println("Replication worker error: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  // Wait for the most urgent task that is due and
+  // mark it running.
+  private synchronized Task take()
+    throws InterruptedException
+  {
+    while (true)
+    {
+      long now = System.currentTimeMillis();
+
+      // move tasks done backing off to the queue
+      while (!waiting.isEmpty() && (waiting.peek().notBefore <= now))
+      {
+        Task t = waiting.poll();
+        t.state = State.QUEUED;
+        queued.add(t);
+      }
+
+      if (!queued.isEmpty())
+      {
+        Task t = queued.pollFirst();
+        t.state = State.RUNNING;
+        ++running;
+        return t;
+      }
+
+      if (waiting.isEmpty())
+        wait();
+      else
+        wait(Math.max(1, waiting.peek().notBefore - now));
+    }
+  }
+
+  // Copy a chunk to one more chunkserver.  Whatever goes
+  // wrong the task is retried or dropped, never left running
+  // where it would keep its chunk from being queued again.
+  private void copy(Task t)
+    throws InterruptedException
+  {
+    try {
+      attempt(t);
+    }
+    catch (RuntimeException e)
+    {
+      // give back copy slots and target still held
+      if (t.source != null)
+        unreserve(t, t.source, t.target);
+
+      if (t.chosen != null)
+      {
+        cluster.release(t.chosen);
+        t.chosen = null;
+      }
+
+      retry(t, "copy of " + t.handle + " failed: " + e);
+    }
+  }
+
+  // Make one try at copying a task's chunk.
+  private void attempt(Task t)
+    throws InterruptedException
+  {
+    HostID[] holders = cluster.holders(t.handle);
+
+    if (holders.length == 0)
+    {
+      finish(t, false, "no replicas left of " + t.handle);
+      return;
+    }
+
+    // fixed meanwhile, by a heartbeat or an earlier copy
+    if (holders.length >= Controller.replicationLevel)
+    {
+      finish(t, true, null);
+      return;
+    }
+
+    t.remaining = holders.length;
+
+    Set<String> busy = fullTargets();
+    HostID target = cluster.target(t.handle, holders, busy);
+
+    if (target == null)
+    {
+      // busy ones may free up, don't spend an attempt
+      if (!busy.isEmpty())
+        defer(t, busyMillis);
+      else
+        retry(t, "no chunkserver to copy " + t.handle + " to");
+      return;
+    }
+
+    t.chosen = target;
+
+    // copy from the nearest holder with a free slot
+    topology.sortByDistance(target, holders);
+
+    HostID source = reserve(t, holders, target);
+
+    if (source == null)
+    {
+      cluster.release(target);
+      t.chosen = null;
+      defer(t, busyMillis);
+      return;
+    }
+
+    int bytes;
+
+    try {
+      bytes = transfer(source, target, t.handle);
+    }
+    catch (Exception e)
+    {
+      cluster.release(target);
+      t.chosen = null;
+      retry(t, "copy of " + t.handle + " from " + source + " to " +
+               target + " failed: " + e.getMessage());
+      return;
+    }
+    finally {
+      unreserve(t, source, target);
+    }
+
+    cluster.replicated(t.handle, target);
+    t.chosen = null;
+
+    synchronized (this) {
+      bytesCopied += bytes;
+    }
+
+    // keep copying while still short of replicas
+    int now = cluster.holders(t.handle).length;
+
+    if (now < Controller.replicationLevel)
+    {
+      t.remaining = now;
+      t.attempts  = 0;
+      requeue(t);
+    }
+    else
+      finish(t, true, "copied " + t.handle + " from " + source +
+                      " to " + target);
+  }
+
+  /**
+   * Copy a chunk from one chunkserver to another, drawing
+   * on the bandwidth cap and giving up after copyTimeoutSecs.
+   * Returns once the new holder has persisted the chunk.
+   *
+   * @return Bytes copied.
+   */
+  public int transfer(HostID source, HostID target, ChunkHandle handle)
+    throws Exception
+  {
+    throttle.acquire(Chunk.maxSize);
+
+    final FixReplicationMessage frm =
+      new FixReplicationMessage(id, source, target, handle);
+
+    // abandon copy if a chunkserver hangs
+    TimerTask timeout = new TimerTask()
+    {
+      public void run()
+      {
+        frm.cancel();
+      }
+    };
+    watchdog.schedule(timeout, copyTimeoutSecs*1000l);
+
+    FixReplicationMessage reply = null;
+
+    try {
+      reply = frm.send();
+    }
+    finally
+    {
+      timeout.cancel();
+
+      // give back bandwidth not used
+      throttle.refund(Chunk.maxSize -
+                      (((reply != null) && reply.isReplicated()) ?
+                        reply.getBytes() : 0));
+    }
+
+    if (!reply.isReplicated())
+      throw new Exception("Not persisted by " + target + ".");
+
+    return reply.getBytes();
+  }
+
+  // Host id strings of chunkservers receiving all
+  // the copies they may at once.
+  private synchronized Set<String> fullTargets()
+  {
+    HashSet<String> full = new HashSet<String>();
+
+    Iterator<String> itr = receiving.keySet().iterator();
+    while (itr.hasNext())
+    {
+      String cs = itr.next();
+
+      if (receiving.get(cs) >= maxPerTarget)
+        full.add(cs);
+    }
+
+    return full;
+  }
+
+  // Take a copy slot on target and on the first holder with
+  // one free, return that holder or null if none has one.
+  private synchronized HostID reserve(Task t, HostID[] holders, HostID target)
+  {
+    if (count(receiving, target) >= maxPerTarget)
+      return null;
+
+    for (int i = 0; i < holders.length; ++i)
+      if (count(sending, holders[i]) < maxPerSource)
+      {
+        sending.put(holders[i].toString(), count(sending, holders[i])+1);
+        receiving.put(target.toString(), count(receiving, target)+1);
+
+        t.source = holders[i];
+        t.target = target;
+
+        return holders[i];
+      }
+
+    return null;
+  }
+
+  // Free copy slots taken by reserve.
+  private synchronized void unreserve(Task t, HostID source, HostID target)
+  {
+    decrement(sending, source);
+    decrement(receiving, target);
+
+    t.source = null;
+    t.target = null;
+  }
+
+  // copies in flight on a chunkserver
+  private static int count(HashMap<String, Integer> counts, HostID cs)
+  {
+    Integer n = counts.get(cs.toString());
+    return (n == null) ? 0 : n;
+  }
+
+  // one less copy in flight on a chunkserver
+  private static void decrement(HashMap<String, Integer> counts, HostID cs)
+  {
+    int n = count(counts, cs) - 1;
+
+    if (n > 0)
+      counts.put(cs.toString(), n);
+    else
+      counts.remove(cs.toString());
+  }
+
+  // Try a task again later, giving up after maxAttempts.
+  private synchronized void retry(Task t, String reason)
+  {
+    if (++t.attempts >= maxAttempts)
+    {
+      finish(t, false, reason + ", giving up");
+      return;
+    }
+
+    System.out.println("Re-replication: " + reason + ", retrying.");
+
+    ++retries;
+    defer(t, retryMillis << (t.attempts-1));
+  }
+
+  // Put a running task back to wait a while.
+  private synchronized void defer(Task t, long millis)
+  {
+    --running;
+
+    t.state     = State.WAITING;
+    t.notBefore = System.currentTimeMillis() + millis;
+    waiting.add(t);
+
+    notifyAll();
+  }
+
+  // Put a running task back on the queue.
+  private synchronized void requeue(Task t)
+  {
+    --running;
+
+    t.state = State.QUEUED;
+    queued.add(t);
+
+    notifyAll();
+  }
+
+  // Drop a running task, done or given up on.
+  private synchronized void finish(Task t, boolean done, String what)
+  {
+    --running;
+    tasks.remove(t.handle);
+
+    if (done)
+      ++completed;
+    else
+      ++failed;
+
+    if (what == null)
+      return;
+
+    System.out.println("Re-replication: " + what + ".");
+
+    history.add((done ? "done: " : "failed: ") + what);
+    if (history.size() > historySize)
+      history.remove(0);
+  }
+}
@@ -26,8 +26,8 @@ public class RetrieveDataMessage
   // array of chunkservers holding data
   private HostID[] chunkServers;
 
-  // chunk descriptor to associate with data
-  private ChunkDescriptor chunkDesc;
+  // chunk handle to associate with data
+  private ChunkHandle handle;
 
   // data for chunk to contain
   private byte[] data = null;
@@ -37,16 +37,16 @@ public class RetrieveDataMessage
    *
    * @param src Message source, client or chunkserver.
    * @param chunkServers Chunkservers holding data.
-   * @param chunkDesc Chunk descriptor describing data.
+   * @param handle Chunk handle describing data.
    */
   public RetrieveDataMessage(HostID src, HostID[] chunkServers,
-                             ChunkDescriptor chunkDesc)
+                             ChunkHandle handle)
   {
     // setup parent class, destination will be set below
     super(src, null, Message.Kind.RetrieveData);
 
     this.chunkServers = chunkServers;
-    this.chunkDesc    = chunkDesc;
+    this.handle       = handle;
 
     // generate random starting index base
     dstBase = Math.abs(rand.nextInt()) % chunkServers.length;
@@ -63,6 +63,14 @@ public class RetrieveDataMessage
     return true;
   }
 
+  /**
+   * Only looks things up, safe to send again.
+   */
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
   // generate a new destination index relative to dstBase
   private int getDstIndex()
   {
@@ -92,9 +100,9 @@ public class RetrieveDataMessage
   /**
    *
    */ 
-  public ChunkDescriptor getChunkDescriptor()
+  public ChunkHandle getHandle()
   {
-    return chunkDesc;
+    return handle;
   }
 
   /**
@@ -125,7 +133,7 @@ public class RetrieveDataMessage
     while (!success && (dst != null))
     {
       try {
-        System.out.println("Retrieving data " + chunkDesc + " from " + dst);
+        System.out.println("Retrieving data " + handle + " from " + dst);
         reply = (RetrieveDataMessage)super.send();
         success = true;
       }
@@ -141,4 +149,167 @@ public class RetrieveDataMessage
 
     return reply;
   }
+
+  /**
+   * Send this message to the fastest holder and, if no
+   * reply arrives within the tracker's hedge delay, send
+   * a duplicate request to the next fastest holder.
+   * The first holder to return data wins and any
+   * other outstanding requests are cancelled.
+   * Holders that fail are skipped immediately.
+   *
+   * @param tracker Latency tracker used to order
+   *   holders and pick hedge delay, updated with
+   *   the outcome of each request.
+   * @return Reply message holding data.
+   */
+  public RetrieveDataMessage sendHedged(LatencyTracker tracker)
+    throws Exception
+  {
+    // holders ordered from fastest to slowest
+    HostID[] ordered = tracker.order(chunkServers);
+
+    // time to wait before hedging
+    long hedgeDelay = tracker.getHedgeDelay();
+
+    // shared state for all attempts
+    HedgedRace race = new HedgedRace();
+
+    HedgedAttempt[] attempts = new HedgedAttempt[ordered.length];
+
+    int numStarted = 0;
+
+    synchronized (race)
+    {
+      while (race.winner == null)
+      {
+        // start another attempt if nothing is outstanding
+        // or the outstanding attempts have taken too long
+        if ((numStarted < ordered.length) &&
+            (race.numFailed == numStarted || race.hedgeDue))
+        {
+          if (numStarted > 0)
+            System.out.println("Hedging retrieve of " + handle +
+                               " to " + ordered[numStarted]);
+
+          attempts[numStarted] =
+            new HedgedAttempt(race, tracker, ordered[numStarted]);
+          attempts[numStarted].start();
+          ++numStarted;
+
+          race.hedgeDue = false;
+        }
+
+        // every holder has failed
+        else if (race.numFailed == ordered.length)
+          break;
+
+        // wait for a reply or until time to hedge
+        long start = System.currentTimeMillis();
+        race.wait(hedgeDelay);
+
+        if ((System.currentTimeMillis() - start) >= hedgeDelay)
+          race.hedgeDue = true;
+      }
+    }
+
+    // cancel the losers
+    for (int i = 0; i < numStarted; ++i)
+      if (attempts[i].reply != race.winner)
+        attempts[i].abort();
+
+    if (race.winner == null)
+      throw new Exception("All destinations unavailable.");
+
+    return race.winner;
+  }
+
+  // state shared between attempts of a hedged send
+  private static class HedgedRace
+  {
+    // first reply holding data
+    public RetrieveDataMessage winner = null;
+
+    // attempts that failed or returned no data
+    public int numFailed = 0;
+
+    // set when hedge delay has expired
+    public boolean hedgeDue = false;
+  }
+
+  // thread requesting data from a single holder
+  private class HedgedAttempt
+    extends Thread
+  {
+    private HedgedRace race;
+    private LatencyTracker tracker;
+    private HostID cs;
+
+    // message sent by this attempt
+    private RetrieveDataMessage rdm;
+
+    // set when attempt is cancelled
+    private volatile boolean aborted = false;
+
+    // reply received, if any
+    public RetrieveDataMessage reply = null;
+
+    public HedgedAttempt(HedgedRace race, LatencyTracker tracker, HostID cs)
+    {
+      this.race    = race;
+      this.tracker = tracker;
+      this.cs      = cs;
+
+      HostID[] dst = new HostID[1];
+      dst[0] = cs;
+
+      rdm = new RetrieveDataMessage(src, dst, handle);
+
+      setDaemon(true);
+    }
+
+    // cancel this attempt
+    public void abort()
+    {
+      aborted = true;
+      rdm.cancel();
+    }
+
+    public void run()
+    {
+      RetrieveDataMessage got = null;
+      long start = System.currentTimeMillis();
+
+      try {
+        got = rdm.send();
+      }
+      catch (Exception e) {
+        got = null;
+      }
+
+      long elapsed = System.currentTimeMillis() - start;
+
+      synchronized (race)
+      {
+        if ((got != null) && (got.getData() != null))
+        {
+          tracker.record(cs, elapsed);
+
+          reply = got;
+          if (race.winner == null)
+            race.winner = got;
+        }
+        else
+        {
+          // don't penalize holders we hung up on
+          if (!aborted)
+            tracker.recordFailure(cs);
+
+          ++race.numFailed;
+        }
+
+        race.notifyAll();
+      }
+    }
+  }
 }
@@ -0,0 +1,252 @@
+package goofs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Binary min-heap of chunkserver entries ordered by load,
+ * least loaded first, used by the controller to place new
+ * chunks.  Each entry remembers its position in the heap,
+ * so an entry whose load changed is moved into place in
+ * O(log n) rather than resorting every entry.  Not
+ * synchronized, callers must lock around it.
+ *
+ * An entry can sit in two heaps at once, one over all
+ * chunkservers and one over its rack, the rack heap
+ * keeps its positions in a slot of its own.
+ *
+ * @author Elliott Forney
+ */
+public class ServerHeap
+{
+  // entries in heap order, children of i at 2i+1 and 2i+2
+  private ArrayList<ControllerSEntry> heap =
+    new ArrayList<ControllerSEntry>();
+
+  // true if positions are kept in rack slots of entries
+  private boolean rackLevel;
+
+  /**
+   * Test deciding which entries a search may return.
+   */
+  public interface Filter
+  {
+    /**
+     * Check if an entry may be returned.
+     */
+    public boolean accept(ControllerSEntry e);
+  }
+
+  /**
+   * Create an empty heap over all chunkservers.
+   */
+  public ServerHeap()
+  {
+    this(false);
+  }
+
+  /**
+   * Create an empty heap.
+   *
+   * @param rackLevel True if heap holds chunkservers
+   *   of a single rack.
+   */
+  public ServerHeap(boolean rackLevel)
+  {
+    this.rackLevel = rackLevel;
+  }
+
+  /**
+   * Get number of entries in heap.
+   */
+  public int size()
+  {
+    return heap.size();
+  }
+
+  /**
+   * Add an entry to the heap.
+   */
+  public void add(ControllerSEntry e)
+  {
+    if (slotOf(e) >= 0)
+      throw new IllegalArgumentException(e.getID() + " already in heap.");
+
+    heap.add(e);
+    setSlot(e, heap.size()-1);
+
+    siftUp(slotOf(e));
+  }
+
+  /**
+   * Remove an entry from the heap.
+   *
+   * @return False if entry was not in heap.
+   */
+  public boolean remove(ControllerSEntry e)
+  {
+    int slot = slotOf(e);
+
+    if ((slot < 0) || (slot >= heap.size()) || (heap.get(slot) != e))
+      return false;
+
+    // move last entry into the hole
+    ControllerSEntry last = heap.remove(heap.size()-1);
+    setSlot(e, -1);
+
+    if (last != e)
+    {
+      set(slot, last);
+      update(last);
+    }
+
+    return true;
+  }
+
+  /**
+   * Move an entry into place after its load changed.
+   */
+  public void update(ControllerSEntry e)
+  {
+    if (slotOf(e) < 0)
+      return;
+
+    siftDown(siftUp(slotOf(e)));
+  }
+
+  /**
+   * Get the least loaded entries without removing them.
+   * Only entries that could be among the k least are
+   * looked at, so this takes O(k log k).
+   *
+   * @param k Number of entries wanted.
+   * @return Up to k entries, least loaded first.
+   */
+  public ControllerSEntry[] least(int k)
+  {
+    return least(k, null);
+  }
+
+  /**
+   * Get the least loaded entries a filter accepts without
+   * removing them.  Entries the filter rejects are passed
+   * over, so this stays cheap while most entries pass.
+   *
+   * @param k Number of entries wanted.
+   * @param filter Test entries must pass, null for none.
+   * @return Up to k entries, least loaded first.
+   */
+  public ControllerSEntry[] least(int k, Filter filter)
+  {
+    ArrayList<ControllerSEntry> least = new ArrayList<ControllerSEntry>(k);
+
+    if ((k == 0) || heap.isEmpty())
+      return new ControllerSEntry[0];
+
+    // frontier of slots whose parents were already taken
+    PriorityQueue<Integer> frontier = new PriorityQueue<Integer>(2*k+1,
+      new Comparator<Integer>()
+      {
+        public int compare(Integer a, Integer b)
+        {
+          return heap.get(a).compareTo(heap.get(b));
+        }
+      });
+
+    frontier.add(0);
+
+    while ((least.size() < k) && !frontier.isEmpty())
+    {
+      int slot = frontier.poll();
+
+      if ((filter == null) || filter.accept(heap.get(slot)))
+        least.add(heap.get(slot));
+
+      if (2*slot+1 < heap.size())
+        frontier.add(2*slot+1);
+      if (2*slot+2 < heap.size())
+        frontier.add(2*slot+2);
+    }
+
+    return least.toArray(new ControllerSEntry[least.size()]);
+  }
+
+  /**
+   * Get the least loaded entry a filter accepts.
+   *
+   * @param filter Test entry must pass, null for none.
+   * @return Entry or null if none pass.
+   */
+  public ControllerSEntry first(Filter filter)
+  {
+    ControllerSEntry[] least = least(1, filter);
+
+    return (least.length == 0) ? null : least[0];
+  }
+
+  // move entry at slot toward root, return where it ends up
+  private int siftUp(int slot)
+  {
+    ControllerSEntry e = heap.get(slot);
+
+    while (slot > 0)
+    {
+      int parent = (slot-1)/2;
+
+      if (heap.get(parent).compareTo(e) <= 0)
+        break;
+
+      set(slot, heap.get(parent));
+      slot = parent;
+    }
+
+    set(slot, e);
+    return slot;
+  }
+
+  // move entry at slot toward leaves
+  private void siftDown(int slot)
+  {
+    ControllerSEntry e = heap.get(slot);
+
+    while (2*slot+1 < heap.size())
+    {
+      int child = 2*slot+1;
+
+      if ((child+1 < heap.size()) &&
+          (heap.get(child+1).compareTo(heap.get(child)) < 0))
+        ++child;
+
+      if (e.compareTo(heap.get(child)) <= 0)
+        break;
+
+      set(slot, heap.get(child));
+      slot = child;
+    }
+
+    set(slot, e);
+  }
+
+  // put entry at slot and record where it is
+  private void set(int slot, ControllerSEntry e)
+  {
+    heap.set(slot, e);
+    setSlot(e, slot);
+  }
+
+  // position of entry in this heap
+  private int slotOf(ControllerSEntry e)
+  {
+    return rackLevel ? e.rackSlot : e.heapSlot;
+  }
+
+  // record position of entry in this heap
+  private void setSlot(ControllerSEntry e, int slot)
+  {
+    if (rackLevel)
+      e.rackSlot = slot;
+    else
+      e.heapSlot = slot;
+  }
+}
@@ -0,0 +1,394 @@
+package goofs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Chunk index split into stripes by hash of the chunk,
+ * each stripe a ChunkIndex with its own lock.  Writers
+ * lock only the stripes they change, so heartbeats from
+ * several chunkservers are taken in at once and a stripe
+ * growing stalls only its own share of the chunks.
+ * Lookups take no lock, they read a stripe optimistically
+ * and only fall back to a read lock if a writer changed
+ * the stripe while they were reading it.
+ *
+ * @author Elliott Forney
+ */
+public class StripedChunkIndex
+{
+  /** number of stripes, a power of two */
+  public static final int numStripes = 64;
+
+  // high bits of chunk hash choosing the stripe
+  private static final int stripeShift =
+    32 - Integer.numberOfTrailingZeros(numStripes);
+
+  // most chunks added under one hold of a stripe lock,
+  // a big heartbeat doesn't keep readers out for long
+  private static final int maxBatch = 256;
+
+  // chunks of each stripe
+  private ChunkIndex[] stripes = new ChunkIndex[numStripes];
+
+  // lock guarding each stripe
+  private StampedLock[] locks = new StampedLock[numStripes];
+
+  /**
+   * Create an index sized to hold a number
+   * of chunks without growing.
+   *
+   * @param expectedChunks Chunks expected.
+   */
+  public StripedChunkIndex(long expectedChunks)
+  {
+    for (int i = 0; i < numStripes; ++i)
+    {
+      stripes[i] = new ChunkIndex(expectedChunks / numStripes);
+      locks[i]   = new StampedLock();
+    }
+  }
+
+  /**
+   * Get number of chunks in index.
+   */
+  public long size()
+  {
+    long size = 0;
+
+    for (int i = 0; i < numStripes; ++i)
+    {
+      long stamp = locks[i].readLock();
+      try {
+        size += stripes[i].size();
+      }
+      finally {
+        locks[i].unlockRead(stamp);
+      }
+    }
+
+    return size;
+  }
+
+  /**
+   * Get bytes an index sized for a number of chunks takes.
+   *
+   * @param numChunks Chunks to hold.
+   */
+  public static long memoryFor(long numChunks)
+  {
+    return numStripes * ChunkIndex.memoryFor(numChunks / numStripes);
+  }
+
+  /**
+   * Get node ids of chunkservers holding a chunk.
+   * Never blocks unless a writer holds the stripe.
+   *
+   * @return Node ids or null if chunk is not in index.
+   */
+  public int[] getHolders(long fileId, long seq)
+  {
+    int s = stripeFor(fileId, seq);
+
+    StampedLock lock = locks[s];
+
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0)
+    {
+      try
+      {
+        int[] nodes = stripes[s].getHolders(fileId, seq);
+
+        if (lock.validate(stamp))
+          return nodes;
+      }
+      catch (RuntimeException e) {
+        // stripe changed under us, read again below
+      }
+    }
+
+    stamp = lock.readLock();
+    try {
+      return stripes[s].getHolders(fileId, seq);
+    }
+    finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Record a chunkserver as holding a chunk,
+   * adding the chunk if it is not yet indexed.
+   *
+   * @param node Node id of chunkserver, 1 to ChunkIndex.maxNode.
+   * @return False if chunk already has
+   *   ChunkIndex.holdersPerChunk other holders.
+   */
+  public boolean addHolder(long fileId, long seq, int node)
+  {
+    int s = stripeFor(fileId, seq);
+
+    long stamp = locks[s].writeLock();
+    try {
+      return stripes[s].addHolder(fileId, seq, node);
+    }
+    finally {
+      locks[s].unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Record a chunkserver as holding each of a batch of
+   * chunks.  Chunks are grouped by stripe so each stripe
+   * is locked once per maxBatch chunks rather than once
+   * per chunk.
+   *
+   * @param handles Chunks held.
+   * @param node Node id of chunkserver, 1 to ChunkIndex.maxNode.
+   * @return Chunks not recorded because they already
+   *   had ChunkIndex.holdersPerChunk other holders.
+   */
+  public ChunkHandle[] addHolders(ChunkHandle[] handles, int node)
+  {
+    int[] nodes = new int[handles.length];
+    for (int i = 0; i < nodes.length; ++i)
+      nodes[i] = node;
+
+    // order chunks by stripe
+    int[] start = new int[numStripes+1];
+    int[] order = byStripe(handles, start);
+
+    boolean[] rejected = new boolean[handles.length];
+
+    for (int s = 0; s < numStripes; ++s)
+      addHolders(s, handles, nodes, order, start[s], start[s+1], rejected);
+
+    ArrayList<ChunkHandle> result = new ArrayList<ChunkHandle>();
+
+    for (int i = 0; i < handles.length; ++i)
+      if (rejected[i])
+        result.add(handles[i]);
+
+    return result.toArray(new ChunkHandle[result.size()]);
+  }
+
+  /**
+   * Order chunks by the stripe they fall in.
+   *
+   * @param handles Chunks to order.
+   * @param start Filled in with where each stripe's chunks
+   *   start in the order, numStripes+1 long, the last
+   *   entry is the number of chunks.
+   * @return Indices into handles, grouped by stripe.
+   */
+  static int[] byStripe(ChunkHandle[] handles, int[] start)
+  {
+    // count chunks falling in each stripe
+    int[] stripeOf = new int[handles.length];
+
+    for (int i = 0; i < handles.length; ++i)
+    {
+      stripeOf[i] = stripeFor(handles[i].getFileId(),
+                              handles[i].getSequence());
+      ++start[stripeOf[i]+1];
+    }
+
+    for (int s = 0; s < numStripes; ++s)
+      start[s+1] += start[s];
+
+    int[] next  = start.clone();
+    int[] order = new int[handles.length];
+
+    for (int i = 0; i < handles.length; ++i)
+      order[next[stripeOf[i]]++] = i;
+
+    return order;
+  }
+
+  /**
+   * Record holders of chunks that all fall in one stripe,
+   * locking it once per maxBatch chunks.  Callers working
+   * on different stripes don't wait on each other.
+   *
+   * @param s Stripe.
+   * @param handles Chunks.
+   * @param nodes Node id of holder of each chunk.
+   * @param order Indices into handles, as from byStripe.
+   * @param first First position in order to record.
+   * @param last Position in order after the last to record.
+   * @param rejected Set for each chunk not recorded because
+   *   it already had ChunkIndex.holdersPerChunk other holders.
+   */
+  void addHolders(int s, ChunkHandle[] handles, int[] nodes, int[] order,
+                  int first, int last, boolean[] rejected)
+  {
+    for (; first < last; first += maxBatch)
+    {
+      int end = Math.min(first+maxBatch, last);
+
+      long stamp = locks[s].writeLock();
+      try
+      {
+        for (int i = first; i < end; ++i)
+        {
+          int j = order[i];
+          ChunkHandle h = handles[j];
+
+          if (!stripes[s].addHolder(h.getFileId(), h.getSequence(), nodes[j]))
+            rejected[j] = true;
+        }
+      }
+      finally {
+        locks[s].unlockWrite(stamp);
+      }
+    }
+  }
+
+  /**
+   * Forget that a chunkserver holds a chunk.  The
+   * chunk stays indexed even with no holders left.
+   *
+   * @return True if chunkserver was a holder.
+   */
+  public boolean removeHolder(long fileId, long seq, int node)
+  {
+    int s = stripeFor(fileId, seq);
+
+    long stamp = locks[s].writeLock();
+    try {
+      return stripes[s].removeHolder(fileId, seq, node);
+    }
+    finally {
+      locks[s].unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Forget that a chunkserver holds each of a batch of
+   * chunks, as when it dies.  Chunks are grouped by stripe
+   * so each stripe is locked once per maxBatch chunks
+   * rather than once per chunk.
+   *
+   * @param handles Chunks chunkserver held.
+   * @param node Node id of chunkserver.
+   * @return Number of holders each chunk has left.
+   */
+  public int[] removeHolders(ChunkHandle[] handles, int node)
+  {
+    int[] start = new int[numStripes+1];
+    int[] order = byStripe(handles, start);
+
+    int[] remaining = new int[handles.length];
+
+    for (int s = 0; s < numStripes; ++s)
+    {
+      for (int first = start[s]; first < start[s+1]; first += maxBatch)
+      {
+        int end = Math.min(first+maxBatch, start[s+1]);
+
+        long stamp = locks[s].writeLock();
+        try
+        {
+          for (int i = first; i < end; ++i)
+          {
+            int j = order[i];
+            long fileId = handles[j].getFileId();
+            long seq    = handles[j].getSequence();
+
+            stripes[s].removeHolder(fileId, seq, node);
+            remaining[j] = stripes[s].numHolders(fileId, seq);
+          }
+        }
+        finally {
+          locks[s].unlockWrite(stamp);
+        }
+      }
+    }
+
+    return remaining;
+  }
+
+  /**
+   * Get handles of every chunk in index.  Stripes are
+   * read one at a time, so this is not a snapshot of
+   * the whole index if writers are busy.
+   */
+  public ChunkHandle[] handles()
+  {
+    ArrayList<ChunkHandle> handles = new ArrayList<ChunkHandle>();
+
+    for (int i = 0; i < numStripes; ++i)
+    {
+      long stamp = locks[i].readLock();
+      try
+      {
+        ChunkHandle[] cur = stripes[i].handles();
+
+        for (int j = 0; j < cur.length; ++j)
+          handles.add(cur[j]);
+      }
+      finally {
+        locks[i].unlockRead(stamp);
+      }
+    }
+
+    return handles.toArray(new ChunkHandle[handles.size()]);
+  }
+
+  /**
+   * Write every chunk with holders, a stripe at a time,
+   * each stripe read locked while it is written.
+   */
+  public void write(DataOutput out)
+    throws IOException
+  {
+    out.writeInt(numStripes);
+
+    for (int s = 0; s < numStripes; ++s)
+    {
+      long stamp = locks[s].readLock();
+      try {
+        stripes[s].write(out);
+      }
+      finally {
+        locks[s].unlockRead(stamp);
+      }
+    }
+  }
+
+  /**
+   * Add holders of chunks as written by write, to
+   * whatever is already indexed.  Chunks are put in
+   * the stripe they fall in now, so the number of
+   * stripes may have changed since they were written.
+   */
+  public void read(DataInput in)
+    throws IOException
+  {
+    int parts = in.readInt();
+
+    for (int p = 0; p < parts; ++p)
+    {
+      long n = in.readLong();
+
+      for (long i = 0; i < n; ++i)
+      {
+        long fileId = in.readLong();
+        long seq    = in.readLong();
+        int k       = in.readByte();
+
+        for (int j = 0; j < k; ++j)
+          addHolder(fileId, seq, in.readChar());
+      }
+    }
+  }
+
+  // stripe holding a chunk
+  private static int stripeFor(long fileId, long seq)
+  {
+    return ChunkIndex.hash(fileId, seq) >>> stripeShift;
+  }
+}
@@ -1,11 +1,12 @@
 package goofs;
 
+import java.io.File;
 import java.util.Random;
 
 /**
  * Message requesting that data be stored
  * at given list of chunkservers and
- * associated with a given chunk descriptor.
+ * associated with a given chunk handle.
  *
  * @author Elliott Forney
  */
@@ -29,22 +30,40 @@ public class SubmitDataMessage
   // array of chunkservers to hold chunk
   private HostID[] chunkServers;
 
-  // chunk descriptor to associate with data
-  private ChunkDescriptor chunkDesc;
+  // chunk handle to associate with data
+  private ChunkHandle handle;
+
+  // pathname of file, a hint chunkservers
+  // keep so they can report their namespace
+  private File f;
 
   // data for chunk to contain
   private byte[] data;
 
+  // byte within chunk where data starts, nonzero
+  // when only changed slices of a chunk are sent
+  private int chunkOffset = 0;
+
+  // if true, this message is one of several sent
+  // in parallel and is not forwarded, instead the
+  // chunkserver replies once the data is persisted
+  private boolean fanOut = false;
+
+  // set by chunkserver in reply to a fan-out
+  // message if the data was written to disk
+  private boolean persisted = false;
+
   /**
    * Create a new message requesting data storage.
    *
    * @param src Message source, client.
    * @param chunkServers Chunkservers to hold data.
-   * @param chunkDesc Chunk descriptor describing data.
+   * @param handle Chunk handle describing data.
+   * @param f Pathname of file containing chunk.
    * @param data Data to be held in destination chunk.
    */
   public SubmitDataMessage(HostID src, HostID[] chunkServers,
-                           ChunkDescriptor chunkDesc, byte[] data)
+                           ChunkHandle handle, File f, byte[] data)
   {
     // setup parent class, destination will be set below
     super(src, null, Message.Kind.SubmitData);
@@ -58,10 +77,39 @@ public class SubmitDataMessage
     this.dst        = chunkServers[getDstIndex()];
 
     // set payload
-    this.chunkDesc  = chunkDesc;
+    this.handle     = handle;
+    this.f          = f;
     this.data       = data;
   }
 
+  /**
+   * Create a new message requesting data storage.
+   *
+   * @param src Message source, client or chunkserver.
+   * @param chunkServers Chunkservers to hold data.
+   * @param handle Chunk handle describing data.
+   * @param f Pathname of file containing chunk.
+   * @param data Data to be held in destination chunk.
+   * @param fanOut If true, data is not forwarded
+   *   and chunkserver replies once it is persisted.
+   */
+  public SubmitDataMessage(HostID src, HostID[] chunkServers,
+                           ChunkHandle handle, File f, byte[] data,
+                           boolean fanOut)
+  {
+    this(src, chunkServers, handle, f, data);
+    this.fanOut = fanOut;
+  }
+
+  /**
+   * Fan-out messages wait for an acknowledgement
+   * while chained messages do not.
+   */
+  public boolean expectsReply()
+  {
+    return fanOut;
+  }
+
   // generate a new destination index relative to dstBase
   private int getDstIndex()
   {
@@ -91,9 +139,17 @@ public class SubmitDataMessage
   /**
    *
    */ 
-  public ChunkDescriptor getChunkDescriptor()
+  public ChunkHandle getHandle()
   {
-    return chunkDesc;
+    return handle;
+  }
+
+  /**
+   * Get pathname of file containing chunk.
+   */
+  public File getFile()
+  {
+    return f;
   }
 
   /**
@@ -104,6 +160,59 @@ public class SubmitDataMessage
     return data;
   }
 
+  /**
+   * Set the byte within the chunk where data starts.
+   * Bytes of the stored chunk outside the data are
+   * kept, so the chunk must already exist.
+   *
+   * @param chunkOffset Byte within chunk.
+   */
+  public void setChunkOffset(int chunkOffset)
+  {
+    this.chunkOffset = chunkOffset;
+  }
+
+  /**
+   * Get the byte within the chunk where data starts.
+   */
+  public int getChunkOffset()
+  {
+    return chunkOffset;
+  }
+
+  /**
+   * Check if this message is part of a fan-out write.
+   *
+   * @return True if this message should be
+   *   acknowledged rather than forwarded.
+   */
+  public boolean isFanOut()
+  {
+    return fanOut;
+  }
+
+  /**
+   * Check if the chunkserver persisted the data.
+   *
+   * @return True if the data was written to disk.
+   */
+  public boolean isPersisted()
+  {
+    return persisted;
+  }
+
+  /**
+   * Turn this message into an acknowledgement.
+   * Data is dropped so it is not sent back.
+   *
+   * @param persisted True if the data was written to disk.
+   */
+  public void acknowledge(boolean persisted)
+  {
+    this.persisted = persisted;
+    this.data      = null;
+  }
+
   /**
    *
    */
@@ -116,7 +225,7 @@ public class SubmitDataMessage
     while (!success && (dst != null))
     {
       try {
-        System.out.println("Submitting data " + chunkDesc + " to " + dst);
+        System.out.println("Submitting data " + handle + " to " + dst);
         reply = (SubmitDataMessage)super.send();
         success = true;
       }
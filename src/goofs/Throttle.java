@@ -0,0 +1,102 @@
+package goofs;
+
+/**
+ * Token bucket capping the rate at which bytes are moved
+ * between chunkservers by background work, so copying
+ * chunks around the cluster leaves room for clients.
+ * Takers may run the bucket into debt and then wait it
+ * off, so a single take larger than a second's worth of
+ * bytes still goes through, only later.
+ *
+ * @author Elliott Forney
+ */
+public class Throttle
+{
+  // bytes allowed per second, zero or less for no cap
+  private double bytesPerSec;
+
+  // bytes that may be taken now, negative when in debt
+  private double tokens;
+
+  // time tokens were last added, in nanoseconds
+  private long lastFill = System.nanoTime();
+
+  /**
+   * Create a new throttle.
+   *
+   * @param bytesPerSec Bytes allowed per second,
+   *   zero or less for no cap.
+   */
+  public Throttle(double bytesPerSec)
+  {
+    this.bytesPerSec = bytesPerSec;
+    this.tokens      = Math.max(0.0, bytesPerSec);
+  }
+
+  /**
+   * Get bytes allowed per second, zero or less for no cap.
+   */
+  public synchronized double getRate()
+  {
+    return bytesPerSec;
+  }
+
+  /**
+   * Change bytes allowed per second.
+   */
+  public synchronized void setRate(double bytesPerSec)
+  {
+    fill();
+    this.bytesPerSec = bytesPerSec;
+    tokens = Math.min(tokens, Math.max(0.0, bytesPerSec));
+  }
+
+  /**
+   * Take bytes from the bucket, blocking until
+   * the rate allows them to be moved.
+   */
+  public void acquire(long bytes)
+    throws InterruptedException
+  {
+    long waitNanos;
+
+    synchronized (this)
+    {
+      if (bytesPerSec <= 0.0)
+        return;
+
+      fill();
+      tokens -= bytes;
+
+      // nothing owed, go now
+      if (tokens >= 0.0)
+        return;
+
+      waitNanos = (long)(-tokens / bytesPerSec * 1e9);
+    }
+
+    // wait off debt without holding the bucket
+    Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+  }
+
+  /**
+   * Give back bytes taken but not moved.
+   */
+  public synchronized void refund(long bytes)
+  {
+    fill();
+    tokens = Math.min(tokens + bytes, Math.max(0.0, bytesPerSec));
+  }
+
+  // add tokens for time passed, at most a second's worth
+  private void fill()
+  {
+    long now = System.nanoTime();
+
+    if (bytesPerSec > 0.0)
+      tokens = Math.min(tokens + (now - lastFill) * bytesPerSec / 1e9,
+                        bytesPerSec);
+
+    lastFill = now;
+  }
+}
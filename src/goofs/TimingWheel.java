@@ -0,0 +1,246 @@
+package goofs;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel firing a callback for each item whose
+ * deadline passes.  Time is cut into ticks and each tick has
+ * a slot on the wheel, holding a list of the items due in
+ * it, so scheduling an item or pushing its deadline back is
+ * O(1) however many items there are, and each tick only looks
+ * at the items due then.  Deadlines further off than a turn
+ * of the wheel wait out the extra turns in their slot.
+ * The controller keeps a timeout per chunkserver, pushed
+ * back by each heartbeat, so a chunkserver is found dead
+ * within a tick of missing its deadline.
+ *
+ * @author Elliott Forney
+ */
+public class TimingWheel<T>
+{
+  /**
+   * Called for each item whose deadline passes.
+   */
+  public interface Expiry<T>
+  {
+    /**
+     * Called without the wheel locked, an item may have
+     * been rescheduled by the time this is called.
+     */
+    public void expired(T item);
+  }
+
+  /**
+   * Deadline of an item, kept by whoever scheduled it so
+   * it can be pushed back or cancelled without a search.
+   */
+  public static class Timeout<T>
+  {
+    // item timed
+    private T item;
+
+    // tick at or after which item expires
+    private long deadline;
+
+    // neighbours in slot list, null when not scheduled
+    private Timeout<T> prev = null;
+    private Timeout<T> next = null;
+
+    private Timeout(T item)
+    {
+      this.item = item;
+    }
+
+    /**
+     * Get item timed.
+     */
+    public T getItem()
+    {
+      return item;
+    }
+  }
+
+  // length of a tick in milliseconds
+  private long tickMillis;
+
+  // head of each slot's circular list, a sentinel
+  private ArrayList<Timeout<T>> slots;
+
+  // number of slots, a power of two
+  private int mask;
+
+  // tick the ticker is at, items due up to here are fired
+  private long now = 0;
+
+  // time of tick zero, in nanoseconds
+  private long startNanos = System.nanoTime();
+
+  // called for items that expire
+  private Expiry<T> expiry;
+
+  /**
+   * Create a new wheel, not yet turning.
+   *
+   * @param tickMillis Length of a tick in milliseconds.
+   * @param numSlots Slots on wheel, rounded up to a power of two,
+   *   best longer in ticks than most deadlines are off.
+   * @param expiry Called for each item whose deadline passes.
+   */
+  public TimingWheel(long tickMillis, int numSlots, Expiry<T> expiry)
+  {
+    this.tickMillis = tickMillis;
+    this.expiry     = expiry;
+
+    int n = Integer.highestOneBit(Math.max(1, numSlots-1)) << 1;
+    mask = n-1;
+
+    slots = new ArrayList<Timeout<T>>(n);
+    for (int i = 0; i < n; ++i)
+    {
+      Timeout<T> head = new Timeout<T>(null);
+      head.prev = head;
+      head.next = head;
+      slots.add(head);
+    }
+  }
+
+  /**
+   * Start a thread turning the wheel.
+   */
+  public void start(String name)
+  {
+    Thread ticker = new Thread(name)
+    {
+      public void run()
+      {
+        while (true)
+        {
+          try {
+            turn();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          catch (Exception e) {
+            System.out.println(getName() + " error: " + e.getMessage());
+          }
+        }
+      }
+    };
+
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * Schedule an item to expire after a delay.
+   *
+   * @return Timeout to push back or cancel it by.
+   */
+  public synchronized Timeout<T> schedule(T item, long delayMillis)
+  {
+    Timeout<T> t = new Timeout<T>(item);
+    insert(t, delayMillis);
+
+    return t;
+  }
+
+  /**
+   * Move an item's deadline to a delay from now,
+   * scheduling it again if it already expired.
+   */
+  public synchronized void reschedule(Timeout<T> t, long delayMillis)
+  {
+    unlink(t);
+    insert(t, delayMillis);
+  }
+
+  /**
+   * Stop an item from expiring.
+   */
+  public synchronized void cancel(Timeout<T> t)
+  {
+    unlink(t);
+  }
+
+  // Sleep until the next tick, then fire every item due.
+  private void turn()
+    throws InterruptedException
+  {
+    long next;
+
+    synchronized (this) {
+      next = now+1;
+    }
+
+    long wakeNanos = startNanos + next*tickMillis*1000000;
+    long sleepNanos = wakeNanos - System.nanoTime();
+
+    if (sleepNanos > 0)
+      Thread.sleep(sleepNanos / 1000000, (int)(sleepNanos % 1000000));
+
+    ArrayList<T> due = new ArrayList<T>();
+
+    synchronized (this)
+    {
+      now = next;
+
+      Timeout<T> head = slots.get((int)(now & mask));
+
+      Timeout<T> t = head.next;
+      while (t != head)
+      {
+        Timeout<T> after = t.next;
+
+        // others wait out more turns
+        if (t.deadline <= now)
+        {
+          unlink(t);
+          due.add(t.item);
+        }
+
+        t = after;
+      }
+    }
+
+    // call back without the wheel locked
+    for (int i = 0; i < due.size(); ++i)
+      expiry.expired(due.get(i));
+  }
+
+  // Put a timeout in the slot of its deadline.
+  // Must be synchronized by caller!
+  private void insert(Timeout<T> t, long delayMillis)
+  {
+    long tickNanos = tickMillis*1000000;
+
+    // first tick at or after the delay, counted
+    // from when the wheel started, so never early
+    long due = System.nanoTime() - startNanos + delayMillis*1000000;
+    long tick = (due + tickNanos-1) / tickNanos;
+
+    // never a slot already passed
+    t.deadline = Math.max(tick, now+1);
+
+    Timeout<T> head = slots.get((int)(t.deadline & mask));
+
+    t.prev = head.prev;
+    t.next = head;
+    head.prev.next = t;
+    head.prev = t;
+  }
+
+  // Take a timeout out of its slot, if it is in one.
+  // Must be synchronized by caller!
+  private void unlink(Timeout<T> t)
+  {
+    if (t.next == null)
+      return;
+
+    t.prev.next = t.next;
+    t.next.prev = t.prev;
+
+    t.prev = null;
+    t.next = null;
+  }
+}
@@ -0,0 +1,283 @@
+package goofs;
+
+import java.io.*;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map of where hosts sit in the cluster, host to rack
+ * to zone, used by the controller to spread replicas
+ * over failure domains and to send readers to nearby
+ * replicas.  Locations come from a topology file given
+ * to the controller or, for hosts it doesn't list, from
+ * what chunkservers report in their heartbeats.  Hosts
+ * known to neither share a default rack.
+ *
+ * A topology file has one host per line, with its rack
+ * and optionally its zone, blank lines and anything
+ * after a # are ignored:
+ * <pre>
+ *   # host[:port]   rack    zone
+ *   horde-0         rack-a  east
+ *   horde-1:8001    rack-b  east
+ * </pre>
+ *
+ * @author Elliott Forney
+ */
+public class Topology
+{
+  /** rack of hosts nobody told us about */
+  public static final String defaultRack = "default-rack";
+
+  /** zone of hosts nobody told us about */
+  public static final String defaultZone = "default-zone";
+
+  /** distance from a host to itself */
+  public static final int sameHost = 0;
+
+  /** distance between hosts in one rack */
+  public static final int sameRack = 1;
+
+  /** distance between racks in one zone */
+  public static final int sameZone = 2;
+
+  /** distance between zones */
+  public static final int otherZone = 3;
+
+  // location of hosts nobody told us about
+  private static final Location unknown =
+    new Location(defaultRack, defaultZone);
+
+  // locations from topology file by host or host:port
+  private ConcurrentHashMap<String, Location> configured =
+    new ConcurrentHashMap<String, Location>();
+
+  // locations reported by chunkservers by host id string
+  private ConcurrentHashMap<String, Location> reported =
+    new ConcurrentHashMap<String, Location>();
+
+  /**
+   * Create an empty topology, every
+   * host is in the default rack.
+   */
+  public Topology()
+  {
+  }
+
+  /**
+   * Load a topology from a file.
+   *
+   * @param f Topology file.
+   */
+  public static Topology load(File f)
+    throws Exception
+  {
+    Topology t = new Topology();
+
+    BufferedReader in = new BufferedReader(new FileReader(f));
+
+    try
+    {
+      String line;
+      int lineNum = 0;
+
+      while ((line = in.readLine()) != null)
+      {
+        ++lineNum;
+
+        // strip comments
+        int hash = line.indexOf('#');
+        if (hash >= 0)
+          line = line.substring(0, hash);
+
+        StringTokenizer tok = new StringTokenizer(line);
+
+        if (!tok.hasMoreTokens())
+          continue;
+
+        String host = tok.nextToken();
+
+        if (!tok.hasMoreTokens())
+          throw new Exception(f + ":" + lineNum + ": No rack for " + host + ".");
+
+        String rack = tok.nextToken();
+        String zone = tok.hasMoreTokens() ? tok.nextToken() : defaultZone;
+
+        t.configured.put(host, new Location(rack, zone));
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return t;
+  }
+
+  /**
+   * Record the location a chunkserver reports
+   * for itself.  The topology file wins if it
+   * also lists the chunkserver.
+   *
+   * @param cs Chunkserver reporting.
+   * @param rack Its rack, null if it doesn't know.
+   * @param zone Its zone, null if it doesn't know.
+   * @return True if chunkserver reported a new location.
+   */
+  public boolean report(HostID cs, String rack, String zone)
+  {
+    if (rack == null)
+      return false;
+
+    Location loc = new Location(rack, (zone == null) ? defaultZone : zone);
+    Location old = reported.put(cs.toString(), loc);
+
+    if ((old != null) && old.equals(loc))
+      return false;
+
+    System.out.println("ChunkServer " + cs + " is in " + locate(cs) + ".");
+    return true;
+  }
+
+  /**
+   * Find where a host is.
+   */
+  public Location locate(HostID h)
+  {
+    Location loc = configured.get(h.toString());
+
+    if (loc == null)
+      loc = configured.get(h.getHost());
+
+    if (loc == null)
+      loc = reported.get(h.toString());
+
+    if (loc == null)
+      loc = unknown;
+
+    return loc;
+  }
+
+  /**
+   * Get distance between two hosts, one of
+   * sameHost, sameRack, sameZone or otherZone.
+   */
+  public int distance(HostID a, HostID b)
+  {
+    if (a.getHost().equals(b.getHost()))
+      return sameHost;
+
+    return locate(a).distance(locate(b));
+  }
+
+  /**
+   * Order hosts nearest to a given host first.  Hosts
+   * at one distance keep their order between them.
+   *
+   * @param from Host measured from.
+   * @param hosts Hosts to order, in place.
+   */
+  public void sortByDistance(HostID from, HostID[] hosts)
+  {
+    // few holders, insertion sort keeps order of ties
+    for (int i = 1; i < hosts.length; ++i)
+    {
+      HostID cur = hosts[i];
+      int d = distance(from, cur);
+
+      int j = i;
+      while ((j > 0) && (distance(from, hosts[j-1]) > d))
+      {
+        hosts[j] = hosts[j-1];
+        --j;
+      }
+
+      hosts[j] = cur;
+    }
+  }
+
+  /**
+   * Rack and zone of a host.
+   */
+  public static class Location
+  {
+    // rack, named uniquely within its zone
+    private String rack;
+
+    // zone the rack is in
+    private String zone;
+
+    /**
+     * Create a new location.
+     */
+    public Location(String rack, String zone)
+    {
+      this.rack = rack;
+      this.zone = zone;
+    }
+
+    /**
+     * Get name of rack.
+     */
+    public String getRack()
+    {
+      return rack;
+    }
+
+    /**
+     * Get name of zone.
+     */
+    public String getZone()
+    {
+      return zone;
+    }
+
+    /**
+     * Get name of rack unique across zones.
+     */
+    public String getRackKey()
+    {
+      return zone + "/" + rack;
+    }
+
+    /**
+     * Get distance to another location, sameRack,
+     * sameZone or otherZone.
+     */
+    public int distance(Location l)
+    {
+      if (!zone.equals(l.zone))
+        return otherZone;
+      else if (!rack.equals(l.rack))
+        return sameZone;
+      else
+        return sameRack;
+    }
+
+    /**
+     * Check for equality with another location.
+     */
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Location))
+        return false;
+
+      return distance((Location)o) == sameRack;
+    }
+
+    /**
+     * Hash rack and zone together.
+     */
+    public int hashCode()
+    {
+      return getRackKey().hashCode();
+    }
+
+    /**
+     * Generate human readable string describing this location.
+     */
+    public String toString()
+    {
+      return "rack " + rack + ", zone " + zone;
+    }
+  }
+}
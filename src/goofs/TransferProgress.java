@@ -0,0 +1,174 @@
+package goofs;
+
+/**
+ * Tracks progress and throughput of a transfer
+ * of many chunks and periodically reports it
+ * to the console.  Also records the first
+ * failure so that parallel workers can stop.
+ *
+ * @author Elliott Forney
+ */
+public class TransferProgress
+{
+  /** seconds between progress reports */
+  public static final int reportSecs = 2;
+
+  // verb describing transfer, eg Uploaded
+  private String verb;
+
+  // chunks and bytes in whole transfer
+  private long totalChunks;
+  private long totalBytes;
+
+  // chunks and bytes transferred so far
+  private long doneChunks = 0;
+  private long doneBytes  = 0;
+
+  // chunks found unchanged and not transferred
+  private long skippedChunks = 0;
+
+  // time transfer started in milliseconds
+  private long startTime;
+
+  // first failure seen, if any
+  private Exception failure = null;
+
+  // thread printing reports
+  private Thread reporter = null;
+
+  /**
+   * Create a new progress tracker.
+   *
+   * @param verb Past tense verb describing transfer.
+   * @param totalChunks Chunks in whole transfer.
+   * @param totalBytes Bytes in whole transfer.
+   */
+  public TransferProgress(String verb, long totalChunks, long totalBytes)
+  {
+    this.verb        = verb;
+    this.totalChunks = totalChunks;
+    this.totalBytes  = totalBytes;
+    this.startTime   = System.currentTimeMillis();
+  }
+
+  /**
+   * Record that a chunk has been transferred.
+   *
+   * @param bytes Bytes in chunk.
+   */
+  public synchronized void chunkDone(int bytes)
+  {
+    ++doneChunks;
+    doneBytes += bytes;
+  }
+
+  /**
+   * Record that a chunk was already up to date
+   * and did not need to be transferred.
+   *
+   * @param bytes Bytes in chunk.
+   */
+  public synchronized void chunkSkipped(int bytes)
+  {
+    ++skippedChunks;
+    totalBytes -= bytes;
+  }
+
+  /**
+   * Record a failure.  Only the first
+   * failure is kept.
+   *
+   * @param e Exception describing failure.
+   */
+  public synchronized void fail(Exception e)
+  {
+    if (failure == null)
+      failure = e;
+  }
+
+  /**
+   * Get the first failure seen.
+   *
+   * @return First failure or null if none.
+   */
+  public synchronized Exception getFailure()
+  {
+    return failure;
+  }
+
+  /**
+   * Check if any failure has been seen.
+   */
+  public synchronized boolean hasFailed()
+  {
+    return failure != null;
+  }
+
+  /**
+   * Get number of chunks transferred so far.
+   */
+  public synchronized long getDoneChunks()
+  {
+    return doneChunks;
+  }
+
+  /**
+   * Get throughput so far in megabytes per second.
+   */
+  public synchronized double getThroughput()
+  {
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+    return (doneBytes / (1024.0*1024.0)) / (elapsed / 1000.0);
+  }
+
+  /**
+   * Start printing a report every reportSecs seconds.
+   */
+  public synchronized void startReporting()
+  {
+    reporter = new Thread() {
+      public void run()
+      {
+        try
+        {
+          while (true)
+          {
+            Thread.sleep(reportSecs*1000);
+            System.out.println(TransferProgress.this);
+          }
+        }
+        catch (InterruptedException e) {
+          // done reporting
+        }
+      }
+    };
+
+    reporter.setDaemon(true);
+    reporter.start();
+  }
+
+  /**
+   * Stop printing reports.
+   */
+  public synchronized void stopReporting()
+  {
+    if (reporter != null)
+      reporter.interrupt();
+
+    reporter = null;
+  }
+
+  /**
+   * Generate human readable string describing progress.
+   */
+  public synchronized String toString()
+  {
+    return String.format("%s %d of %d chunks, %.1f of %.1f MB, %.1f MB/s" +
+                         ((skippedChunks > 0) ? ", %d unchanged" : ""),
+                         verb, doneChunks, totalChunks - skippedChunks,
+                         doneBytes  / (1024.0*1024.0),
+                         totalBytes / (1024.0*1024.0),
+                         getThroughput(), skippedChunks);
+  }
+}